@@ -31,10 +31,19 @@ public class ChatClient {
 
     private String loadMoreContext = null;
     private List<String[]> pendingOlderMessages = new ArrayList<>();
-    private Map<String, Long> oldestMessageTimestamp = new HashMap<>();
+    // Con trỏ trang cũ hơn của từng cuộc trò chuyện do server trả về; chuỗi rỗng = đã tải hết
+    private Map<String, String> olderCursors = new HashMap<>();
+
+    // Phiên bản danh sách online đã nhận từ server, dùng để chỉ xin phần thay đổi ở lần sau
+    private long onlineUsersVersion = 0;
+    // Đã gửi /online để lấp khoảng trống phiên bản, chờ server trả lời
+    private boolean onlineUsersResyncing = false;
 
     private Map<String, Group> groups = new HashMap<>();
 
+    // Chỉ dùng trên thread đọc của ServerConnection
+    private final Protocol.FieldCursor fields = new Protocol.FieldCursor();
+
     private Map<String, File> filesToUpload = new HashMap<>();
     private Map<String, String[]> filesToDownload = new HashMap<>();
     private LocalStorage localStorage;
@@ -80,16 +89,15 @@ public class ChatClient {
     }
 
     public void createGroup(String groupName) {
-        serverConnection.sendMessage(Protocol.CMD_CREATE_GROUP + groupName);
+        serverConnection.sendMessage(Protocol.format(Protocol.CMD_CREATE_GROUP, groupName));
     }
 
     public void addToGroup(String groupName, String username) {
-        serverConnection.sendMessage(Protocol.CMD_ADD_TO_GROUP +
-                groupName + Protocol.PARAM_DELIMITER + username);
+        serverConnection.sendMessage(Protocol.format(Protocol.CMD_ADD_TO_GROUP, groupName, username));
     }
 
     public void leaveGroup(String groupName) {
-        serverConnection.sendMessage(Protocol.CMD_LEAVE_GROUP + groupName);
+        serverConnection.sendMessage(Protocol.format(Protocol.CMD_LEAVE_GROUP, groupName));
     }
 
     public void getGroups() {
@@ -97,13 +105,11 @@ public class ChatClient {
     }
 
     public void sendGroupMessage(String groupName, String message) {
-        serverConnection.sendMessage(Protocol.CMD_GROUP_MSG +
-                groupName + Protocol.PARAM_DELIMITER + message);
+        serverConnection.sendMessage(Protocol.format(Protocol.CMD_GROUP_MSG, groupName, message));
     }
 
     public void removeFromGroup(String groupName, String username) {
-        serverConnection.sendMessage(Protocol.CMD_REMOVE_FROM_GROUP +
-                groupName + Protocol.PARAM_DELIMITER + username);
+        serverConnection.sendMessage(Protocol.format(Protocol.CMD_REMOVE_FROM_GROUP, groupName, username));
     }
 
     public void getChatHistory(String chatPartner, boolean isGroup) {
@@ -114,14 +120,14 @@ public class ChatClient {
 
     public void loadMoreMessages(String chatPartner, boolean isGroup) {
         String chatType = isGroup ? "group" : "private";
-        Long oldestTimestamp = oldestMessageTimestamp.get(chatPartner);
+        // Chưa có con trỏ thì gửi chuỗi rỗng: server trả trang mới nhất
+        String cursor = olderCursors.getOrDefault(chatPartner, "");
 
-        if (oldestTimestamp == null) {
-            oldestTimestamp = System.currentTimeMillis();
-            oldestMessageTimestamp.put(chatPartner, oldestTimestamp);
+        if (olderCursors.containsKey(chatPartner) && cursor.isEmpty()) {
+            return;
         }
 
-        serverConnection.loadMoreMessages(chatPartner, chatType, oldestTimestamp, 10);
+        serverConnection.loadMoreMessages(chatPartner, chatType, cursor, 10);
         loadMoreContext = chatPartner;
     }
 
@@ -130,30 +136,21 @@ public class ChatClient {
     }
 
     private void handleChatHistoryItem(String message) {
-        String content = message.substring(Protocol.SVR_CHAT_HISTORY_ITEM.length());
-        String[] parts = content.split("\\|", 8);
+        String[] parts = parseFields(message, Protocol.SVR_CHAT_HISTORY_ITEM, 8);
 
         if (parts.length >= 4) {
             pendingHistoryMessages.add(parts);
-
-            long timestamp;
-            if (parts.length == 4) {
-                timestamp = Long.parseLong(parts[2]);
-            } else {
-                timestamp = Long.parseLong(parts[4]);
-            }
-            Long currentOldest = oldestMessageTimestamp.get(currentHistoryContext);
-
-            if (currentOldest == null || timestamp < currentOldest) {
-                oldestMessageTimestamp.put(currentHistoryContext, timestamp);
-            }
         }
     }
 
-    private void handleChatHistoryEnd() {
+    private void handleChatHistoryEnd(String message) {
         String chatContext = currentHistoryContext;
         List<String[]> messages = new ArrayList<>(pendingHistoryMessages);
 
+        if (chatContext != null) {
+            olderCursors.put(chatContext, parseFields(message, Protocol.SVR_CHAT_HISTORY_END, 2)[0]);
+        }
+
         if (chatFrame != null && chatContext != null && !messages.isEmpty()) {
             chatFrame.displayChatHistory(chatContext, messages);
         }
@@ -167,23 +164,18 @@ public class ChatClient {
     }
 
     private void handleLoadMoreItem(String message) {
-        String content = message.substring(Protocol.SVR_LOAD_MORE_ITEM.length());
-        String[] parts = content.split("\\|", 3);
+        String[] parts = parseFields(message, Protocol.SVR_LOAD_MORE_ITEM, 3);
 
         if (parts.length >= 3) {
             pendingOlderMessages.add(parts);
-
-            // Cập nhật timestamp của tin nhắn cũ nhất
-            long timestamp = Long.parseLong(parts[2]);
-            Long currentOldest = oldestMessageTimestamp.get(loadMoreContext);
-
-            if (currentOldest == null || timestamp < currentOldest) {
-                oldestMessageTimestamp.put(loadMoreContext, timestamp);
-            }
         }
     }
 
-    private void handleLoadMoreEnd() {
+    private void handleLoadMoreEnd(String message) {
+        if (loadMoreContext != null) {
+            olderCursors.put(loadMoreContext, parseFields(message, Protocol.SVR_LOAD_MORE_END, 2)[0]);
+        }
+
         if (chatFrame != null && loadMoreContext != null && !pendingOlderMessages.isEmpty()) {
             chatFrame.displayOlderMessages(loadMoreContext, pendingOlderMessages);
         }
@@ -204,7 +196,7 @@ public class ChatClient {
             chatFrame = new ChatFrame(this);
             chatFrame.setVisible(true);
 
-            serverConnection.getOnlineUsers();
+            serverConnection.getOnlineUsers(onlineUsersVersion);
 
             loginFrame.dispose();
         });
@@ -312,6 +304,28 @@ public class ChatClient {
         }
     }
 
+    // Tham số duy nhất của lệnh: toàn bộ phần sau tiền tố, đã bỏ escape
+    private String parseField(String message, String prefix) {
+        return fields.reset(message, prefix.length()).rest();
+    }
+
+    // Như split("\\|", limit) trên phần sau tiền tố nhưng tôn trọng escape; limit <= 0 là không giới hạn.
+    // Khi đủ limit, tham số cuối chứa phần còn lại của dòng
+    private String[] parseFields(String message, String prefix, int limit) {
+        Protocol.FieldCursor cursor = fields.reset(message, prefix.length());
+        int count = cursor.remaining();
+        if (limit > 0 && count > limit) {
+            count = limit;
+        }
+
+        String[] parts = new String[count];
+        for (int i = 0; i < count - 1; i++) {
+            parts[i] = cursor.nextString();
+        }
+        parts[count - 1] = cursor.rest();
+        return parts;
+    }
+
     public void handleIncomingMessage(String message) {
         if (message.startsWith(Protocol.SVR_LOGIN_SUCCESS)) {
             handleLoginSuccess();
@@ -323,10 +337,14 @@ public class ChatClient {
             handleRegisterFail(message);
         } else if (message.startsWith(Protocol.SVR_ONLINE_USERS)) {
             handleOnlineUsers(message);
+        } else if (message.startsWith(Protocol.SVR_ONLINE_DELTA)) {
+            handleOnlineUsersDelta(message);
         } else if (message.startsWith(Protocol.SVR_USER_JOINED)) {
             handleUserJoined(message);
         } else if (message.startsWith(Protocol.SVR_USER_LEFT)) {
             handleUserLeft(message);
+        } else if (message.startsWith(Protocol.SVR_PRESENCE)) {
+            handlePresence(message);
         } else if (message.startsWith(Protocol.SVR_PRIVATE_MSG)) {
             handlePrivateMessage(message);
         } else if (message.startsWith(Protocol.SVR_GLOBAL_MSG)) {
@@ -336,13 +354,13 @@ public class ChatClient {
         } else if (message.startsWith(Protocol.SVR_CHAT_HISTORY_ITEM)) {
             handleChatHistoryItem(message);
         } else if (message.startsWith(Protocol.SVR_CHAT_HISTORY_END)) {
-            handleChatHistoryEnd();
+            handleChatHistoryEnd(message);
         } else if (message.startsWith(Protocol.SVR_LOAD_MORE_START)) {
             handleLoadMoreStart();
         } else if (message.startsWith(Protocol.SVR_LOAD_MORE_ITEM)) {
             handleLoadMoreItem(message);
         } else if (message.startsWith(Protocol.SVR_LOAD_MORE_END)) {
-            handleLoadMoreEnd();
+            handleLoadMoreEnd(message);
         } else if (message.startsWith(Protocol.SVR_CREATE_GROUP_SUCCESS)) {
             handleCreateGroupSuccess(message);
         } else if (message.startsWith(Protocol.SVR_ADD_TO_GROUP_SUCCESS)) {
@@ -406,7 +424,7 @@ public class ChatClient {
     }
 
     private void handleLoginFail(String message) {
-        String reason = message.substring(Protocol.SVR_LOGIN_FAIL.length());
+        String reason = parseField(message, Protocol.SVR_LOGIN_FAIL);
         SwingUtilities.invokeLater(() -> {
             JOptionPane.showMessageDialog(null, "Đăng nhập thất bại: " + reason,
                     "Lỗi", JOptionPane.ERROR_MESSAGE);
@@ -420,7 +438,7 @@ public class ChatClient {
     }
 
     private void handleRegisterFail(String message) {
-        String reason = message.substring(Protocol.SVR_REGISTER_FAIL.length());
+        String reason = parseField(message, Protocol.SVR_REGISTER_FAIL);
         SwingUtilities.invokeLater(() -> {
             JOptionPane.showMessageDialog(null, "Đăng ký thất bại: " + reason,
                     "Lỗi", JOptionPane.ERROR_MESSAGE);
@@ -428,16 +446,46 @@ public class ChatClient {
     }
 
     private void handleOnlineUsers(String message) {
-        String userList = message.substring(Protocol.SVR_ONLINE_USERS.length());
+        // Format: /onlineusers user1,user2|version
+        String[] parts = parseFields(message, Protocol.SVR_ONLINE_USERS, 2);
+        String userList = parts[0];
         String[] users = userList.isEmpty() ? new String[0] : userList.split(",");
 
+        if (parts.length == 2) {
+            onlineUsersVersion = Long.parseLong(parts[1]);
+            onlineUsersResyncing = false;
+        }
+
         if (chatFrame != null) {
             chatFrame.updateOnlineUsers(users);
         }
     }
 
+    private void handleOnlineUsersDelta(String message) {
+        // Format: /onlinedelta version|joined1,joined2|left1,left2
+        String[] parts = parseFields(message, Protocol.SVR_ONLINE_DELTA, 3);
+
+        if (parts.length == 3) {
+            onlineUsersVersion = Long.parseLong(parts[0]);
+            onlineUsersResyncing = false;
+
+            if (chatFrame != null) {
+                if (!parts[1].isEmpty()) {
+                    for (String username : parts[1].split(",")) {
+                        chatFrame.addOnlineUser(username);
+                    }
+                }
+                if (!parts[2].isEmpty()) {
+                    for (String username : parts[2].split(",")) {
+                        chatFrame.removeOnlineUser(username);
+                    }
+                }
+            }
+        }
+    }
+
     private void handleUserJoined(String message) {
-        String username = message.substring(Protocol.SVR_USER_JOINED.length());
+        String username = parseField(message, Protocol.SVR_USER_JOINED);
 
         if (chatFrame != null) {
             chatFrame.addOnlineUser(username);
@@ -445,17 +493,54 @@ public class ChatClient {
     }
 
     private void handleUserLeft(String message) {
-        String username = message.substring(Protocol.SVR_USER_LEFT.length());
+        String username = parseField(message, Protocol.SVR_USER_LEFT);
 
         if (chatFrame != null) {
             chatFrame.removeOnlineUser(username);
         }
     }
 
+    private void handlePresence(String message) {
+        // Format: /presence joined1,joined2|left1,left2|fromVersion|toVersion (server cũ không gửi phiên bản)
+        String[] parts = parseFields(message, Protocol.SVR_PRESENCE, 4);
+        if (chatFrame == null || parts.length < 2) {
+            return;
+        }
+
+        if (parts.length == 4) {
+            long fromVersion = Long.parseLong(parts[2]);
+            long toVersion = Long.parseLong(parts[3]);
+            // Chưa có danh sách ban đầu, hoặc tin này đã nằm trong danh sách đã nhận
+            if (onlineUsersVersion == 0 || toVersion <= onlineUsersVersion) {
+                return;
+            }
+            if (fromVersion > onlineUsersVersion) {
+                // Mất tin /presence ở giữa (server bỏ tin khi client nhận chậm): xin phần thay đổi còn thiếu
+                System.out.println("Presence gap " + onlineUsersVersion + " -> " + fromVersion + ", resyncing");
+                if (!onlineUsersResyncing) {
+                    onlineUsersResyncing = true;
+                    serverConnection.getOnlineUsers(onlineUsersVersion);
+                }
+                return;
+            }
+            onlineUsersVersion = toVersion;
+        }
+
+        if (!parts[0].isEmpty()) {
+            for (String username : parts[0].split(",")) {
+                chatFrame.addOnlineUser(username);
+            }
+        }
+        if (!parts[1].isEmpty()) {
+            for (String username : parts[1].split(",")) {
+                chatFrame.removeOnlineUser(username);
+            }
+        }
+    }
+
     private void handlePrivateMessage(String message) {
         // Format: /privatemsg sender|message hoặc /privatemsg receiver|message
-        String content = message.substring(Protocol.SVR_PRIVATE_MSG.length());
-        String[] parts = content.split("\\|", 4);
+        String[] parts = parseFields(message, Protocol.SVR_PRIVATE_MSG, 4);
 
         if (parts.length >= 3) {
             String contactName = parts[0];  // sender hoặc receiver
@@ -489,8 +574,7 @@ public class ChatClient {
 
     private void handleGlobalMessage(String message) {
         // Format: /globalmsg sender|message
-        String content = message.substring(Protocol.SVR_GLOBAL_MSG.length());
-        String[] parts = content.split("\\|", 2);
+        String[] parts = parseFields(message, Protocol.SVR_GLOBAL_MSG, 2);
 
         if (parts.length == 2) {
             String sender = parts[0];
@@ -504,8 +588,7 @@ public class ChatClient {
 
     private void handleAddToGroupSuccess(String message) {
         // Format: /addtogroup_success groupName|username
-        String content = message.substring(Protocol.SVR_ADD_TO_GROUP_SUCCESS.length());
-        String[] parts = content.split("\\|", 2);
+        String[] parts = parseFields(message, Protocol.SVR_ADD_TO_GROUP_SUCCESS, 2);
 
         if (parts.length == 2) {
             String groupName = parts[0];
@@ -526,8 +609,7 @@ public class ChatClient {
 
     private void handleAddedToGroup(String message) {
         // Format: /addedtogroup groupName|adder
-        String content = message.substring(Protocol.SVR_ADDED_TO_GROUP.length());
-        String[] parts = content.split("\\|", 2);
+        String[] parts = parseFields(message, Protocol.SVR_ADDED_TO_GROUP, 2);
 
         if (parts.length == 2) {
             String groupName = parts[0];
@@ -547,7 +629,7 @@ public class ChatClient {
     }
 
     private void handleCreateGroupSuccess(String message) {
-        String groupName = message.substring(Protocol.SVR_CREATE_GROUP_SUCCESS.length());
+        String groupName = parseField(message, Protocol.SVR_CREATE_GROUP_SUCCESS);
 
         // Tạo nhóm mới
         Group group = new Group(groupName, currentUser.getUsername());
@@ -561,8 +643,7 @@ public class ChatClient {
     }
 
     private void handleGroupUserAdded(String message) {
-        String content = message.substring(Protocol.SVR_GROUP_USER_ADDED.length());
-        String[] parts = content.split("\\|", 3);
+        String[] parts = parseFields(message, Protocol.SVR_GROUP_USER_ADDED, 3);
 
         if (parts.length == 3) {
             String groupName = parts[0];
@@ -585,7 +666,7 @@ public class ChatClient {
     }
 
     private void handleLeftGroup(String message) {
-        String groupName = message.substring(Protocol.SVR_LEFT_GROUP.length());
+        String groupName = parseField(message, Protocol.SVR_LEFT_GROUP);
 
         groups.remove(groupName);
 
@@ -596,8 +677,7 @@ public class ChatClient {
     }
 
     private void handleGroupUserLeft(String message) {
-        String content = message.substring(Protocol.SVR_GROUP_USER_LEFT.length());
-        String[] parts = content.split("\\|", 3);
+        String[] parts = parseFields(message, Protocol.SVR_GROUP_USER_LEFT, 3);
 
         if (parts.length >= 2) {
             String groupName = parts[0];
@@ -623,8 +703,7 @@ public class ChatClient {
     }
 
     private void handleRemovedFromGroup(String message) {
-        String content = message.substring(Protocol.SVR_REMOVED_FROM_GROUP.length());
-        String[] parts = content.split("\\|", 2);
+        String[] parts = parseFields(message, Protocol.SVR_REMOVED_FROM_GROUP, 2);
 
         if (parts.length == 2) {
             String groupName = parts[0];
@@ -644,8 +723,7 @@ public class ChatClient {
     }
 
     private void handleRemoveFromGroupSuccess(String message) {
-        String content = message.substring(Protocol.SVR_REMOVE_FROM_GROUP_SUCCESS.length());
-        String[] parts = content.split("\\|", 2);
+        String[] parts = parseFields(message, Protocol.SVR_REMOVE_FROM_GROUP_SUCCESS, 2);
 
         if (parts.length == 2) {
             String groupName = parts[0];
@@ -667,9 +745,9 @@ public class ChatClient {
     }
 
     private void handleGroupList(String message) {
-        String content = message.substring(Protocol.SVR_GROUP_LIST.length());
+        String[] groupEntries = parseFields(message, Protocol.SVR_GROUP_LIST, 0);
 
-        if (content.isEmpty()) {
+        if (groupEntries.length == 1 && groupEntries[0].isEmpty()) {
             // Không có nhóm nào
             return;
         }
@@ -678,7 +756,6 @@ public class ChatClient {
         groups.clear();
 
         // Phân tích danh sách nhóm
-        String[] groupEntries = content.split("\\|");
         for (String entry : groupEntries) {
             String[] parts = entry.split(":", 3);
             if (parts.length >= 3) {
@@ -707,8 +784,7 @@ public class ChatClient {
     }
 
     private void handleGroupMessage(String message) {
-        String content = message.substring(Protocol.SVR_GROUP_MSG.length());
-        String[] parts = content.split("\\|", 4);
+        String[] parts = parseFields(message, Protocol.SVR_GROUP_MSG, 4);
 
         if (parts.length == 4) {
             String groupName = parts[0];
@@ -726,8 +802,7 @@ public class ChatClient {
     // Xử lý yêu cầu file
     private void handleFileRequest(String message) {
         // Format: /filerequest fileId|sender|fileName|fileSize
-        String content = message.substring(Protocol.SVR_FILE_REQUEST.length());
-        String[] parts = content.split("\\|", 5);
+        String[] parts = parseFields(message, Protocol.SVR_FILE_REQUEST, 5);
 
         if (parts.length == 5) {
             String fileId = parts[0];
@@ -746,7 +821,7 @@ public class ChatClient {
 //                }
             } else {
                 // Người nhận file
-                serverConnection.sendMessage(Protocol.CMD_FILE_ACCEPT + fileId);
+                serverConnection.sendMessage(Protocol.format(Protocol.CMD_FILE_ACCEPT, fileId));
 
                 // Tạo đường dẫn file để lưu
                 String saveFilePath = defaultDownloadFolder + File.separator + fileName;
@@ -785,8 +860,7 @@ public class ChatClient {
     // Xử lý file được chấp nhận
     private void handleFileAccepted(String message) {
         // Format: /fileaccepted fileId hoặc /fileaccepted fileId|sender|fileName|fileSize
-        String content = message.substring(Protocol.SVR_FILE_ACCEPT.length());
-        String[] parts = content.split("\\|");
+        String[] parts = parseFields(message, Protocol.SVR_FILE_ACCEPT, 0);
 
         String fileId = parts[0];
         System.out.println("File accepted: fileId=" + fileId + ", parts.length=" + parts.length);
@@ -854,9 +928,7 @@ public class ChatClient {
                                 chatFrame.updateFileStatus(fileId, "Đã tải xong");
                                 // Thông báo cho người dùng
                                 chatFrame.showNotification("Đã tải xong file " + fileName + " từ " + sender);
-                                sendMessage(Protocol.CMD_CHANGE_MESSAGE_ACTUAL_FILENAME_SAVE +
-                                        fileId + Protocol.PARAM_DELIMITER +
-                                        actualFileName);
+                                sendMessage(Protocol.format(Protocol.CMD_CHANGE_MESSAGE_ACTUAL_FILENAME_SAVE, fileId, actualFileName));
                             }
                         }
                     });
@@ -868,8 +940,7 @@ public class ChatClient {
     }
 
     private void handleGroupFileAccepted(String message) {
-        String content = message.substring(Protocol.SVR_GROUP_FILE_ACCEPT.length());
-        String[] parts = content.split("\\|");
+        String[] parts = parseFields(message, Protocol.SVR_GROUP_FILE_ACCEPT, 0);
 
         String fileId = parts[0];
         System.out.println("File accepted: fileId=" + fileId + ", parts.length=" + parts.length);
@@ -938,10 +1009,7 @@ public class ChatClient {
                                 chatFrame.updateFileStatus(fileId, "Đã tải xong");
                                 // Thông báo cho người dùng
                                 chatFrame.showNotification("Đã tải xong file " + fileName + " từ " + sender);
-                                sendMessage(Protocol.CMD_CHANGE_MESSAGE_GROUP_ACTUAL_FILENAME_SAVE +
-                                        fileId + Protocol.PARAM_DELIMITER +
-                                        actualFileName + Protocol.PARAM_DELIMITER +
-                                        getCurrentUser().getUsername());
+                                sendMessage(Protocol.format(Protocol.CMD_CHANGE_MESSAGE_GROUP_ACTUAL_FILENAME_SAVE, fileId, actualFileName, getCurrentUser().getUsername()));
                             }
                         }
                     });
@@ -953,8 +1021,7 @@ public class ChatClient {
     }
 
     private void handleDownloadFileRequest(String message) {
-        String content = message.substring(Protocol.SVR_FILE_DOWNLOAD_REQUEST.length());
-        String[] parts = content.split("\\|", 4);
+        String[] parts = parseFields(message, Protocol.SVR_FILE_DOWNLOAD_REQUEST, 4);
 
         if (parts.length == 4) {
             String fileId = parts[0];
@@ -963,8 +1030,7 @@ public class ChatClient {
             long fileSize = Long.parseLong(parts[3]);
 
             // Người nhận file
-            serverConnection.sendMessage(Protocol.CMD_FILE_DOWNLOAD_ACCEPT + fileId +
-                    Protocol.PARAM_DELIMITER + getCurrentUser().getUsername());
+            serverConnection.sendMessage(Protocol.format(Protocol.CMD_FILE_DOWNLOAD_ACCEPT, fileId, getCurrentUser().getUsername()));
 
             // Tạo đường dẫn file để lưu
             String saveFilePath = defaultDownloadFolder + File.separator + fileName;
@@ -1002,8 +1068,7 @@ public class ChatClient {
     }
 
     private void handleDownloadFileAccepted(String message) {
-        String content = message.substring(Protocol.SVR_FILE_DOWNLOAD_ACCEPT.length());
-        String[] parts = content.split("\\|", 4);
+        String[] parts = parseFields(message, Protocol.SVR_FILE_DOWNLOAD_ACCEPT, 4);
 
         if (parts.length == 4) {
             String fileId = parts[0];
@@ -1029,10 +1094,7 @@ public class ChatClient {
                                 // Thông báo cho người dùng
                                 chatFrame.showNotification("Đã tải xong file " + fileName + " từ " + sender);
 
-                                sendMessage(Protocol.CMD_CHANGE_MESSAGE_GROUP_ACTUAL_FILENAME_SAVE +
-                                        fileId + Protocol.PARAM_DELIMITER +
-                                        actualFileName + Protocol.PARAM_DELIMITER +
-                                        getCurrentUser().getUsername());
+                                sendMessage(Protocol.format(Protocol.CMD_CHANGE_MESSAGE_GROUP_ACTUAL_FILENAME_SAVE, fileId, actualFileName, getCurrentUser().getUsername()));
                             }
                         }
                     });
@@ -1047,7 +1109,7 @@ public class ChatClient {
 
     // Xử lý file bị từ chối
     private void handleFileRejected(String message) {
-        String fileId = message.substring(Protocol.SVR_FILE_REJECT.length());
+        String fileId = parseField(message, Protocol.SVR_FILE_REJECT);
 
         // Xóa file khỏi danh sách
         filesToUpload.remove(fileId);
@@ -1060,17 +1122,12 @@ public class ChatClient {
     public void downloadFileFromServer(String fileId, String sender, String fileName, long fileSize) {
         // Gửi yêu cầu tải file từ server storage
         // Protocol: CMD_FILE_DOWNLOAD fileId
-        serverConnection.sendMessage(Protocol.CMD_FILE_DOWNLOAD + fileId +
-                Protocol.PARAM_DELIMITER + sender +
-                Protocol.PARAM_DELIMITER + getCurrentUser().getUsername() +
-                Protocol.PARAM_DELIMITER + fileName +
-                Protocol.PARAM_DELIMITER + fileSize);
+        serverConnection.sendMessage(Protocol.format(Protocol.CMD_FILE_DOWNLOAD, fileId, sender, getCurrentUser().getUsername(), fileName, fileSize));
     }
 
     private void handleGroupFileRequest(String message) {
         // Format: /groupfilerequest groupName|fileName|fileSize|fileId
-        String content = message.substring(Protocol.SVR_GROUP_FILE_REQUEST.length());
-        String[] parts = content.split("\\|", 8);
+        String[] parts = parseFields(message, Protocol.SVR_GROUP_FILE_REQUEST, 8);
 
         if (parts.length >= 7) {
             String groupName = parts[0];
@@ -1120,8 +1177,7 @@ public class ChatClient {
             }
             else {
                 // Người nhận file trong nhóm
-                serverConnection.sendMessage(Protocol.CMD_GROUP_FILE_ACCEPT + groupName +
-                        Protocol.PARAM_DELIMITER + fileId);
+                serverConnection.sendMessage(Protocol.format(Protocol.CMD_GROUP_FILE_ACCEPT, groupName, fileId));
 
                 // Tạo đường dẫn lưu file
                 String saveFilePath = defaultDownloadFolder + File.separator + fileName;
@@ -1180,7 +1236,7 @@ public class ChatClient {
     }
 
     private void handleError(String message) {
-        String error = message.substring(Protocol.SVR_ERROR.length());
+        String error = parseField(message, Protocol.SVR_ERROR);
 
         SwingUtilities.invokeLater(() -> {
             JOptionPane.showMessageDialog(chatFrame, error, "Lỗi", JOptionPane.ERROR_MESSAGE);
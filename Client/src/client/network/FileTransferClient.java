@@ -9,11 +9,49 @@ import javax.imageio.IIOException;
 import javax.swing.*;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.zip.CRC32C;
 
 public class FileTransferClient {
+    // Buffer gửi/nhận file; server tự chọn buffer nhận theo kích thước file
+    private static final int TRANSFER_BUFFER = 64 * 1024;
+
+    // Mất kết nối giữa chừng thì nối lại tối đa chừng này lần, mỗi lần tiếp tục từ byte server/file tạm đã có
+    private static final int MAX_TRANSFER_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MS = 1000;
+
+    // File từ ngưỡng này trở lên được chia thành chunk cố định và gửi song song qua nhiều kết nối (UPLOAD_CHUNKS);
+    // số kết nối thực tế không vượt quá số server đề nghị. streams <= 1 thì luôn gửi một luồng.
+    private static final long PARALLEL_UPLOAD_THRESHOLD = Long.getLong("chat.upload.parallelThreshold", 32L * 1024 * 1024);
+    private static final int UPLOAD_CHUNK_SIZE = Integer.getInteger("chat.upload.chunkSize", 8 * 1024 * 1024);
+    private static final int UPLOAD_STREAMS = Integer.getInteger("chat.upload.streams", 4);
+
+    // Tính SHA-256 của file và hỏi server trước (UPLOAD_BY_HASH); mình đã từng gửi nội dung này thì không phải gửi lại
+    private static final boolean UPLOAD_HASH_FIRST = Boolean.parseBoolean(System.getProperty("chat.upload.hashFirst", "true"));
+
+    // Phản hồi của server cho từng chunk
+    private static final int CHUNK_OK = 0;
+    private static final int CHUNK_BAD_CHECKSUM = 1;
+    private static final int CHUNK_FILE_DONE = 2;
+
     private String serverIP;
     private int filePort;
     private ChatClient client;
@@ -35,75 +73,36 @@ public class FileTransferClient {
         // Tạo thread mới để upload file
         new Thread(() -> {
             try {
-                Socket socket = new Socket(serverIP, filePort);
-                DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                DataInputStream dis = new DataInputStream(socket.getInputStream());
-
-                // Gửi yêu cầu upload
-                dos.writeUTF("SEND");
-                dos.writeUTF(fileId);
-                dos.flush();
-
-                // Đọc phản hồi từ server
-                boolean canProceed = dis.readBoolean();
-                if (!canProceed) {
+                // Gửi dữ liệu file và đợi server xác nhận đã lưu xong
+                if (!upload(fileId, file, false, progressCallback)) {
                     progressCallback.accept(-1); // Lỗi
                     System.out.println("Server refused file upload: fileId=" + fileId);
                     return;
                 }
 
-                // Đọc file và gửi dữ liệu
-                try (FileInputStream fis = new FileInputStream(file)) {
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    long totalBytesSent = 0;
-                    long fileSize = file.length();
+                // Gửi thông báo đã hoàn thành 100%
+                progressCallback.accept(100);
 
-                    while ((bytesRead = fis.read(buffer)) != -1) {
-                        dos.write(buffer, 0, bytesRead);
-                        totalBytesSent += bytesRead;
+                System.out.println("File upload completed: fileId=" + fileId);
 
-                        // Cập nhật tiến trình
-                        int progressPercent = (int)((totalBytesSent * 100) / fileSize);
-                        progressCallback.accept(progressPercent);
-
-                        // Đọc tiến trình từ server
-                        dis.readInt(); // Bỏ qua giá trị tiến trình từ server
-                    }
-
-                    dos.flush();
-
-                    // Kết thúc upload - đợi thêm thời gian để đảm bảo dữ liệu được truyền đi
-                    try { Thread.sleep(500); } catch (InterruptedException e) {}
-
-                    // Gửi thông báo đã hoàn thành 100%
-                    progressCallback.accept(100);
-
-                    System.out.println("File upload completed: fileId=" + fileId);
+                // Đảm bảo client biết rằng file đã được gửi thành công
+                if (client != null) {
+                    SwingUtilities.invokeLater(() -> {
+                        client.updateFileStatusInChat(fileId, receiver, "Đã gửi thành công");
+                    });
+                }
 
-                    // Đảm bảo client biết rằng file đã được gửi thành công
-                    if (client != null) {
-                        SwingUtilities.invokeLater(() -> {
-                            client.updateFileStatusInChat(fileId, receiver, "Đã gửi thành công");
-                        });
-                    }
+                // Lưu file vừa upload vào thư mục upload
+                try {
+                    String[] uploadName = FileUtil.copyFile(file, ChatClient.defaultUploadFolder);
+                    client.sendMessage(Protocol.format(Protocol.CMD_CHANGE_MESSAGE_ACTUAL_FILENAME_UPLOAD, fileId, uploadName[1]));
 
-                    // Lưu file vừa upload vào thư mục upload
-                    try {
-                        String[] uploadName = FileUtil.copyFile(file, ChatClient.defaultUploadFolder);
-                        client.sendMessage(Protocol.CMD_CHANGE_MESSAGE_ACTUAL_FILENAME_UPLOAD +
-                                fileId + Protocol.PARAM_DELIMITER +
-                                uploadName[1]);
-
-                        client.updateFileMessageComponentPath(fileId, uploadName[0]);
-                    } catch (IIOException e) {
-                        System.err.println("Lỗi khi lưu file đã upload: " + e.getMessage());
-                        e.printStackTrace();
-                    }
+                    client.updateFileMessageComponentPath(fileId, uploadName[0]);
+                } catch (IIOException e) {
+                    System.err.println("Lỗi khi lưu file đã upload: " + e.getMessage());
+                    e.printStackTrace();
                 }
 
-                socket.close();
-
             } catch (Exception e) {
                 e.printStackTrace();
                 progressCallback.accept(-1); // Lỗi
@@ -123,164 +122,421 @@ public class FileTransferClient {
         // Tạo thread mới để upload file
         new Thread(() -> {
             try {
-                Socket socket = new Socket(serverIP, filePort);
-                DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                DataInputStream dis = new DataInputStream(socket.getInputStream());
-
-                // Gửi yêu cầu upload
-                dos.writeUTF("SEND_GROUP");
-                dos.writeUTF(fileId);
-                dos.flush();
-
-                // Đọc phản hồi từ server
-                boolean canProceed = dis.readBoolean();
-                if (!canProceed) {
+                // Gửi dữ liệu file và đợi server xác nhận đã lưu xong
+                if (!upload(fileId, file, true, progressCallback)) {
                     progressCallback.accept(-1); // Lỗi
                     System.out.println("Server refused file upload: fileId=" + fileId);
                     return;
                 }
 
-                // Đọc file và gửi dữ liệu
-                try (FileInputStream fis = new FileInputStream(file)) {
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    long totalBytesSent = 0;
-                    long fileSize = file.length();
+                // Gửi thông báo đã hoàn thành 100%
+                progressCallback.accept(100);
 
-                    while ((bytesRead = fis.read(buffer)) != -1) {
-                        dos.write(buffer, 0, bytesRead);
-                        totalBytesSent += bytesRead;
+                System.out.println("File upload completed: fileId=" + fileId);
 
-                        // Cập nhật tiến trình
-                        int progressPercent = (int)((totalBytesSent * 100) / fileSize);
-                        progressCallback.accept(progressPercent);
+                // Đảm bảo client biết rằng file đã được gửi thành công
+                if (client != null) {
+                    SwingUtilities.invokeLater(() -> {
+                        client.updateFileStatusInChat(fileId, receiver, "Đã gửi thành công");
+                    });
+                }
 
-                        // Đọc tiến trình từ server
-                        dis.readInt(); // Bỏ qua giá trị tiến trình từ server
-                    }
+                // Lưu file vừa upload vào thư mục upload
+                try {
+                    String[] uploadName = FileUtil.copyFile(file, ChatClient.defaultUploadFolder);
+                    client.sendMessage(Protocol.format(Protocol.CMD_CHANGE_MESSAGE_GROUP_ACTUAL_FILENAME_UPLOAD, fileId, uploadName[1], sender));
 
-                    dos.flush();
+                    client.updateFileMessageComponentPath(fileId, uploadName[0]);
+                } catch (IIOException e) {
+                    System.err.println("Lỗi khi lưu file đã upload: " + e.getMessage());
+                    e.printStackTrace();
+                }
 
-                    // Kết thúc upload - đợi thêm thời gian để đảm bảo dữ liệu được truyền đi
-                    try { Thread.sleep(500); } catch (InterruptedException e) {}
+            } catch (Exception e) {
+                e.printStackTrace();
+                progressCallback.accept(-1); // Lỗi
+                System.out.println("Error uploading file: " + e.getMessage());
+            }
+        }).start();
+    }
 
-                    // Gửi thông báo đã hoàn thành 100%
-                    progressCallback.accept(100);
+    private boolean upload(String fileId, File file, boolean group,
+                           Consumer<Integer> progressCallback) throws IOException, InterruptedException {
+        if (UPLOAD_HASH_FIRST && uploadByHash(group ? "UPLOAD_BY_HASH_GROUP" : "UPLOAD_BY_HASH", fileId, file)) {
+            System.out.println("Server already has this content, upload skipped: fileId=" + fileId);
+            return true;
+        }
+        if (UPLOAD_STREAMS > 1 && file.length() >= PARALLEL_UPLOAD_THRESHOLD) {
+            return uploadChunked(group ? "UPLOAD_CHUNKS_GROUP" : "UPLOAD_CHUNKS", fileId, file, progressCallback);
+        }
+        return uploadResumable(group ? "UPLOAD_GROUP" : "UPLOAD", fileId, file, progressCallback);
+    }
 
-                    System.out.println("File upload completed: fileId=" + fileId);
+    // Gửi SHA-256 của file thay cho nội dung. true nếu server đã lưu file từ bản sẵn có; false (kể cả server cũ
+    // không hiểu lệnh, hay mất kết nối) thì upload bình thường.
+    private boolean uploadByHash(String command, String fileId, File file) throws IOException {
+        String sha256 = sha256Of(file);
+        try (Socket socket = new Socket(serverIP, filePort)) {
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            DataInputStream dis = new DataInputStream(socket.getInputStream());
+
+            dos.writeUTF(command);
+            dos.writeUTF(fileId);
+            dos.writeUTF(sha256);
+            dos.flush();
+
+            return dis.readBoolean();
+        } catch (IOException e) {
+            System.out.println("Upload by hash unavailable: " + e.getMessage());
+            return false;
+        }
+    }
 
-                    // Đảm bảo client biết rằng file đã được gửi thành công
-                    if (client != null) {
-                        SwingUtilities.invokeLater(() -> {
-                            client.updateFileStatusInChat(fileId, receiver, "Đã gửi thành công");
-                        });
+    private static String sha256Of(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not supported", e);
+        }
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] buffer = new byte[TRANSFER_BUFFER];
+            int bytesRead;
+            while ((bytesRead = fis.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Upload chia chunk: kết nối đầu tiên hỏi server các chunk đã có và số kết nối nên dùng, rồi mỗi kết nối lấy
+    // chunk còn thiếu từ hàng đợi chung và gửi lần lượt kèm CRC32C. Kết nối đứt thì nối lại và gửi lại chunk đang
+    // dở. Xong khi server báo đã ghép đủ (CHUNK_FILE_DONE, hoặc bitmap đủ khi nối lại). false nếu server từ chối.
+    private boolean uploadChunked(String command, String fileId, File file,
+                                  Consumer<Integer> progressCallback) throws IOException, InterruptedException {
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ChunkJob job = new ChunkJob(command, fileId, source, file.length(), progressCallback);
+
+            ChunkConnection first = ChunkConnection.open(serverIP, filePort, job);
+            if (first == null) {
+                return false;
+            }
+            for (int i = 0; i < job.chunkCount; i++) {
+                if (first.received.get(i)) {
+                    job.sentBytes.addAndGet(job.chunkLength(i));
+                } else {
+                    job.pending.add(i);
+                }
+            }
+            if (job.pending.isEmpty()) {
+                first.finish();
+                return true;
+            }
+
+            int streams = Math.max(1, Math.min(Math.min(UPLOAD_STREAMS, first.suggestedStreams), job.pending.size()));
+            System.out.println("Chunked upload: fileId=" + fileId + ", chunks=" + job.pending.size() + "/" +
+                    job.chunkCount + ", streams=" + streams);
+
+            List<Thread> workers = new ArrayList<>(streams);
+            for (int i = 0; i < streams; i++) {
+                ChunkConnection initial = i == 0 ? first : null;
+                Thread worker = new Thread(() -> {
+                    try {
+                        sendChunks(job, initial);
+                    } catch (Exception e) {
+                        job.failure.compareAndSet(null, e);
                     }
+                });
+                worker.start();
+                workers.add(worker);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
 
-                    // Lưu file vừa upload vào thư mục upload
+            Exception failure = job.failure.get();
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure != null) {
+                throw new IOException(failure);
+            }
+            if (!job.stored.get()) {
+                throw new IOException("Server did not confirm all chunks: fileId=" + fileId);
+            }
+            return true;
+        }
+    }
+
+    // Một kết nối gửi chunk: lấy chunk từ hàng đợi chung tới khi hết hoặc có kết nối khác đã lỗi
+    private void sendChunks(ChunkJob job, ChunkConnection connection) throws IOException, InterruptedException {
+        try {
+            Integer index;
+            while (job.failure.get() == null && !job.stored.get() && (index = job.pending.poll()) != null) {
+                int length = job.chunkLength(index);
+                for (int attempt = 1; ; attempt++) {
                     try {
-                        String[] uploadName = FileUtil.copyFile(file, ChatClient.defaultUploadFolder);
-                        client.sendMessage(Protocol.CMD_CHANGE_MESSAGE_GROUP_ACTUAL_FILENAME_UPLOAD +
-                                fileId + Protocol.PARAM_DELIMITER +
-                                uploadName[1] + Protocol.PARAM_DELIMITER +
-                                sender);
-
-                        client.updateFileMessageComponentPath(fileId, uploadName[0]);
-                    } catch (IIOException e) {
-                        System.err.println("Lỗi khi lưu file đã upload: " + e.getMessage());
-                        e.printStackTrace();
+                        if (connection == null) {
+                            connection = ChunkConnection.open(serverIP, filePort, job);
+                            if (connection == null) {
+                                throw new IOException("Server refused chunk upload: fileId=" + job.fileId);
+                            }
+                            if (connection.received.cardinality() >= job.chunkCount) {
+                                job.stored.set(true);
+                                return;
+                            }
+                            if (connection.received.get(index)) {
+                                // Chunk đã tới server trước khi mất kết nối
+                                job.chunkSent(length);
+                                break;
+                            }
+                        }
+
+                        int status = connection.sendChunk(job, index, length);
+                        if (status == CHUNK_OK || status == CHUNK_FILE_DONE) {
+                            job.chunkSent(length);
+                            if (status == CHUNK_FILE_DONE) {
+                                job.stored.set(true);
+                            }
+                            break;
+                        }
+                        if (status != CHUNK_BAD_CHECKSUM) {
+                            throw new IOException("Server rejected chunk " + index + " (status " + status + ")");
+                        }
+                        System.out.println("Chunk " + index + " checksum mismatch, resending");
+                        if (attempt >= MAX_TRANSFER_ATTEMPTS) {
+                            throw new IOException("Chunk " + index + " failed checksum " + attempt + " times");
+                        }
+                    } catch (IOException e) {
+                        if (connection != null) {
+                            connection.abort();
+                            connection = null;
+                        }
+                        if (attempt >= MAX_TRANSFER_ATTEMPTS) {
+                            throw e;
+                        }
+                        System.out.println("Chunk " + index + " interrupted (attempt " + attempt + "/" +
+                                MAX_TRANSFER_ATTEMPTS + "): " + e.getMessage() + ", retrying");
+                        Thread.sleep(RETRY_DELAY_MS * attempt);
                     }
                 }
+            }
+        } finally {
+            if (connection != null) {
+                connection.finish();
+            }
+        }
+    }
 
-                socket.close();
+    // Trạng thái dùng chung giữa các kết nối của một upload chia chunk
+    private static final class ChunkJob {
+        final String command;
+        final String fileId;
+        final FileChannel source;
+        final long fileSize;
+        final int chunkCount;
+        final Consumer<Integer> progressCallback;
+
+        final Queue<Integer> pending = new ConcurrentLinkedQueue<>();
+        final AtomicLong sentBytes = new AtomicLong();
+        final AtomicInteger lastProgress = new AtomicInteger();
+        final AtomicBoolean stored = new AtomicBoolean();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        ChunkJob(String command, String fileId, FileChannel source, long fileSize, Consumer<Integer> progressCallback) {
+            this.command = command;
+            this.fileId = fileId;
+            this.source = source;
+            this.fileSize = fileSize;
+            this.chunkCount = (int) Math.max(1, (fileSize + UPLOAD_CHUNK_SIZE - 1) / UPLOAD_CHUNK_SIZE);
+            this.progressCallback = progressCallback;
+        }
 
-            } catch (Exception e) {
-                e.printStackTrace();
-                progressCallback.accept(-1); // Lỗi
-                System.out.println("Error uploading file: " + e.getMessage());
+        int chunkLength(int index) {
+            return (int) Math.min(UPLOAD_CHUNK_SIZE, fileSize - (long) index * UPLOAD_CHUNK_SIZE);
+        }
+
+        // Báo tiến trình khi % tăng, dù chunk hoàn thành ở kết nối nào
+        void chunkSent(int length) {
+            long sent = sentBytes.addAndGet(length);
+            int progress = (int) ((sent * 100) / fileSize);
+            int last = lastProgress.get();
+            if (progress > last && progress < 100 && lastProgress.compareAndSet(last, progress)) {
+                progressCallback.accept(progress);
             }
-        }).start();
+        }
     }
 
-    public void downloadFile(String fileId, String sender, String fileName, long fileSize,
-                             String savePath, Consumer<Integer> progressCallback) {
-        System.out.println("Starting download: fileId=" + fileId + ", fileName=" + fileName + ", savePath=" + savePath);
-
-        // Tạo thread mới để download file
-        new Thread(() -> {
-            Socket socket = null;
-            FileOutputStream fos = null;
-            DataInputStream dis = null;
-            DataOutputStream dos = null;
+    // Một kết nối UPLOAD_CHUNKS đã được server chấp nhận
+    private static final class ChunkConnection {
+        final Socket socket;
+        final DataOutputStream dos;
+        final DataInputStream dis;
+        final int suggestedStreams;
+        final BitSet received;
+
+        private ChunkConnection(Socket socket, DataOutputStream dos, DataInputStream dis, int suggestedStreams,
+                                BitSet received) {
+            this.socket = socket;
+            this.dos = dos;
+            this.dis = dis;
+            this.suggestedStreams = suggestedStreams;
+            this.received = received;
+        }
 
+        // null nếu server từ chối
+        static ChunkConnection open(String serverIP, int filePort, ChunkJob job) throws IOException {
+            Socket socket = new Socket(serverIP, filePort);
             try {
-                socket = new Socket(serverIP, filePort);
-                dos = new DataOutputStream(socket.getOutputStream());
-                dis = new DataInputStream(socket.getInputStream());
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), TRANSFER_BUFFER));
+                DataInputStream dis = new DataInputStream(socket.getInputStream());
 
-                // Gửi yêu cầu tải file
-                dos.writeUTF("RECEIVE");
-                dos.writeUTF(fileId);
+                dos.writeUTF(job.command);
+                dos.writeUTF(job.fileId);
+                dos.writeInt(UPLOAD_CHUNK_SIZE);
                 dos.flush();
 
-                System.out.println("Sent download request for fileId: " + fileId);
+                if (!dis.readBoolean()) {
+                    socket.close();
+                    return null;
+                }
+                int suggestedStreams = dis.readInt();
+                byte[] bitmap = new byte[dis.readInt()];
+                dis.readFully(bitmap);
+                return new ChunkConnection(socket, dos, dis, suggestedStreams, BitSet.valueOf(bitmap));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
 
-                // Đọc trạng thái response từ server
-                boolean canDownload = dis.readBoolean();
-                System.out.println("Server response - canDownload: " + canDownload);
+        // Gửi index, length, dữ liệu chunk đọc theo vị trí từ file, rồi CRC32C; trả về phản hồi của server
+        int sendChunk(ChunkJob job, int index, int length) throws IOException {
+            dos.writeInt(index);
+            dos.writeInt(length);
+
+            CRC32C crc = new CRC32C();
+            ByteBuffer buffer = ByteBuffer.allocate(Math.min(TRANSFER_BUFFER, Math.max(length, 1)));
+            long position = (long) index * UPLOAD_CHUNK_SIZE;
+            long end = position + length;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int bytesRead = job.source.read(buffer, position);
+                if (bytesRead == -1) {
+                    throw new EOFException("File shrank while uploading chunk " + index);
+                }
+                crc.update(buffer.array(), 0, bytesRead);
+                dos.write(buffer.array(), 0, bytesRead);
+                position += bytesRead;
+            }
 
-                if (canDownload) {
-                    // Đọc kích thước file thực tế từ server
-                    long actualFileSize = dis.readLong();
-                    System.out.println("Actual file size from server: " + actualFileSize);
+            dos.writeInt((int) crc.getValue());
+            dos.flush();
+            return dis.readUnsignedByte();
+        }
 
-                    // Tạo file output stream với đường dẫn đã chỉ định
-                    fos = new FileOutputStream(savePath);
+        // Báo server kết nối này không gửi thêm chunk
+        void finish() {
+            try {
+                dos.writeInt(-1);
+                dos.flush();
+            } catch (IOException e) {
+                // Server có thể đã đóng kết nối sau chunk cuối
+            }
+            abort();
+        }
 
-                    // Đọc dữ liệu từ socket và ghi vào file
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    long totalBytesRead = 0;
-                    int lastProgress = 0;
+        void abort() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing chunk connection: " + e.getMessage());
+            }
+        }
+    }
 
-                    System.out.println("Starting file data transfer...");
+    // Upload kiểu UPLOAD/UPLOAD_GROUP (bước tiến trình 0). Sau khi đồng ý, server cho biết đã có bao nhiêu byte
+    // của fileId này; mất kết nối thì nối lại và gửi tiếp từ đó. false nếu server từ chối.
+    private boolean uploadResumable(String command, String fileId, File file,
+                                    Consumer<Integer> progressCallback) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try (Socket socket = new Socket(serverIP, filePort)) {
+                DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                DataInputStream dis = new DataInputStream(socket.getInputStream());
 
-                    while (totalBytesRead < actualFileSize) {
-                        bytesRead = dis.read(buffer, 0, (int)Math.min(buffer.length, actualFileSize - totalBytesRead));
+                // Gửi yêu cầu upload
+                dos.writeUTF(command);
+                dos.writeUTF(fileId);
+                dos.writeInt(0); // Không cần khung tiến trình giữa chừng, tiến trình tính ở phía client
+                dos.flush();
 
-                        if (bytesRead == -1) {
-                            System.out.println("Unexpected end of stream. Downloaded: " + totalBytesRead + "/" + actualFileSize);
-                            break;
-                        }
+                // Đọc phản hồi từ server
+                if (!dis.readBoolean()) {
+                    return false;
+                }
+                long offset = dis.readLong();
+                if (offset > 0) {
+                    System.out.println("Resuming upload at byte " + offset + ": fileId=" + fileId);
+                }
 
-                        fos.write(buffer, 0, bytesRead);
-                        totalBytesRead += bytesRead;
+                sendFileData(dos, dis, file, offset, progressCallback);
+                return true;
+            } catch (IOException e) {
+                if (attempt >= MAX_TRANSFER_ATTEMPTS) {
+                    throw e;
+                }
+                System.out.println("Upload interrupted (attempt " + attempt + "/" + MAX_TRANSFER_ATTEMPTS + "): " +
+                        e.getMessage() + ", retrying");
+                Thread.sleep(RETRY_DELAY_MS * attempt);
+            }
+        }
+    }
 
-                        // Cập nhật tiến trình
-                        int progress = (int) ((totalBytesRead * 100) / actualFileSize);
-                        if (progress > lastProgress) {
-                            progressCallback.accept(progress);
-                            lastProgress = progress;
-                            System.out.println("Download progress: " + progress + "% (" + totalBytesRead + "/" + actualFileSize + " bytes)");
-                        }
-                    }
+    // Gửi phần còn lại của file từ offset: không đọc gì từ server trong lúc gửi, chỉ báo tiến trình khi % thay đổi,
+    // rồi đợi khung 100 server gửi khi file đã được lưu.
+    private void sendFileData(DataOutputStream dos, DataInputStream dis, File file, long offset,
+                              Consumer<Integer> progressCallback) throws IOException {
+        long fileSize = file.length();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            fis.getChannel().position(offset);
+            byte[] buffer = new byte[TRANSFER_BUFFER];
+            int bytesRead;
+            long totalBytesSent = offset;
+            int lastProgress = 0;
+
+            while ((bytesRead = fis.read(buffer)) != -1) {
+                dos.write(buffer, 0, bytesRead);
+                totalBytesSent += bytesRead;
+
+                // Cập nhật tiến trình
+                int progressPercent = (int) ((totalBytesSent * 100) / fileSize);
+                if (progressPercent > lastProgress && progressPercent < 100) {
+                    progressCallback.accept(progressPercent);
+                    lastProgress = progressPercent;
+                }
+            }
+        }
+        dos.flush();
 
-                    // Đảm bảo tiến trình 100% khi hoàn thành
-                    if (totalBytesRead >= actualFileSize) {
-                        progressCallback.accept(100);
-                        System.out.println("File download completed successfully: " + fileName);
+        while (dis.readInt() < 100) {
+            // Bỏ qua khung tiến trình trung gian nếu server vẫn gửi
+        }
+    }
 
-                        // Thông báo cho client rằng đã tải xong
-                        if (client != null) {
-                            client.updateFileStatusInChat(fileId, sender, "Đã tải xong");
-                        }
-                    } else {
-                        System.out.println("File download incomplete. Expected: " + actualFileSize + ", Got: " + totalBytesRead);
-                        progressCallback.accept(-1);
-                        if (client != null) {
-                            client.updateFileStatusInChat(fileId, sender, "Lỗi: Tải file không hoàn chỉnh");
-                        }
-                    }
+    public void downloadFile(String fileId, String sender, String fileName, long fileSize,
+                             String savePath, Consumer<Integer> progressCallback) {
+        System.out.println("Starting download: fileId=" + fileId + ", fileName=" + fileName + ", savePath=" + savePath);
 
+        // Tạo thread mới để download file
+        new Thread(() -> {
+            try {
+                if (downloadResumable(fileId, savePath, progressCallback)) {
+                    progressCallback.accept(100);
+                    System.out.println("File download completed successfully: " + fileName);
+
+                    // Thông báo cho client rằng đã tải xong
+                    if (client != null) {
+                        client.updateFileStatusInChat(fileId, sender, "Đã tải xong");
+                    }
                 } else {
                     // Server không thể cung cấp file
                     System.out.println("Server cannot provide file for fileId: " + fileId);
@@ -289,7 +545,12 @@ public class FileTransferClient {
                         client.updateFileStatusInChat(fileId, sender, "Lỗi: Server không thể cung cấp file");
                     }
                 }
-
+            } catch (EOFException e) {
+                System.out.println("File download incomplete: " + e.getMessage());
+                progressCallback.accept(-1);
+                if (client != null) {
+                    client.updateFileStatusInChat(fileId, sender, "Lỗi: Tải file không hoàn chỉnh");
+                }
             } catch (Exception e) {
                 System.err.println("Error downloading file: " + e.getMessage());
                 e.printStackTrace();
@@ -297,25 +558,76 @@ public class FileTransferClient {
                 if (client != null) {
                     client.updateFileStatusInChat(fileId, sender, "Lỗi: " + e.getMessage());
                 }
-            } finally {
-                // Đóng tất cả resources
-                try {
-                    if (fos != null) {
-                        fos.close();
-                    }
-                    if (dis != null) {
-                        dis.close();
-                    }
-                    if (dos != null) {
-                        dos.close();
-                    }
-                    if (socket != null && !socket.isClosed()) {
-                        socket.close();
+            }
+        }).start();
+    }
+
+    // Tải về file tạm cạnh savePath (gắn với fileId, nên lần tải sau của cùng file cũng tiếp tục được), xin server
+    // gửi từ số byte đã có (RECEIVE_FROM); mất kết nối thì nối lại và xin tiếp. Đủ byte mới đổi sang savePath.
+    // false nếu server không cung cấp được file.
+    private boolean downloadResumable(String fileId, String savePath,
+                                      Consumer<Integer> progressCallback) throws IOException, InterruptedException {
+        File partFile = new File(savePath + "." + fileId.replaceAll("[^A-Za-z0-9_-]", "_") + ".part");
+
+        for (int attempt = 1; ; attempt++) {
+            try (Socket socket = new Socket(serverIP, filePort)) {
+                DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                DataInputStream dis = new DataInputStream(socket.getInputStream());
+
+                // Gửi yêu cầu tải file kèm số byte đã có
+                dos.writeUTF("RECEIVE_FROM");
+                dos.writeUTF(fileId);
+                dos.writeLong(partFile.exists() ? partFile.length() : 0);
+                dos.flush();
+
+                // Đọc trạng thái response từ server
+                if (!dis.readBoolean()) {
+                    return false;
+                }
+
+                // Kích thước file thực tế và vị trí server bắt đầu gửi
+                long actualFileSize = dis.readLong();
+                long offset = dis.readLong();
+                if (offset > 0) {
+                    System.out.println("Resuming download at byte " + offset + "/" + actualFileSize + ": fileId=" + fileId);
+                }
+
+                try (RandomAccessFile out = new RandomAccessFile(partFile, "rw")) {
+                    out.setLength(offset);
+                    out.seek(offset);
+
+                    byte[] buffer = new byte[TRANSFER_BUFFER];
+                    long totalBytesRead = offset;
+                    int lastProgress = 0;
+
+                    while (totalBytesRead < actualFileSize) {
+                        int bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, actualFileSize - totalBytesRead));
+                        if (bytesRead == -1) {
+                            throw new EOFException("Downloaded " + totalBytesRead + "/" + actualFileSize + " bytes");
+                        }
+
+                        out.write(buffer, 0, bytesRead);
+                        totalBytesRead += bytesRead;
+
+                        // Cập nhật tiến trình
+                        int progress = (int) ((totalBytesRead * 100) / actualFileSize);
+                        if (progress > lastProgress && progress < 100) {
+                            progressCallback.accept(progress);
+                            lastProgress = progress;
+                        }
                     }
-                } catch (IOException e) {
-                    System.err.println("Error closing resources: " + e.getMessage());
                 }
+
+                Files.move(partFile.toPath(), Paths.get(savePath), StandardCopyOption.REPLACE_EXISTING);
+                return true;
+            } catch (IOException e) {
+                if (attempt >= MAX_TRANSFER_ATTEMPTS) {
+                    throw e;
+                }
+                System.out.println("Download interrupted (attempt " + attempt + "/" + MAX_TRANSFER_ATTEMPTS + "): " +
+                        e.getMessage() + ", retrying");
+                Thread.sleep(RETRY_DELAY_MS * attempt);
             }
-        }).start();
+        }
     }
-}
\ No newline at end of file
+}
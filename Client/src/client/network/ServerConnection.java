@@ -62,70 +62,58 @@ public class ServerConnection implements Runnable {
     }
 
     public void sendPrivateMessage(String receiver, String message) {
-        String formattedMessage = Protocol.CMD_PRIVATE_MSG + receiver +
-                Protocol.PARAM_DELIMITER + message;
+        String formattedMessage = Protocol.format(Protocol.CMD_PRIVATE_MSG, receiver, message);
         System.out.println("Đang gửi tin nhắn riêng đến " + receiver + ": " + message);
         sendMessage(formattedMessage);
     }
 
     public void sendGroupMessage(String groupName, String message) {
-        String formattedMessage = Protocol.CMD_GROUP_MSG + groupName +
-                Protocol.PARAM_DELIMITER + message;
+        String formattedMessage = Protocol.format(Protocol.CMD_GROUP_MSG, groupName, message);
         System.out.println("Đang gửi tin nhắn nhóm đến " + groupName + ": " + message);
         sendMessage(formattedMessage);
     }
 
     public void login(String username, String password) {
-        String message = Protocol.CMD_LOGIN + username +
-                Protocol.PARAM_DELIMITER + password;
+        String message = Protocol.format(Protocol.CMD_LOGIN, username, password);
         System.out.println("Đang gửi tin nhắn đến server: " + message);
-        sendMessage(Protocol.CMD_LOGIN + username + Protocol.PARAM_DELIMITER + password);
+        sendMessage(Protocol.format(Protocol.CMD_LOGIN, username, password));
     }
 
     public void register(String username, String password, String fullName, String email) {
-        sendMessage(Protocol.CMD_REGISTER + username +
-                Protocol.PARAM_DELIMITER + password +
-                Protocol.PARAM_DELIMITER + fullName +
-                Protocol.PARAM_DELIMITER + email);
+        sendMessage(Protocol.format(Protocol.CMD_REGISTER, username, password, fullName, email));
     }
 
     public void getChatHistory(String chatPartner, String chatType, int limit) {
-        sendMessage(Protocol.CMD_GET_CHAT_HISTORY + chatPartner +
-                Protocol.PARAM_DELIMITER + chatType +
-                Protocol.PARAM_DELIMITER + limit);
+        sendMessage(Protocol.format(Protocol.CMD_GET_CHAT_HISTORY, chatPartner, chatType, limit));
     }
 
-    public void loadMoreMessages(String chatPartner, String chatType, long olderThan, int limit) {
-        sendMessage(Protocol.CMD_LOAD_MORE_MESSAGES +
-                chatPartner + Protocol.PARAM_DELIMITER +
-                chatType + Protocol.PARAM_DELIMITER +
-                olderThan + Protocol.PARAM_DELIMITER +
-                limit);
+    // cursor: con trỏ trang do server trả về ở /historyend hoặc /loadmoreend, chuỗi rỗng = trang mới nhất
+    public void loadMoreMessages(String chatPartner, String chatType, String cursor, int limit) {
+        sendMessage(Protocol.format(Protocol.CMD_LOAD_MORE_MESSAGES, chatPartner, chatType, cursor, limit));
     }
 
     public void sendFileRequest(String receiver, String fileName, long fileSize, String fileId) {
         // Nếu có tham số fileId, sử dụng nó để đảm bảo ID nhất quán
-        sendMessage(Protocol.CMD_FILE_SEND + receiver + Protocol.PARAM_DELIMITER +
-                fileName + Protocol.PARAM_DELIMITER + fileSize + Protocol.PARAM_DELIMITER + fileId);
+        sendMessage(Protocol.format(Protocol.CMD_FILE_SEND, receiver, fileName, fileSize, fileId));
     }
 
     public void acceptFileTransfer(String fileId) {
-        sendMessage(Protocol.CMD_FILE_ACCEPT + fileId);
+        sendMessage(Protocol.format(Protocol.CMD_FILE_ACCEPT, fileId));
     }
 
     public void rejectFileTransfer(String fileId) {
-        sendMessage(Protocol.CMD_FILE_REJECT + fileId);
+        sendMessage(Protocol.format(Protocol.CMD_FILE_REJECT, fileId));
     }
 
     public void sendGroupFileRequest(String groupName, String fileName, long fileSize, String fileId) {
         // CMD_GROUP_FILE_SEND groupName|fileName|fileSize|fileId
-        String message = Protocol.CMD_GROUP_FILE_SEND + groupName + Protocol.PARAM_DELIMITER +
-                fileName + Protocol.PARAM_DELIMITER + fileSize + Protocol.PARAM_DELIMITER + fileId;
+        String message = Protocol.format(Protocol.CMD_GROUP_FILE_SEND, groupName, fileName, fileSize, fileId);
         sendMessage(message);
     }
 
-    public void getOnlineUsers() {
-        sendMessage(Protocol.CMD_ONLINE_USERS);
+    // version: phiên bản danh sách online đã có, 0 nếu chưa có (server trả về toàn bộ danh sách)
+    public void getOnlineUsers(long version) {
+        sendMessage(Protocol.CMD_ONLINE_USERS + " " + version);
     }
 
     public void exit() {
@@ -0,0 +1,229 @@
+package db;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Pool connection SQLite có giới hạn. Connection được mở dần khi cần (tối đa size), trả về pool khi DAO gọi close().
+// Connection để rảnh quá lâu được kiểm tra bằng isValid() trước khi cho mượn, hỏng thì mở cái mới thay thế.
+class ConnectionPool {
+    private static final long VALIDATE_AFTER_IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int VALIDATE_TIMEOUT_SECONDS = 2;
+
+    private final String name;
+    private final String url;
+    private final int size;
+    private final long borrowTimeoutNanos;
+    private final StorageProfile profile;
+    private final BlockingQueue<PooledConnection> idle;
+    private final AtomicInteger opened = new AtomicInteger();
+    private final long createdAt = System.nanoTime();
+
+    // Thống kê
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private final LongAdder replaced = new LongAdder();
+
+    private volatile boolean closed = false;
+
+    ConnectionPool(String name, String url, int size, long borrowTimeoutMs, StorageProfile profile) {
+        this.name = name;
+        this.url = url;
+        this.size = size;
+        this.borrowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMs);
+        this.idle = new ArrayBlockingQueue<>(size);
+        this.profile = profile;
+    }
+
+    private static class PooledConnection {
+        final Connection connection;
+        long lastUsed = System.nanoTime();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Pool " + name + " đã đóng");
+        }
+
+        long start = System.nanoTime();
+        PooledConnection pooled = idle.poll();
+        if (pooled == null) {
+            pooled = openIfBelowLimit();
+        }
+        if (pooled == null) {
+            waits.increment();
+            try {
+                pooled = idle.poll(borrowTimeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Bị ngắt khi chờ connection từ pool " + name, e);
+            }
+            if (pooled == null) {
+                timeouts.increment();
+                throw new SQLException("Hết thời gian chờ connection từ pool " + name +
+                        " (" + TimeUnit.NANOSECONDS.toMillis(borrowTimeoutNanos) + " ms)");
+            }
+        }
+
+        long waited = System.nanoTime() - start;
+        waitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+        try {
+            pooled = validate(pooled);
+        } catch (SQLException e) {
+            // Không mở lại được: trả chỗ trống cho lần mượn sau
+            opened.decrementAndGet();
+            throw e;
+        }
+
+        borrows.increment();
+        inUse.incrementAndGet();
+        return wrap(pooled);
+    }
+
+    private PooledConnection openIfBelowLimit() throws SQLException {
+        while (true) {
+            int current = opened.get();
+            if (current >= size) {
+                return null;
+            }
+            if (opened.compareAndSet(current, current + 1)) {
+                try {
+                    return open();
+                } catch (SQLException e) {
+                    opened.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // Mở connection mới và áp dụng các PRAGMA theo từng connection của profile lưu trữ
+    private PooledConnection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        try {
+            profile.applyTo(connection);
+        } catch (SQLException e) {
+            closeQuietly(connection);
+            throw e;
+        }
+        return new PooledConnection(connection);
+    }
+
+    private PooledConnection validate(PooledConnection pooled) throws SQLException {
+        boolean stale = System.nanoTime() - pooled.lastUsed >= VALIDATE_AFTER_IDLE_NANOS;
+        if (!pooled.connection.isClosed() && (!stale || pooled.connection.isValid(VALIDATE_TIMEOUT_SECONDS))) {
+            return pooled;
+        }
+
+        replaced.increment();
+        System.err.println("Connection trong pool " + name + " không còn dùng được, mở connection mới");
+        closeQuietly(pooled.connection);
+        return open();
+    }
+
+    // DAO dùng connection như bình thường; close() trả connection về pool (chỉ lần đầu có tác dụng)
+    private Connection wrap(PooledConnection pooled) {
+        long borrowedAt = System.nanoTime();
+        AtomicBoolean returned = new AtomicBoolean(false);
+
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close" -> {
+                            if (returned.compareAndSet(false, true)) {
+                                busyNanos.add(System.nanoTime() - borrowedAt);
+                                release(pooled);
+                            }
+                            return null;
+                        }
+                        case "isClosed" -> {
+                            if (returned.get()) {
+                                return true;
+                            }
+                        }
+                        default -> {
+                            if (returned.get() && method.getDeclaringClass() != Object.class) {
+                                throw new SQLException("Connection đã được trả về pool " + name);
+                            }
+                        }
+                    }
+
+                    try {
+                        return method.invoke(pooled.connection, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    private void release(PooledConnection pooled) {
+        inUse.decrementAndGet();
+        try {
+            // Giao dịch dang dở không được để lại cho người mượn sau
+            if (!pooled.connection.isClosed() && !pooled.connection.getAutoCommit()) {
+                pooled.connection.rollback();
+                pooled.connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.err.println("Lỗi khi trả connection về pool " + name + ": " + e.getMessage());
+            closeQuietly(pooled.connection);
+        }
+
+        if (closed) {
+            closeQuietly(pooled.connection);
+            opened.decrementAndGet();
+            return;
+        }
+
+        pooled.lastUsed = System.nanoTime();
+        idle.offer(pooled);
+    }
+
+    void close() {
+        closed = true;
+        PooledConnection pooled;
+        while ((pooled = idle.poll()) != null) {
+            closeQuietly(pooled.connection);
+            opened.decrementAndGet();
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            System.err.println("Lỗi khi đóng connection: " + e.getMessage());
+        }
+    }
+
+    // Một dòng thống kê: số lần mượn, số lần phải chờ, thời gian chờ, mức sử dụng (thời gian bị mượn / tổng thời gian của cả pool)
+    String report() {
+        long count = borrows.sum();
+        double avgWaitMs = count == 0 ? 0 : waitNanos.sum() / 1_000_000.0 / count;
+        double utilization = 100.0 * busyNanos.sum() / ((double) (System.nanoTime() - createdAt) * size);
+        return String.format("%-8s kích thước %d, đã mở %d, đang mượn %d, mượn %d, phải chờ %d, hết giờ %d, " +
+                        "chờ TB %.3f ms, chờ max %.3f ms, sử dụng %.1f%%, thay thế %d",
+                name, size, opened.get(), inUse.get(), count, waits.sum(), timeouts.sum(),
+                avgWaitMs, maxWaitNanos.get() / 1_000_000.0, utilization, replaced.sum());
+    }
+}
@@ -1,11 +1,27 @@
 package db;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.sql.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DatabaseManager {
     private static final String DB_URL = "jdbc:sqlite:database/chatapp.db";
     private static boolean initialized = false;
 
+    // SQLite chỉ cho một connection ghi tại một thời điểm: mọi thao tác ghi dùng chung một connection (xếp hàng
+    // trong tiến trình thay vì đụng SQLITE_BUSY), các truy vấn chỉ đọc dùng pool riêng
+    private static int readerPoolSize = 4;
+    private static long borrowTimeoutMs = 5000;
+    private static StorageProfile storageProfile = StorageProfile.named("balanced");
+    private static volatile ConnectionPool writerPool;
+    private static volatile ConnectionPool readerPool;
+
+    // Chẩn đoán cho chế độ virtual thread: lệnh gọi SQLite (JNI) giữ chặt carrier thread trong suốt
+    // thời gian mượn connection. -1 nghĩa là tắt.
+    private static volatile long carrierHoldThresholdNanos = -1;
+    private static final AtomicLong slowCarrierHolds = new AtomicLong();
+
     public static void initDatabase() {
         if (initialized) {
             return;
@@ -21,7 +37,12 @@ public class DatabaseManager {
                             meta.getDriverName());
                 }
 
+                // journal_mode được lưu trong file database nên chỉ cần đặt một lần khi khởi động
+                String journalMode = storageProfile.applyJournalMode(conn);
+                System.out.println("Profile lưu trữ: " + storageProfile + ", journal_mode thực tế: " + journalMode);
+
                 createTablesIfNotExist(conn);
+                applyMigrations(conn);
                 initialized = true;
             }
         }  catch (ClassNotFoundException e) {
@@ -112,7 +133,195 @@ public class DatabaseManager {
         }
     }
 
+    // Các migration theo thứ tự, phiên bản = vị trí trong mảng + 1: phần tử đầu là mô tả, còn lại là các câu lệnh.
+    // Chỉ thêm vào cuối, không sửa hay xóa migration đã phát hành (database cũ đã ghi nhận phiên bản của chúng).
+    private static final String[][] MIGRATIONS = {
+            {"Index lịch sử nhóm và tên file thực tế theo người dùng",
+                    "CREATE INDEX IF NOT EXISTS idx_messages_group_history " +
+                            "ON messages(receiver, is_group, timestamp)",
+                    "CREATE INDEX IF NOT EXISTS idx_group_actual_filename_file " +
+                            "ON message_group_actual_filename(file_id, username)"},
+            {"Index lịch sử chat riêng",
+                    "CREATE INDEX IF NOT EXISTS idx_messages_private_history " +
+                            "ON messages(sender, receiver, timestamp)"},
+            {"Index tra cứu theo file_id và file theo người gửi/nhận",
+                    "CREATE INDEX IF NOT EXISTS idx_messages_file_id ON messages(file_id)",
+                    "CREATE INDEX IF NOT EXISTS idx_files_sender ON files(sender, timestamp)",
+                    "CREATE INDEX IF NOT EXISTS idx_files_receiver ON files(receiver, timestamp)"},
+            {"Index nhóm của một người dùng",
+                    "CREATE INDEX IF NOT EXISTS idx_group_members_username ON group_members(username, group_name)"},
+            // Phải khớp với MessageDAO.conversationId(): min/max trong SQLite so sánh theo byte UTF-8,
+            // length() đếm theo ký tự
+            {"Khóa hội thoại conversation_id cho lịch sử chat",
+                    "ALTER TABLE messages ADD COLUMN conversation_id TEXT",
+                    "UPDATE messages SET conversation_id = CASE WHEN is_group " +
+                            "THEN 'g:' || receiver " +
+                            "ELSE 'p:' || length(min(sender, receiver)) || ':' || " +
+                            "min(sender, receiver) || max(sender, receiver) END",
+                    "CREATE INDEX IF NOT EXISTS idx_messages_conversation ON messages(conversation_id, id)",
+                    // Lịch sử riêng và nhóm đều đọc theo conversation_id, hai index cũ chỉ còn làm chậm INSERT
+                    "DROP INDEX IF EXISTS idx_messages_private_history",
+                    "DROP INDEX IF EXISTS idx_messages_group_history"},
+            // Mỗi nội dung lưu một lần trong file_storage/blobs; ref_count = số dòng files trỏ tới blob
+            {"Kho file theo nội dung: bảng blobs và cột files.sha256",
+                    "CREATE TABLE IF NOT EXISTS blobs (" +
+                            "sha256 TEXT PRIMARY KEY, " +
+                            "size BIGINT NOT NULL, " +
+                            "storage_path TEXT NOT NULL, " +
+                            "ref_count INTEGER NOT NULL, " +
+                            "created_at BIGINT NOT NULL" +
+                            ")",
+                    "ALTER TABLE files ADD COLUMN sha256 TEXT"},
+    };
+
+    // Nâng cấp database cũ tại chỗ: chạy các migration chưa áp dụng, mỗi migration trong một giao dịch
+    private static void applyMigrations(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (" +
+                    "version INTEGER PRIMARY KEY, " +
+                    "description TEXT NOT NULL, " +
+                    "applied_at INTEGER NOT NULL" +
+                    ")");
+        }
+
+        int current = 0;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            if (rs.next()) {
+                current = rs.getInt(1);
+            }
+        }
+
+        if (current > MIGRATIONS.length) {
+            System.err.println("Database có phiên bản schema " + current + " mới hơn server (" +
+                    MIGRATIONS.length + ")");
+            return;
+        }
+
+        for (int version = current + 1; version <= MIGRATIONS.length; version++) {
+            String[] migration = MIGRATIONS[version - 1];
+            conn.setAutoCommit(false);
+            try {
+                try (Statement stmt = conn.createStatement()) {
+                    for (int i = 1; i < migration.length; i++) {
+                        stmt.execute(migration[i]);
+                    }
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(
+                        "INSERT INTO schema_version (version, description, applied_at) VALUES (?, ?, ?)")) {
+                    pstmt.setInt(1, version);
+                    pstmt.setString(2, migration[0]);
+                    pstmt.setLong(3, System.currentTimeMillis());
+                    pstmt.executeUpdate();
+                }
+                conn.commit();
+                System.out.println("Đã áp dụng migration " + version + ": " + migration[0]);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+
+        // Cập nhật thống kê cho query planner mỗi lần khởi động (không chỉ sau migration): thống kê lấy khi bảng còn
+        // vài dòng làm planner chọn quét cả bảng thay vì dùng index. 0x10000 = xét mọi bảng, SQLite chỉ phân tích lại
+        // bảng mới thêm index hoặc có số dòng đã thay đổi nhiều
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA optimize=0x10002");
+        }
+        System.out.println("Phiên bản schema: " + MIGRATIONS.length);
+    }
+
+    // Gọi trước initDatabase() để đổi kích thước pool đọc và thời gian chờ tối đa khi mượn connection
+    public static synchronized void configurePool(int readers, long timeoutMs) {
+        readerPoolSize = Math.max(1, readers);
+        borrowTimeoutMs = timeoutMs;
+    }
+
+    // Gọi trước initDatabase() để chọn profile lưu trữ (WAL, synchronous, mmap, cache, busy timeout)
+    public static synchronized void configureStorage(StorageProfile profile) {
+        storageProfile = profile;
+    }
+
+    private static synchronized void createPoolsIfNeeded() {
+        if (writerPool == null) {
+            writerPool = new ConnectionPool("ghi", DB_URL, 1, borrowTimeoutMs, storageProfile);
+            readerPool = new ConnectionPool("đọc", DB_URL, readerPoolSize, borrowTimeoutMs, storageProfile);
+        }
+    }
+
+    // Connection cho thao tác ghi (INSERT/UPDATE/DELETE, giao dịch); close() trả connection về pool
     public static Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(DB_URL);
+        if (writerPool == null) {
+            createPoolsIfNeeded();
+        }
+        return borrow(writerPool);
+    }
+
+    // Connection cho truy vấn chỉ đọc
+    public static Connection getReadConnection() throws SQLException {
+        if (readerPool == null) {
+            createPoolsIfNeeded();
+        }
+        return borrow(readerPool);
+    }
+
+    private static Connection borrow(ConnectionPool pool) throws SQLException {
+        Connection conn = pool.borrow();
+        if (carrierHoldThresholdNanos >= 0 && Thread.currentThread().isVirtual()) {
+            return trackCarrierHold(conn);
+        }
+        return conn;
+    }
+
+    public static String poolReport() {
+        if (writerPool == null) {
+            return "Pool connection chưa được tạo";
+        }
+        return writerPool.report() + "\n" + readerPool.report();
+    }
+
+    public static synchronized void closePools() {
+        if (writerPool != null) {
+            writerPool.close();
+            readerPool.close();
+        }
+    }
+
+    public static void enableVirtualThreadDiagnostics(long thresholdMs) {
+        carrierHoldThresholdNanos = thresholdMs * 1_000_000L;
+    }
+
+    public static long getSlowCarrierHoldCount() {
+        return slowCarrierHolds.get();
+    }
+
+    // Đo thời gian từ lúc mượn tới lúc đóng connection trên virtual thread và ghi log khi vượt ngưỡng
+    private static Connection trackCarrierHold(Connection conn) {
+        String caller = StackWalker.getInstance().walk(frames -> frames
+                .filter(f -> !f.getClassName().equals(DatabaseManager.class.getName()))
+                .findFirst()
+                .map(f -> f.getClassName() + "." + f.getMethodName())
+                .orElse("không rõ"));
+        long start = System.nanoTime();
+
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("close")) {
+                        long elapsed = System.nanoTime() - start;
+                        if (elapsed >= carrierHoldThresholdNanos) {
+                            slowCarrierHolds.incrementAndGet();
+                            System.err.println("Virtual thread giữ carrier " + (elapsed / 1_000_000) +
+                                    " ms trong SQLite tại " + caller);
+                        }
+                    }
+
+                    try {
+                        return method.invoke(conn, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
     }
 }
@@ -2,11 +2,21 @@ package db;
 
 import model.FileInfo;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
 
 public class FileDAO {
+    // Kho file theo nội dung: mỗi nội dung (SHA-256) lưu một lần, bảng blobs đếm số dòng files dùng chung nó.
+    // Mọi thay đổi blob (thêm file, xóa file, gom file cũ) giữ khóa này từ lúc kiểm tra file trên đĩa tới khi
+    // commit, để không xóa một blob đúng lúc upload khác vừa thấy nó còn tồn tại.
+    private static final Object BLOB_LOCK = new Object();
+
     public static boolean saveFileInfo(FileInfo fileInfo) {
         String sql = "INSERT INTO files (id, sender, receiver, file_name, file_size, storage_path, timestamp) " +
                 "VALUES (?, ?, ?, ?, ?, ?, ?)";
@@ -33,7 +43,7 @@ public class FileDAO {
     public static FileInfo getFileInfoById(String fileId) {
         String sql = "SELECT * FROM files WHERE id = ?";
 
-        try (Connection conn = DatabaseManager.getConnection();
+        try (Connection conn = DatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, fileId);
@@ -48,6 +58,7 @@ public class FileDAO {
                     fileInfo.setFileSize(rs.getLong("file_size"));
                     fileInfo.setStoragePath(rs.getString("storage_path"));
                     fileInfo.setTimestamp(new Date(rs.getLong("timestamp")));
+                    fileInfo.setSha256(rs.getString("sha256"));
                     return fileInfo;
                 }
             }
@@ -65,7 +76,7 @@ public class FileDAO {
         String sql = "SELECT * FROM files WHERE sender = ? ORDER BY timestamp DESC";
         List<FileInfo> files = new ArrayList<>();
 
-        try (Connection conn = DatabaseManager.getConnection();
+        try (Connection conn = DatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, sender);
@@ -80,6 +91,7 @@ public class FileDAO {
                     fileInfo.setFileSize(rs.getLong("file_size"));
                     fileInfo.setStoragePath(rs.getString("storage_path"));
                     fileInfo.setTimestamp(new Date(rs.getLong("timestamp")));
+                    fileInfo.setSha256(rs.getString("sha256"));
                     files.add(fileInfo);
                 }
             }
@@ -97,7 +109,7 @@ public class FileDAO {
         String sql = "SELECT * FROM files WHERE receiver = ? ORDER BY timestamp DESC";
         List<FileInfo> files = new ArrayList<>();
 
-        try (Connection conn = DatabaseManager.getConnection();
+        try (Connection conn = DatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, receiver);
@@ -112,6 +124,7 @@ public class FileDAO {
                     fileInfo.setFileSize(rs.getLong("file_size"));
                     fileInfo.setStoragePath(rs.getString("storage_path"));
                     fileInfo.setTimestamp(new Date(rs.getLong("timestamp")));
+                    fileInfo.setSha256(rs.getString("sha256"));
                     files.add(fileInfo);
                 }
             }
@@ -130,7 +143,7 @@ public class FileDAO {
                 "ORDER BY timestamp DESC";
         List<FileInfo> files = new ArrayList<>();
 
-        try (Connection conn = DatabaseManager.getConnection();
+        try (Connection conn = DatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, user1);
@@ -148,6 +161,7 @@ public class FileDAO {
                     fileInfo.setFileSize(rs.getLong("file_size"));
                     fileInfo.setStoragePath(rs.getString("storage_path"));
                     fileInfo.setTimestamp(new Date(rs.getLong("timestamp")));
+                    fileInfo.setSha256(rs.getString("sha256"));
                     files.add(fileInfo);
                 }
             }
@@ -160,31 +174,319 @@ public class FileDAO {
         return files;
     }
 
-    // Xóa file theo ID
+    // Xóa file theo ID. File trong kho theo nội dung chỉ bị xóa khỏi đĩa khi không còn dòng files nào trỏ tới blob
     public static boolean deleteFile(String fileId) {
-        // Lấy thông tin file trước khi xóa
-        FileInfo fileInfo = getFileInfoById(fileId);
-        if (fileInfo != null) {
-            // Xóa file vật lý
-            java.io.File file = new java.io.File(fileInfo.getStoragePath());
-            if (file.exists()) {
-                file.delete();
+        synchronized (BLOB_LOCK) {
+            // Lấy thông tin file trước khi xóa
+            FileInfo fileInfo = getFileInfoById(fileId);
+            if (fileInfo != null && fileInfo.getSha256() != null) {
+                return deleteBlobReference(fileInfo);
+            }
+            if (fileInfo != null) {
+                // Xóa file vật lý
+                java.io.File file = new java.io.File(fileInfo.getStoragePath());
+                if (file.exists()) {
+                    file.delete();
+                }
+            }
+
+            String sql = "DELETE FROM files WHERE id = ?";
+
+            try (Connection conn = DatabaseManager.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+                pstmt.setString(1, fileId);
+                int rowsAffected = pstmt.executeUpdate();
+                return rowsAffected > 0;
+
+            } catch (SQLException e) {
+                System.err.println("Lỗi khi xóa file: " + e.getMessage());
+                e.printStackTrace();
+                return false;
             }
         }
+    }
 
-        String sql = "DELETE FROM files WHERE id = ?";
+    // Lưu file vừa nhận xong (received) với nội dung fileInfo.getSha256(). Nếu blob đã có trên đĩa thì bỏ file vừa
+    // nhận và trỏ tới blob đó, không thì đổi tên file vừa nhận thành blob tại fileInfo.getStoragePath().
+    public static boolean saveFileWithBlob(FileInfo fileInfo, Path received) {
+        synchronized (BLOB_LOCK) {
+            Path blobPath = Paths.get(fileInfo.getStoragePath());
+            boolean created = false;
+            try {
+                String existing = getBlobPath(fileInfo.getSha256());
+                if (existing != null && Files.exists(Paths.get(existing))) {
+                    fileInfo.setStoragePath(existing);
+                    Files.deleteIfExists(received);
+                    System.out.println("Nội dung file " + fileInfo.getId() + " đã có trong kho, dùng lại " + existing);
+                } else {
+                    Files.createDirectories(blobPath.getParent());
+                    Files.move(received, blobPath, StandardCopyOption.REPLACE_EXISTING);
+                    created = true;
+                }
+            } catch (IOException e) {
+                System.err.println("Lỗi khi đưa file vào kho: " + e.getMessage());
+                return false;
+            }
 
-        try (Connection conn = DatabaseManager.getConnection();
+            boolean saved = insertFileWithBlob(fileInfo);
+            if (!saved && created && getBlobPath(fileInfo.getSha256()) == null) {
+                // Blob mới tạo nhưng không ghi được database: không để lại file không ai trỏ tới
+                try {
+                    Files.deleteIfExists(blobPath);
+                } catch (IOException e) {
+                    System.err.println("Lỗi khi xóa blob thừa " + blobPath + ": " + e.getMessage());
+                }
+            }
+            return saved;
+        }
+    }
+
+    // Lưu file mà không nhận nội dung: client chỉ gửi SHA-256. Chỉ dùng lại blob mà chính người gửi
+    // (fileInfo.getSender()) đã từng upload: biết SHA-256 không chứng minh có nội dung, nên không được phép trỏ tới
+    // blob của người khác rồi tải nó xuống. false nếu không có blob như vậy với đúng kích thước
+    // fileInfo.getFileSize(), hoặc file blob đã mất trên đĩa.
+    public static boolean saveFileWithExistingBlob(FileInfo fileInfo) {
+        String sql = "SELECT b.storage_path FROM blobs b WHERE b.sha256 = ? AND b.size = ? " +
+                "AND EXISTS (SELECT 1 FROM files f WHERE f.sender = ? AND f.sha256 = b.sha256)";
+
+        synchronized (BLOB_LOCK) {
+            String storagePath = null;
+            try (Connection conn = DatabaseManager.getReadConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setString(1, fileInfo.getSha256());
+                pstmt.setLong(2, fileInfo.getFileSize());
+                pstmt.setString(3, fileInfo.getSender());
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        storagePath = rs.getString("storage_path");
+                    }
+                }
+            } catch (SQLException e) {
+                System.err.println("Lỗi khi tìm blob: " + e.getMessage());
+                e.printStackTrace();
+                return false;
+            }
+
+            if (storagePath == null || !Files.exists(Paths.get(storagePath))) {
+                return false;
+            }
+            fileInfo.setStoragePath(storagePath);
+            return insertFileWithBlob(fileInfo);
+        }
+    }
+
+    // Đường dẫn blob theo SHA-256, null nếu kho chưa có
+    public static String getBlobPath(String sha256) {
+        String sql = "SELECT storage_path FROM blobs WHERE sha256 = ?";
+
+        try (Connection conn = DatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, sha256);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getString("storage_path") : null;
+            }
+        } catch (SQLException e) {
+            System.err.println("Lỗi khi tìm blob: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-            pstmt.setString(1, fileId);
-            int rowsAffected = pstmt.executeUpdate();
-            return rowsAffected > 0;
+    // Các file lưu trước khi có kho theo nội dung (chưa có sha256)
+    public static List<FileInfo> getFilesWithoutHash() {
+        String sql = "SELECT * FROM files WHERE sha256 IS NULL";
+        List<FileInfo> files = new ArrayList<>();
+
+        try (Connection conn = DatabaseManager.getReadConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql);
+             ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                FileInfo fileInfo = new FileInfo();
+                fileInfo.setId(rs.getString("id"));
+                fileInfo.setSender(rs.getString("sender"));
+                fileInfo.setReceiver(rs.getString("receiver"));
+                fileInfo.setFileName(rs.getString("file_name"));
+                fileInfo.setFileSize(rs.getLong("file_size"));
+                fileInfo.setStoragePath(rs.getString("storage_path"));
+                fileInfo.setTimestamp(new Date(rs.getLong("timestamp")));
+                files.add(fileInfo);
+            }
+        } catch (SQLException e) {
+            System.err.println("Lỗi khi lấy danh sách file chưa có SHA-256: " + e.getMessage());
+            e.printStackTrace();
+        }
+
+        return files;
+    }
+
+    // Đưa một file cũ vào kho: chép sang blobPath nếu kho chưa có nội dung sha256, trỏ dòng files tới blob, rồi xóa
+    // bản cũ khi không còn dòng nào dùng đường dẫn đó. Chép thay vì đổi tên để dừng giữa chừng lúc nào database
+    // cũng trỏ tới một file còn tồn tại.
+    public static boolean adoptLegacyFile(FileInfo fileInfo, String sha256, Path blobPath) {
+        synchronized (BLOB_LOCK) {
+            Path legacyPath = Paths.get(fileInfo.getStoragePath());
+            try {
+                String existing = getBlobPath(sha256);
+                if (existing != null && Files.exists(Paths.get(existing))) {
+                    blobPath = Paths.get(existing);
+                } else {
+                    Files.createDirectories(blobPath.getParent());
+                    Files.copy(legacyPath, blobPath, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                System.err.println("Lỗi khi chép file " + legacyPath + " vào kho: " + e.getMessage());
+                return false;
+            }
+
+            String blobSql = "INSERT OR IGNORE INTO blobs (sha256, size, storage_path, ref_count, created_at) " +
+                    "VALUES (?, ?, ?, 0, ?)";
+            String refSql = "UPDATE blobs SET ref_count = ref_count + 1 WHERE sha256 = ?";
+            String fileSql = "UPDATE files SET sha256 = ?, storage_path = ? WHERE id = ? AND sha256 IS NULL";
+            String usedSql = "SELECT 1 FROM files WHERE storage_path = ? LIMIT 1";
+            boolean legacyStillUsed;
+
+            try (Connection conn = DatabaseManager.getConnection()) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement pstmt = conn.prepareStatement(blobSql)) {
+                    pstmt.setString(1, sha256);
+                    pstmt.setLong(2, Files.size(blobPath));
+                    pstmt.setString(3, blobPath.toString());
+                    pstmt.setLong(4, System.currentTimeMillis());
+                    pstmt.executeUpdate();
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(fileSql)) {
+                    pstmt.setString(1, sha256);
+                    pstmt.setString(2, blobPath.toString());
+                    pstmt.setString(3, fileInfo.getId());
+                    if (pstmt.executeUpdate() == 0) {
+                        conn.rollback();
+                        return false;
+                    }
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(refSql)) {
+                    pstmt.setString(1, sha256);
+                    pstmt.executeUpdate();
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(usedSql)) {
+                    pstmt.setString(1, fileInfo.getStoragePath());
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        legacyStillUsed = rs.next();
+                    }
+                }
+                conn.commit();
+            } catch (SQLException | IOException e) {
+                // Giao dịch dang dở được rollback khi connection trả về pool
+                System.err.println("Lỗi khi đưa file " + fileInfo.getId() + " vào kho: " + e.getMessage());
+                e.printStackTrace();
+                return false;
+            }
+
+            if (!legacyStillUsed && !legacyPath.equals(blobPath)) {
+                try {
+                    Files.deleteIfExists(legacyPath);
+                } catch (IOException e) {
+                    System.err.println("Lỗi khi xóa bản cũ " + legacyPath + ": " + e.getMessage());
+                }
+            }
+            fileInfo.setSha256(sha256);
+            fileInfo.setStoragePath(blobPath.toString());
+            return true;
+        }
+    }
 
+    // Thêm dòng files trỏ tới blob fileInfo.getStoragePath() và tăng ref_count trong cùng một giao dịch
+    private static boolean insertFileWithBlob(FileInfo fileInfo) {
+        String blobSql = "INSERT OR IGNORE INTO blobs (sha256, size, storage_path, ref_count, created_at) " +
+                "VALUES (?, ?, ?, 0, ?)";
+        String refSql = "UPDATE blobs SET ref_count = ref_count + 1 WHERE sha256 = ?";
+        String fileSql = "INSERT INTO files (id, sender, receiver, file_name, file_size, storage_path, timestamp, sha256) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+        try (Connection conn = DatabaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(blobSql)) {
+                pstmt.setString(1, fileInfo.getSha256());
+                pstmt.setLong(2, fileInfo.getFileSize());
+                pstmt.setString(3, fileInfo.getStoragePath());
+                pstmt.setLong(4, System.currentTimeMillis());
+                pstmt.executeUpdate();
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(refSql)) {
+                pstmt.setString(1, fileInfo.getSha256());
+                pstmt.executeUpdate();
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(fileSql)) {
+                pstmt.setString(1, fileInfo.getId());
+                pstmt.setString(2, fileInfo.getSender());
+                pstmt.setString(3, fileInfo.getReceiver());
+                pstmt.setString(4, fileInfo.getFileName());
+                pstmt.setLong(5, fileInfo.getFileSize());
+                pstmt.setString(6, fileInfo.getStoragePath());
+                pstmt.setLong(7, fileInfo.getTimestamp().getTime());
+                pstmt.setString(8, fileInfo.getSha256());
+                pstmt.executeUpdate();
+            }
+            conn.commit();
+            return true;
+        } catch (SQLException e) {
+            // Giao dịch dang dở được rollback khi connection trả về pool
+            System.err.println("Lỗi khi lưu thông tin file: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Xóa dòng files và giảm ref_count; blob về 0 thì xóa cả dòng blobs lẫn file trên đĩa (sau khi commit)
+    private static boolean deleteBlobReference(FileInfo fileInfo) {
+        String fileSql = "DELETE FROM files WHERE id = ?";
+        String refSql = "UPDATE blobs SET ref_count = ref_count - 1 WHERE sha256 = ?";
+        String countSql = "SELECT ref_count, storage_path FROM blobs WHERE sha256 = ?";
+        String blobSql = "DELETE FROM blobs WHERE sha256 = ?";
+        String orphanPath = null;
+
+        try (Connection conn = DatabaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(fileSql)) {
+                pstmt.setString(1, fileInfo.getId());
+                if (pstmt.executeUpdate() == 0) {
+                    conn.rollback();
+                    return false;
+                }
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(refSql)) {
+                pstmt.setString(1, fileInfo.getSha256());
+                pstmt.executeUpdate();
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(countSql)) {
+                pstmt.setString(1, fileInfo.getSha256());
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next() && rs.getInt("ref_count") <= 0) {
+                        orphanPath = rs.getString("storage_path");
+                    }
+                }
+            }
+            if (orphanPath != null) {
+                try (PreparedStatement pstmt = conn.prepareStatement(blobSql)) {
+                    pstmt.setString(1, fileInfo.getSha256());
+                    pstmt.executeUpdate();
+                }
+            }
+            conn.commit();
         } catch (SQLException e) {
+            // Giao dịch dang dở được rollback khi connection trả về pool
             System.err.println("Lỗi khi xóa file: " + e.getMessage());
             e.printStackTrace();
             return false;
         }
+
+        if (orphanPath != null) {
+            try {
+                Files.deleteIfExists(Paths.get(orphanPath));
+            } catch (IOException e) {
+                System.err.println("Lỗi khi xóa blob " + orphanPath + ": " + e.getMessage());
+            }
+        }
+        return true;
     }
-}
\ No newline at end of file
+}
@@ -1,31 +1,77 @@
 package db;
 
+import model.GroupSummary;
+
 import java.sql.*;
 import java.util.*;
 
 public class GroupDAO {
+    // Thành viên các nhóm trong bộ nhớ, null = chưa nạp (mọi truy vấn đi thẳng vào database)
+    private static volatile GroupMembershipCache membershipCache;
+
+    // Các thao tác ghi giữ khóa này từ lúc ghi database tới khi cập nhật cache, để hai thay đổi cùng lúc trên một nhóm
+    // không để cache khác database. Ghi vốn đã tuần tự trên connection ghi duy nhất nên không mất thêm gì
+    private static final Object WRITE_LOCK = new Object();
+
+    // Nạp toàn bộ thành viên nhóm vào bộ nhớ; từ đó kiểm tra nhóm/thành viên không còn truy vấn database
+    public static void loadMembershipCache() {
+        synchronized (WRITE_LOCK) {
+            try (Connection conn = DatabaseManager.getReadConnection()) {
+                membershipCache = GroupMembershipCache.load(conn);
+                System.out.println("Đã nạp thành viên của " + membershipCache.size() + " nhóm vào bộ nhớ");
+            } catch (SQLException e) {
+                System.err.println("Lỗi khi nạp thành viên nhóm: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
 
     // Tạo nhóm mới
     public static boolean createGroup(String groupName, String creator) {
-        String sql = "INSERT INTO groups(name, creator, created_at) VALUES(?, ?, ?)";
+        synchronized (WRITE_LOCK) {
+            boolean created = insertGroup(groupName, creator);
+            GroupMembershipCache cache = membershipCache;
+            if (created && cache != null) {
+                cache.groupCreated(groupName, creator);
+            }
+            return created;
+        }
+    }
 
-        try (Connection conn = DatabaseManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    private static boolean insertGroup(String groupName, String creator) {
+        String sql = "INSERT INTO groups(name, creator, created_at) VALUES(?, ?, ?)";
+        String memberSql = "INSERT OR IGNORE INTO group_members(group_name, username, joined_at) VALUES(?, ?, ?)";
 
-            pstmt.setString(1, groupName);
-            pstmt.setString(2, creator);
-            pstmt.setLong(3, System.currentTimeMillis());
+        // Tạo nhóm và thêm người tạo trong cùng một giao dịch trên connection ghi
+        // (gọi addMemberToGroup ở đây sẽ phải chờ chính connection ghi đang giữ)
+        try (Connection conn = DatabaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            long now = System.currentTimeMillis();
 
-            int rowsAffected = pstmt.executeUpdate();
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setString(1, groupName);
+                pstmt.setString(2, creator);
+                pstmt.setLong(3, now);
 
-            if (rowsAffected > 0) {
-                // Thêm người tạo nhóm vào danh sách thành viên
-                return addMemberToGroup(groupName, creator);
+                if (pstmt.executeUpdate() == 0) {
+                    conn.rollback();
+                    return false;
+                }
             }
 
-            return false;
+            // Thêm người tạo nhóm vào danh sách thành viên
+            try (PreparedStatement pstmt = conn.prepareStatement(memberSql)) {
+                pstmt.setString(1, groupName);
+                pstmt.setString(2, creator);
+                pstmt.setLong(3, now);
+
+                int rowsAffected = pstmt.executeUpdate();
+                conn.commit();
+                return rowsAffected > 0;
+            }
 
         } catch (SQLException e) {
+            // Giao dịch dang dở được rollback khi connection trả về pool
             System.err.println("Lỗi khi tạo nhóm: " + e.getMessage());
             e.printStackTrace();
             return false;
@@ -34,9 +80,14 @@ public class GroupDAO {
 
     // Kiểm tra xem nhóm có tồn tại không
     public static boolean groupExists(String groupName) {
+        GroupMembershipCache cache = membershipCache;
+        if (cache != null) {
+            return cache.exists(groupName);
+        }
+
         String sql = "SELECT COUNT(*) FROM groups WHERE name = ?";
 
-        try (Connection conn = DatabaseManager.getConnection();
+        try (Connection conn = DatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, groupName);
@@ -57,6 +108,17 @@ public class GroupDAO {
 
     // Thêm thành viên vào nhóm
     public static boolean addMemberToGroup(String groupName, String username) {
+        synchronized (WRITE_LOCK) {
+            boolean added = insertMember(groupName, username);
+            GroupMembershipCache cache = membershipCache;
+            if (added && cache != null) {
+                cache.memberAdded(groupName, username);
+            }
+            return added;
+        }
+    }
+
+    private static boolean insertMember(String groupName, String username) {
         String sql = "INSERT OR IGNORE INTO group_members(group_name, username, joined_at) VALUES(?, ?, ?)";
 
         try (Connection conn = DatabaseManager.getConnection();
@@ -78,6 +140,17 @@ public class GroupDAO {
 
     // Xóa thành viên khỏi nhóm
     public static boolean removeMemberFromGroup(String groupName, String username) {
+        synchronized (WRITE_LOCK) {
+            boolean removed = deleteMember(groupName, username);
+            GroupMembershipCache cache = membershipCache;
+            if (removed && cache != null) {
+                cache.memberRemoved(groupName, username);
+            }
+            return removed;
+        }
+    }
+
+    private static boolean deleteMember(String groupName, String username) {
         String sql = "DELETE FROM group_members WHERE group_name = ? AND username = ?";
 
         try (Connection conn = DatabaseManager.getConnection();
@@ -98,9 +171,14 @@ public class GroupDAO {
 
     // Kiểm tra xem user có phải là thành viên của nhóm không
     public static boolean isGroupMember(String groupName, String username) {
+        GroupMembershipCache cache = membershipCache;
+        if (cache != null) {
+            return cache.isMember(groupName, username);
+        }
+
         String sql = "SELECT COUNT(*) FROM group_members WHERE group_name = ? AND username = ?";
 
-        try (Connection conn = DatabaseManager.getConnection();
+        try (Connection conn = DatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, groupName);
@@ -120,13 +198,18 @@ public class GroupDAO {
         return false;
     }
 
-    // Lấy danh sách thành viên của nhóm
+    // Lấy danh sách thành viên của nhóm (khi có cache: danh sách dùng chung, không được sửa)
     public static List<String> getGroupMembers(String groupName) {
+        GroupMembershipCache cache = membershipCache;
+        if (cache != null) {
+            return cache.members(groupName);
+        }
+
         String sql = "SELECT username FROM group_members WHERE group_name = ? ORDER BY joined_at";
 
         List<String> members = new ArrayList<>();
 
-        try (Connection conn = DatabaseManager.getConnection();
+        try (Connection conn = DatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, groupName);
@@ -145,27 +228,42 @@ public class GroupDAO {
         return members;
     }
 
-    // Lấy danh sách nhóm mà user tham gia
-    public static List<Map<String, Object>> getUserGroups(String username) {
-        String sql = "SELECT g.name, g.creator, g.created_at FROM groups g " +
-                "INNER JOIN group_members gm ON g.name = gm.group_name " +
-                "WHERE gm.username = ? " +
-                "ORDER BY g.created_at DESC";
+    // Lấy danh sách nhóm mà user tham gia (mới tạo trước) cùng người tạo và toàn bộ thành viên, trong một truy vấn:
+    // các dòng của cùng một nhóm đứng liền nhau nên chỉ cần duyệt một lượt
+    public static List<GroupSummary> getUserGroups(String username) {
+        String sql = "SELECT g.name, g.creator, m.username FROM group_members AS mine " +
+                "INNER JOIN groups AS g ON g.name = mine.group_name " +
+                "INNER JOIN group_members AS m ON m.group_name = g.name " +
+                "WHERE mine.username = ? " +
+                "ORDER BY g.created_at DESC, g.name, m.joined_at";
 
-        List<Map<String, Object>> groups = new ArrayList<>();
+        List<GroupSummary> groups = new ArrayList<>();
 
-        try (Connection conn = DatabaseManager.getConnection();
+        try (Connection conn = DatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, username);
 
             try (ResultSet rs = pstmt.executeQuery()) {
+                String currentName = null;
+                String currentCreator = null;
+                List<String> members = null;
+
                 while (rs.next()) {
-                    Map<String, Object> group = new HashMap<>();
-                    group.put("name", rs.getString("name"));
-                    group.put("creator", rs.getString("creator"));
-                    group.put("created_at", rs.getLong("created_at"));
-                    groups.add(group);
+                    String name = rs.getString(1);
+                    if (!name.equals(currentName)) {
+                        if (currentName != null) {
+                            groups.add(new GroupSummary(currentName, currentCreator, members));
+                        }
+                        currentName = name;
+                        currentCreator = rs.getString(2);
+                        members = new ArrayList<>();
+                    }
+                    members.add(rs.getString(3));
+                }
+
+                if (currentName != null) {
+                    groups.add(new GroupSummary(currentName, currentCreator, members));
                 }
             }
 
@@ -181,7 +279,7 @@ public class GroupDAO {
     public static Map<String, Object> getGroupInfo(String groupName) {
         String sql = "SELECT * FROM groups WHERE name = ?";
 
-        try (Connection conn = DatabaseManager.getConnection();
+        try (Connection conn = DatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, groupName);
@@ -210,6 +308,17 @@ public class GroupDAO {
 
     // Xóa nhóm
     public static boolean deleteGroup(String groupName) {
+        synchronized (WRITE_LOCK) {
+            boolean deleted = deleteGroupRows(groupName);
+            GroupMembershipCache cache = membershipCache;
+            if (deleted && cache != null) {
+                cache.groupDeleted(groupName);
+            }
+            return deleted;
+        }
+    }
+
+    private static boolean deleteGroupRows(String groupName) {
         String sql1 = "DELETE FROM group_members WHERE group_name = ?";
         String sql2 = "DELETE FROM groups WHERE name = ?";
 
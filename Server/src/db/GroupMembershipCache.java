@@ -0,0 +1,104 @@
+package db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Bản sao trong bộ nhớ của bảng groups/group_members: tên nhóm -> danh sách thành viên bất biến.
+// Nạp toàn bộ một lần khi khởi động; GroupDAO cập nhật ngay sau mỗi lần ghi thành công nên nhóm không có trong map
+// là nhóm không tồn tại. Đọc không khóa; mỗi thay đổi thay cả danh sách của nhóm bằng bản mới (copy-on-write).
+class GroupMembershipCache {
+    private final Map<String, Members> groups = new ConcurrentHashMap<>();
+
+    private static final class Members {
+        // Theo thứ tự tham gia (joined_at), giống truy vấn getGroupMembers
+        final List<String> ordered;
+        final Set<String> lookup;
+
+        Members(List<String> ordered) {
+            this.ordered = Collections.unmodifiableList(ordered);
+            this.lookup = Collections.unmodifiableSet(new HashSet<>(ordered));
+        }
+
+        Members with(String username) {
+            List<String> next = new ArrayList<>(ordered.size() + 1);
+            next.addAll(ordered);
+            next.add(username);
+            return new Members(next);
+        }
+
+        Members without(String username) {
+            List<String> next = new ArrayList<>(ordered);
+            next.remove(username);
+            return new Members(next);
+        }
+    }
+
+    static GroupMembershipCache load(Connection conn) throws SQLException {
+        String sql = "SELECT g.name, gm.username FROM groups g " +
+                "LEFT JOIN group_members gm ON gm.group_name = g.name " +
+                "ORDER BY g.name, gm.joined_at";
+
+        Map<String, List<String>> loaded = new LinkedHashMap<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                List<String> members = loaded.computeIfAbsent(rs.getString(1), name -> new ArrayList<>());
+                String username = rs.getString(2);
+                if (username != null) {
+                    members.add(username);
+                }
+            }
+        }
+
+        GroupMembershipCache cache = new GroupMembershipCache();
+        loaded.forEach((name, members) -> cache.groups.put(name, new Members(members)));
+        return cache;
+    }
+
+    boolean exists(String groupName) {
+        return groups.containsKey(groupName);
+    }
+
+    boolean isMember(String groupName, String username) {
+        Members members = groups.get(groupName);
+        return members != null && members.lookup.contains(username);
+    }
+
+    // Danh sách không sửa được, dùng chung giữa các lần gọi
+    List<String> members(String groupName) {
+        Members members = groups.get(groupName);
+        return members != null ? members.ordered : Collections.emptyList();
+    }
+
+    int size() {
+        return groups.size();
+    }
+
+    void groupCreated(String groupName, String creator) {
+        groups.put(groupName, new Members(List.of(creator)));
+    }
+
+    void memberAdded(String groupName, String username) {
+        groups.computeIfPresent(groupName,
+                (name, members) -> members.lookup.contains(username) ? members : members.with(username));
+    }
+
+    void memberRemoved(String groupName, String username) {
+        groups.computeIfPresent(groupName,
+                (name, members) -> members.lookup.contains(username) ? members.without(username) : members);
+    }
+
+    void groupDeleted(String groupName) {
+        groups.remove(groupName);
+    }
+}
@@ -1,16 +1,83 @@
 package db;
 
+import model.MessageRecord;
+
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class MessageDAO {
+    // Ghi tin nhắn theo lô (write-behind), null = ghi đồng bộ từng tin
+    private static volatile MessageWriteQueue writeQueue;
+
+    public static synchronized void startWriteBehind(int batchSize, long flushMs, int capacity) {
+        if (writeQueue == null) {
+            writeQueue = new MessageWriteQueue(batchSize, flushMs, capacity);
+        }
+    }
+
+    // Ghi hết các tin nhắn đang chờ rồi dừng; các lần lưu sau đó chạy đồng bộ
+    public static synchronized void stopWriteBehind() {
+        MessageWriteQueue queue = writeQueue;
+        if (queue != null) {
+            writeQueue = null;
+            queue.stop();
+        }
+    }
+
+    public static String writeBehindReport() {
+        MessageWriteQueue queue = writeQueue;
+        return queue != null ? queue.report() : "Ghi tin nhắn theo lô: tắt";
+    }
+
+    // Lưu tin nhắn văn bản không chặn handler; future hoàn thành (true/false) khi tin nhắn đã được commit
+    public static CompletableFuture<Boolean> saveTextMessageAsync(String sender, String receiver, String content,
+                                                                  String type, boolean isGroup, long timestamp) {
+        MessageWriteQueue queue = writeQueue;
+        if (queue == null) {
+            return CompletableFuture.completedFuture(
+                    saveTextMessage(sender, receiver, content, type, isGroup, timestamp));
+        }
+        return queue.submitText(sender, receiver, content, type, isGroup, timestamp);
+    }
+
+    public static CompletableFuture<Boolean> saveFileMessageAsync(String sender, String receiver, String fileId,
+                                                                  String fileName, long fileSize, String type,
+                                                                  boolean isGroup, long timestamp) {
+        MessageWriteQueue queue = writeQueue;
+        if (queue == null) {
+            return CompletableFuture.completedFuture(
+                    saveFileMessage(sender, receiver, fileId, fileName, fileSize, type, isGroup, timestamp));
+        }
+        return queue.submitFile(sender, receiver, fileId, fileName, fileSize, type, isGroup, timestamp);
+    }
+
+    // Khóa hội thoại lưu trên mỗi tin nhắn: "g:" + tên nhóm, hoặc "p:" + cặp người dùng đã sắp xếp
+    // (độ dài tên đầu tiên làm tiền tố để hai cặp khác nhau không bao giờ ghép ra cùng một chuỗi).
+    // Thứ tự so sánh theo byte UTF-8 giống min()/max() của SQLite trong migration điền dữ liệu cũ.
+    public static String conversationId(String sender, String receiver, boolean isGroup) {
+        if (isGroup) {
+            return "g:" + receiver;
+        }
+
+        String first = sender;
+        String second = receiver;
+        if (Arrays.compareUnsigned(sender.getBytes(StandardCharsets.UTF_8),
+                receiver.getBytes(StandardCharsets.UTF_8)) > 0) {
+            first = receiver;
+            second = sender;
+        }
+        return "p:" + first.codePointCount(0, first.length()) + ":" + first + second;
+    }
+
     public static boolean saveTextMessage(String sender, String receiver, String content, String type,
                                        boolean isGroup, long timestamp) {
         String sql = "INSERT INTO messages (sender, receiver, content, type, message_type, " +
-                "is_group, timestamp) VALUES (?, ?, ?, ?, 'text', ?, ?)";
+                "is_group, timestamp, conversation_id) VALUES (?, ?, ?, ?, 'text', ?, ?, ?)";
 
         try (Connection conn = DatabaseManager.getConnection();
         PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -20,6 +87,7 @@ public class MessageDAO {
             pstmt.setString(4, type);
             pstmt.setBoolean(5, isGroup);
             pstmt.setLong(6, timestamp);
+            pstmt.setString(7, conversationId(sender, receiver, isGroup));
 
             int rowsAffected = pstmt.executeUpdate();
             return rowsAffected > 0;
@@ -34,8 +102,8 @@ public class MessageDAO {
                                           String fileName, long fileSize, String type,
                                           boolean isGroup, long timestamp) {
         String sql = "INSERT INTO messages (sender, receiver, type, message_type, " +
-                "is_group, timestamp, file_id, file_name, file_size) " +
-                "VALUES (?, ?, ?, 'file', ?, ?, ?, ?, ?)";
+                "is_group, timestamp, file_id, file_name, file_size, conversation_id) " +
+                "VALUES (?, ?, ?, 'file', ?, ?, ?, ?, ?, ?)";
 
         try (Connection conn = DatabaseManager.getConnection();
             PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -48,6 +116,7 @@ public class MessageDAO {
             pstmt.setString(6, fileId);
             pstmt.setString(7, fileName);
             pstmt.setLong(8, fileSize);
+            pstmt.setString(9, conversationId(sender, receiver, isGroup));
 
             int rowsAffected = pstmt.executeUpdate();
             return rowsAffected > 0;
@@ -58,51 +127,33 @@ public class MessageDAO {
         }
     }
 
-    public static List<Object[]> getChatHistory(String user1, String user2, boolean isGroup, int limit) {
-        List<Object[]> messages = new ArrayList<>();
-        String sql = getChatHistorySql(isGroup, false);
+    public static List<MessageRecord> getChatHistory(String user1, String user2, boolean isGroup, int limit) {
+        return getMessagePage(user1, user2, isGroup, Long.MAX_VALUE, false, limit);
+    }
 
-        try (Connection conn = DatabaseManager.getConnection();
-            PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            if (isGroup) {
-                pstmt.setString(1, user2); // username for group messages
-                pstmt.setString(2, user1); // group name
-                pstmt.setBoolean(3, true);
-                pstmt.setInt(4, limit);
-            } else {
-                pstmt.setString(1, user1);
-                pstmt.setString(2, user2);
-                pstmt.setString(3, user2);
-                pstmt.setString(4, user1);
-                pstmt.setBoolean(5, false);
-                pstmt.setInt(6, limit);
-            }
+    // Một trang lịch sử theo id tin nhắn (keyset): newer = false lấy các tin có id < anchorId (mới nhất trước),
+    // newer = true lấy các tin có id > anchorId (cũ nhất trước). Kết quả luôn theo thứ tự tăng dần,
+    // mỗi trang là một lần seek trên index (conversation_id, id) nên không bỏ sót hay lặp tin cùng mili giây.
+    public static List<MessageRecord> getMessagePage(String user1, String user2, boolean isGroup,
+                                                     long anchorId, boolean newer, int limit) {
+        List<MessageRecord> messages = new ArrayList<>(limit);
+        String sql = getChatHistorySql(isGroup, newer ? "M.id > ?" : "M.id < ?", newer ? "ASC" : "DESC");
 
-            try (ResultSet rs = pstmt.executeQuery()) {
-                while (rs.next()) {
-                    Object[] messageData = new Object[11];
-                    messageData[0] = rs.getLong("id");
-                    messageData[1] = rs.getString("sender");
-                    messageData[2] = rs.getString("receiver");
-                    messageData[3] = rs.getString("content");
-                    messageData[4] = rs.getString("message_type");
-                    messageData[5] = rs.getLong("timestamp");
-                    messageData[6] = rs.getString("file_id");
-                    messageData[7] = rs.getString("file_name");
-                    messageData[8] = rs.getLong("file_size");
-                    messageData[9] = rs.getString("actual_filename_save");
-                    messageData[10] = rs.getString("actual_filename_upload");
-
-                    messages.add(messageData);
-                }
-            }
+        try (Connection conn = DatabaseManager.getReadConnection();
+            PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            int index = bindConversation(pstmt, user1, user2, isGroup);
+            pstmt.setLong(index++, anchorId);
+            pstmt.setInt(index, limit);
+            readHistoryRows(pstmt, messages);
         } catch (SQLException e) {
             System.err.println("Lỗi khi lấy lịch sử trò chuyện: " + e.getMessage());
             e.printStackTrace();
         }
 
-        // Đảo ngược danh sách để hiển thị theo thứ tự thời gian tăng dần
-        Collections.reverse(messages);
+        if (!newer) {
+            // Đảo ngược danh sách để hiển thị theo thứ tự thời gian tăng dần
+            Collections.reverse(messages);
+        }
 
         return messages;
     }
@@ -124,6 +175,34 @@ public class MessageDAO {
         }
     }
 
+    // Một dòng tên file thực tế cho mỗi thành viên nhóm, tất cả trong một giao dịch (một lần commit cho cả nhóm)
+    public static boolean saveMessageGroupActualFilenames(String fileId, List<String> usernames) {
+        if (usernames.isEmpty()) {
+            return true;
+        }
+
+        String sql = "INSERT INTO message_group_actual_filename (file_id, username) VALUES (?, ?)";
+        try (Connection conn = DatabaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                for (String username : usernames) {
+                    pstmt.setString(1, fileId);
+                    pstmt.setString(2, username);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+            }
+            conn.commit();
+            System.out.println("Lưu tên file cho " + usernames.size() + " thành viên nhóm thành công.");
+            return true;
+        } catch (SQLException e) {
+            // Giao dịch dang dở được rollback khi connection trả về pool
+            System.err.println("Lỗi khi lưu tên file cho thành viên nhóm: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
     public static void updateActualFilenameSaveInMessageGroupFileName(String newFileName, String fileId, String username) {
         String sql = "UPDATE message_group_actual_filename SET actual_filename_save = ? " +
                      "WHERE file_id = ? AND username = ?";
@@ -220,193 +299,94 @@ public class MessageDAO {
         }
     }
 
-    public static List<Object[]> getOlderMessages(String user1, String user2, boolean isGroup,
-                                                  long olderThan, int limit) {
-        List<Object[]> messages = new ArrayList<>();
-        String sql = getChatHistorySql(isGroup, true);
+    // Tin nhắn cũ hơn một timestamp (client cũ chưa dùng con trỏ), theo thứ tự thời gian tăng dần
+    public static List<MessageRecord> getOlderMessages(String user1, String user2, boolean isGroup,
+                                                       long olderThan, int limit) {
+        List<MessageRecord> messages = new ArrayList<>(limit);
+        String sql = getChatHistorySql(isGroup, "M.timestamp < ?", "DESC");
 
-        try (Connection conn = DatabaseManager.getConnection();
+        try (Connection conn = DatabaseManager.getReadConnection();
             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            if (isGroup) {
-                pstmt.setString(1, user2); // username for group messages
-                pstmt.setString(2, user1); // group name
-                pstmt.setBoolean(3, true);
-                pstmt.setLong(4, olderThan);
-                pstmt.setInt(5, limit);
-            } else {
-                pstmt.setString(1, user1);
-                pstmt.setString(2, user2);
-                pstmt.setString(3, user2);
-                pstmt.setString(4, user1);
-                pstmt.setBoolean(5, false);
-                pstmt.setLong(6, olderThan);
-                pstmt.setInt(7, limit);
-            }
-
-            try (ResultSet rs = pstmt.executeQuery()) {
-                while (rs.next()) {
-                    Object[] messageData = new Object[11];
-                    messageData[0] = rs.getLong("id");
-                    messageData[1] = rs.getString("sender");
-                    messageData[2] = rs.getString("receiver");
-                    messageData[3] = rs.getString("content");
-                    messageData[4] = rs.getString("message_type");
-                    messageData[5] = rs.getLong("timestamp");
-                    messageData[6] = rs.getString("file_id");
-                    messageData[7] = rs.getString("file_name");
-                    messageData[8] = rs.getLong("file_size");
-                    messageData[9] = rs.getString("actual_filename_save");
-                    messageData[10] = rs.getString("actual_filename_upload");
-
-                    messages.add(messageData);
-                }
-            }
+            int index = bindConversation(pstmt, user1, user2, isGroup);
+            pstmt.setLong(index++, olderThan);
+            pstmt.setInt(index, limit);
+            readHistoryRows(pstmt, messages);
         } catch (SQLException e) {
             System.err.println("Lỗi khi lấy tin nhắn cũ hơn: " + e.getMessage());
             e.printStackTrace();
         }
 
+        Collections.reverse(messages);
+
         return messages;
     }
 
-    public static boolean deletePrivateHistory(String user1, String user2) {
-        String sql = "DELETE FROM messages WHERE " +
-                "((sender = ? AND receiver = ?) OR (sender = ? AND receiver = ?)) " +
-                "AND type = 'private'";
-
-        try (Connection conn = DatabaseManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setString(1, user1);
-            pstmt.setString(2, user2);
-            pstmt.setString(3, user2);
-            pstmt.setString(4, user1);
-
-            int rowsAffected = pstmt.executeUpdate();
-            return rowsAffected > 0;
-
-        } catch (SQLException e) {
-            System.err.println("Lỗi khi xóa lịch sử trò chuyện: " + e.getMessage());
-            e.printStackTrace();
-            return false;
+    // Gán tham số username (chỉ với nhóm, cho bảng tên file thực tế) và conversation_id; trả về vị trí tham số tiếp theo
+    private static int bindConversation(PreparedStatement pstmt, String user1, String user2, boolean isGroup)
+            throws SQLException {
+        int index = 1;
+        if (isGroup) {
+            pstmt.setString(index++, user2); // username for group messages
         }
+        // Với nhóm user1 là tên nhóm
+        pstmt.setString(index++, isGroup ? conversationId(null, user1, true) : conversationId(user1, user2, false));
+        return index;
     }
 
-    public static List<Map<String, Object>> getOlderPrivateMessages(String user1, String user2, long olderThan, int limit) {
-        String sql = "SELECT * FROM messages WHERE " +
-                "((sender = ? AND receiver = ?) OR (sender = ? AND receiver = ?)) " +
-                "AND type = 'private' AND timestamp < ? " +
-                "ORDER BY timestamp DESC LIMIT ?";
-
-        List<Map<String, Object>> messages = new ArrayList<>();
-
-        try (Connection conn = DatabaseManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setString(1, user1);
-            pstmt.setString(2, user2);
-            pstmt.setString(3, user2);
-            pstmt.setString(4, user1);
-            pstmt.setLong(5, olderThan);
-            pstmt.setInt(6, limit);
-
-            try (ResultSet rs = pstmt.executeQuery()) {
-                while (rs.next()) {
-                    Map<String, Object> message = new HashMap<>();
-                    message.put("id", rs.getInt("id"));
-                    message.put("sender", rs.getString("sender"));
-                    message.put("receiver", rs.getString("receiver"));
-                    message.put("content", rs.getString("content"));
-                    message.put("timestamp", rs.getLong("timestamp"));
-                    messages.add(message);
-                }
+    // Cột theo đúng thứ tự SELECT của getChatHistorySql, đọc theo vị trí thay vì tên cột
+    private static void readHistoryRows(PreparedStatement pstmt, List<MessageRecord> messages) throws SQLException {
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                messages.add(new MessageRecord(
+                        rs.getLong(1),          // id
+                        rs.getString(2),        // sender
+                        rs.getString(3),        // receiver
+                        rs.getString(4),        // content
+                        rs.getString(5),        // message_type
+                        rs.getLong(6),          // timestamp
+                        rs.getString(7),        // file_id
+                        rs.getString(8),        // file_name
+                        rs.getLong(9),          // file_size
+                        rs.getString(10),       // actual_filename_save
+                        rs.getString(11)));     // actual_filename_upload
             }
-
-            Collections.reverse(messages); // Để hiển thị theo thứ tự thời gian tăng dần
-
-        } catch (SQLException e) {
-            System.err.println("Lỗi khi lấy tin nhắn riêng tư cũ hơn: " + e.getMessage());
-            e.printStackTrace();
         }
-
-        // Đảo ngược danh sách để hiển thị theo thứ tự thời gian tăng dần
-        Collections.reverse(messages);
-
-        return messages;
     }
 
-    public static List<Map<String, Object>> getOlderGroupMessages(String groupName, long olderThan, int limit) {
-        String sql = "SELECT * FROM messages WHERE receiver = ? AND type = 'group' " +
-                "AND timestamp < ? ORDER BY timestamp DESC LIMIT ?";
-
-        List<Map<String, Object>> messages = new ArrayList<>();
+    public static boolean deletePrivateHistory(String user1, String user2) {
+        String sql = "DELETE FROM messages WHERE conversation_id = ?";
 
         try (Connection conn = DatabaseManager.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
-            pstmt.setString(1, groupName);
-            pstmt.setLong(2, olderThan);
-            pstmt.setInt(3, limit);
-
-            try (ResultSet rs = pstmt.executeQuery()) {
-                while (rs.next()) {
-                    Map<String, Object> message = new HashMap<>();
-                    message.put("id", rs.getInt("id"));
-                    message.put("sender", rs.getString("sender"));
-                    message.put("receiver", rs.getString("receiver"));
-                    message.put("content", rs.getString("content"));
-                    message.put("timestamp", rs.getLong("timestamp"));
-                    messages.add(message);
-                }
-            }
+            pstmt.setString(1, conversationId(user1, user2, false));
 
-            Collections.reverse(messages);
+            int rowsAffected = pstmt.executeUpdate();
+            return rowsAffected > 0;
 
         } catch (SQLException e) {
-            System.err.println("Lỗi khi lấy tin nhắn nhóm cũ hơn: " + e.getMessage());
+            System.err.println("Lỗi khi xóa lịch sử trò chuyện: " + e.getMessage());
             e.printStackTrace();
+            return false;
         }
-
-        return messages;
     }
 
-    private static String getChatHistorySql(boolean isGroup, boolean withTimestamp) {
+    // Cả hai loại lịch sử là một lần quét index (conversation_id, id); id tăng theo thứ tự ghi
+    private static String getChatHistorySql(boolean isGroup, String condition, String order) {
         String sql;
 
-        if (!withTimestamp) {
-            if (isGroup) {
-                sql = "SELECT M.id, M.sender, M.receiver, M.content, M.message_type, M.timestamp, " +
-                        "M.file_id, M.file_name, M.file_size, T.actual_filename_save, T.actual_filename_upload " +
-                        "FROM messages AS M " +
-                        "LEFT JOIN message_group_actual_filename AS T ON M.file_id = T.file_id " +
-                        "AND T.username = ? " +
-                        "WHERE M.receiver = ? AND M.is_group = ? " +
-                        "ORDER BY M.timestamp DESC LIMIT ?";
-            } else {
-                sql = "SELECT id, sender, receiver, content, message_type, timestamp, " +
-                        "file_id, file_name, file_size, actual_filename_save, actual_filename_upload FROM messages " +
-                        "WHERE (sender = ? AND receiver = ?) OR (sender = ? AND receiver = ?) " +
-                        "AND is_group = ? " +
-                        "ORDER BY timestamp DESC LIMIT ?";
-            }
+        if (isGroup) {
+            sql = "SELECT M.id, M.sender, M.receiver, M.content, M.message_type, M.timestamp, " +
+                    "M.file_id, M.file_name, M.file_size, T.actual_filename_save, T.actual_filename_upload " +
+                    "FROM messages AS M " +
+                    "LEFT JOIN message_group_actual_filename AS T ON M.file_id = T.file_id " +
+                    "AND T.username = ? ";
         } else {
-            if (isGroup) {
-                sql = "SELECT M.id, M.sender, M.receiver, M.content, M.message_type, M.timestamp, " +
-                        "M.file_id, M.file_name, M.file_size, T.actual_filename_save, T.actual_filename_upload " +
-                        "FROM messages AS M " +
-                        "LEFT JOIN message_group_actual_filename AS T ON M.file_id = T.file_id " +
-                        "AND T.username = ? " +
-                        "WHERE M.receiver = ? AND M.is_group = ? AND M.timestamp < ? " +
-                        "ORDER BY M.timestamp DESC LIMIT ?";
-            } else {
-                sql = "SELECT id, sender, receiver, content, message_type, timestamp, " +
-                        "file_id, file_name, file_size, actual_filename_save, actual_filename_upload FROM messages " +
-                        "WHERE ((sender = ? AND receiver = ?) OR (sender = ? AND receiver = ?)) " +
-                        "AND is_group = ? AND timestamp < ? " +
-                        "ORDER BY timestamp DESC LIMIT ?";
-            }
+            sql = "SELECT M.id, M.sender, M.receiver, M.content, M.message_type, M.timestamp, " +
+                    "M.file_id, M.file_name, M.file_size, M.actual_filename_save, M.actual_filename_upload " +
+                    "FROM messages AS M ";
         }
 
-        return sql;
+        return sql + "WHERE M.conversation_id = ? AND " + condition + " ORDER BY M.id " + order + " LIMIT ?";
     }
 }
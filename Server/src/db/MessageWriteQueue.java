@@ -0,0 +1,238 @@
+package db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Ghi tin nhắn kiểu write-behind: các handler xếp lệnh INSERT vào hàng đợi và nhận CompletableFuture,
+// một thread nền gom chúng thành giao dịch theo lô (đủ batchSize hoặc sau flushMs kể từ tin đầu tiên)
+// nên mỗi lô chỉ tốn một lần commit/fsync thay vì mỗi tin nhắn một lần.
+// Future hoàn thành với true sau khi lô đã commit (đã bền), false nếu không lưu được.
+// Tin nhắn được ghi đúng thứ tự xếp hàng.
+class MessageWriteQueue {
+    private static final String TEXT_SQL = "INSERT INTO messages (sender, receiver, content, type, message_type, " +
+            "is_group, timestamp, conversation_id) VALUES (?, ?, ?, ?, 'text', ?, ?, ?)";
+    private static final String FILE_SQL = "INSERT INTO messages (sender, receiver, type, message_type, " +
+            "is_group, timestamp, file_id, file_name, file_size, conversation_id) " +
+            "VALUES (?, ?, ?, 'file', ?, ?, ?, ?, ?, ?)";
+
+    private final BlockingQueue<PendingInsert> queue;
+    private final int batchSize;
+    private final long flushNanos;
+    private final Thread writer;
+    private volatile boolean running = true;
+    // submit giữ khóa đọc từ lúc kiểm tra running tới khi đã xếp hàng, stop() giữ khóa ghi khi tắt running: tin nào
+    // đã qua kiểm tra thì chắc chắn nằm trong hàng đợi trước khi thread ghi và lần dọn cuối của stop() thấy nó trống
+    private final ReadWriteLock lifecycle = new ReentrantReadWriteLock();
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder failedRows = new LongAdder();
+
+    private static class PendingInsert {
+        final boolean file;
+        final String sender;
+        final String receiver;
+        final String content;
+        final String type;
+        final boolean isGroup;
+        final long timestamp;
+        final String fileId;
+        final String fileName;
+        final long fileSize;
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        PendingInsert(boolean file, String sender, String receiver, String content, String type, boolean isGroup,
+                      long timestamp, String fileId, String fileName, long fileSize) {
+            this.file = file;
+            this.sender = sender;
+            this.receiver = receiver;
+            this.content = content;
+            this.type = type;
+            this.isGroup = isGroup;
+            this.timestamp = timestamp;
+            this.fileId = fileId;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+        }
+    }
+
+    MessageWriteQueue(int batchSize, long flushMs, int capacity) {
+        this.batchSize = Math.max(1, batchSize);
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMs);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = new Thread(this::runWriter, "message-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    CompletableFuture<Boolean> submitText(String sender, String receiver, String content, String type,
+                                          boolean isGroup, long timestamp) {
+        return submit(new PendingInsert(false, sender, receiver, content, type, isGroup, timestamp,
+                null, null, 0));
+    }
+
+    CompletableFuture<Boolean> submitFile(String sender, String receiver, String fileId, String fileName,
+                                          long fileSize, String type, boolean isGroup, long timestamp) {
+        return submit(new PendingInsert(true, sender, receiver, null, type, isGroup, timestamp,
+                fileId, fileName, fileSize));
+    }
+
+    private CompletableFuture<Boolean> submit(PendingInsert insert) {
+        lifecycle.readLock().lock();
+        try {
+            if (!running) {
+                System.err.println("Hàng đợi ghi tin nhắn đã dừng, bỏ qua tin nhắn của " + insert.sender);
+                insert.done.complete(false);
+                return insert.done;
+            }
+
+            // Hàng đợi đầy (đĩa chậm hơn lượng tin nhắn): handler chờ thay vì để bộ nhớ tăng mãi.
+            // Thread ghi vẫn chạy trong lúc này vì stop() chưa thể tắt running
+            queue.put(insert);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            insert.done.complete(false);
+        } finally {
+            lifecycle.readLock().unlock();
+        }
+        return insert.done;
+    }
+
+    private void runWriter() {
+        List<PendingInsert> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingInsert first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Gom thêm cho tới khi đủ lô hoặc hết thời gian chờ tính từ tin đầu tiên
+                long deadline = System.nanoTime() + flushNanos;
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingInsert next = remaining > 0
+                            ? queue.poll(remaining, TimeUnit.NANOSECONDS)
+                            : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Vẫn ghi nốt những gì đã lấy ra và còn trong hàng đợi
+                queue.drainTo(batch);
+            }
+
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingInsert> batch) {
+        boolean[] inserted = new boolean[batch.size()];
+
+        try (Connection conn = DatabaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement textStmt = conn.prepareStatement(TEXT_SQL);
+                 PreparedStatement fileStmt = conn.prepareStatement(FILE_SQL)) {
+                for (int i = 0; i < batch.size(); i++) {
+                    PendingInsert insert = batch.get(i);
+                    try {
+                        inserted[i] = insert.file ? insertFile(fileStmt, insert) : insertText(textStmt, insert);
+                    } catch (SQLException e) {
+                        // Lỗi của một câu lệnh chỉ hủy câu lệnh đó, các tin khác trong lô vẫn được commit
+                        System.err.println("Lỗi khi lưu tin nhắn của " + insert.sender + ": " + e.getMessage());
+                    }
+                }
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            System.err.println("Lỗi khi ghi lô " + batch.size() + " tin nhắn: " + e.getMessage());
+            e.printStackTrace();
+            inserted = new boolean[batch.size()];
+        }
+
+        batches.increment();
+        for (int i = 0; i < batch.size(); i++) {
+            if (inserted[i]) {
+                rows.increment();
+            } else {
+                failedRows.increment();
+            }
+            batch.get(i).done.complete(inserted[i]);
+        }
+    }
+
+    private static boolean insertText(PreparedStatement pstmt, PendingInsert insert) throws SQLException {
+        pstmt.setString(1, insert.sender);
+        pstmt.setString(2, insert.receiver);
+        pstmt.setString(3, insert.content);
+        pstmt.setString(4, insert.type);
+        pstmt.setBoolean(5, insert.isGroup);
+        pstmt.setLong(6, insert.timestamp);
+        pstmt.setString(7, MessageDAO.conversationId(insert.sender, insert.receiver, insert.isGroup));
+        return pstmt.executeUpdate() > 0;
+    }
+
+    private static boolean insertFile(PreparedStatement pstmt, PendingInsert insert) throws SQLException {
+        pstmt.setString(1, insert.sender);
+        pstmt.setString(2, insert.receiver);
+        pstmt.setString(3, insert.type);
+        pstmt.setBoolean(4, insert.isGroup);
+        pstmt.setLong(5, insert.timestamp);
+        pstmt.setString(6, insert.fileId);
+        pstmt.setString(7, insert.fileName);
+        pstmt.setLong(8, insert.fileSize);
+        pstmt.setString(9, MessageDAO.conversationId(insert.sender, insert.receiver, insert.isGroup));
+        return pstmt.executeUpdate() > 0;
+    }
+
+    // Không nhận thêm tin nhắn, ghi hết những gì còn trong hàng đợi rồi dừng thread ghi
+    void stop() {
+        // Không ngắt thread ghi (đang mượn connection sẽ làm hỏng cả lô): nó tự thoát khi hàng đợi trống
+        lifecycle.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            lifecycle.writeLock().unlock();
+        }
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            System.err.println("Hàng đợi ghi tin nhắn chưa ghi xong sau 30 giây, còn " + queue.size() + " tin");
+            return;
+        }
+
+        // Không còn tin nào được xếp thêm sau khi running tắt; đây chỉ là lưới an toàn nếu thread ghi thoát sớm
+        List<PendingInsert> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        if (!rest.isEmpty()) {
+            writeBatch(rest);
+        }
+    }
+
+    String report() {
+        long batchCount = batches.sum();
+        long rowCount = rows.sum();
+        return String.format("Ghi tin nhắn theo lô: %d lô, %d tin, trung bình %.1f tin/lô, lỗi %d, đang chờ %d",
+                batchCount, rowCount, batchCount == 0 ? 0 : (double) rowCount / batchCount,
+                failedRows.sum(), queue.size());
+    }
+}
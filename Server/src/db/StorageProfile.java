@@ -0,0 +1,101 @@
+package db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// Cấu hình lưu trữ SQLite, áp dụng khi khởi động (journal_mode, lưu trong file database) và trên mỗi connection mới
+// (synchronous, mmap_size, cache_size, busy_timeout chỉ có hiệu lực trên connection đã chạy PRAGMA).
+//
+// Các profile có sẵn:
+//  - durable:  journal DELETE + synchronous FULL, giống mặc định của SQLite. Mỗi INSERT là một lần fsync, không mất
+//              dữ liệu đã commit kể cả khi mất điện, nhưng người đọc và người ghi chặn nhau trên khóa database.
+//  - balanced: WAL + synchronous NORMAL (mặc định). Người đọc không chặn người ghi; chỉ fsync khi checkpoint.
+//              Server crash không mất gì; mất điện/OS crash có thể mất vài giao dịch cuối, database không hỏng.
+//  - fast:     WAL + synchronous OFF. Không fsync: mất điện/OS crash có thể mất các giao dịch gần đây
+//              (server crash thì không). Chỉ nên dùng khi mất vài tin nhắn cuối là chấp nhận được.
+public class StorageProfile {
+    private final String name;
+    // DELETE (rollback journal) hoặc WAL
+    private final String journalMode;
+    // FULL, NORMAL hoặc OFF: số lần fsync mỗi giao dịch, đánh đổi độ bền khi mất điện lấy tốc độ ghi
+    private final String synchronous;
+    // Số byte đọc qua memory-mapped I/O thay vì read(); 0 = tắt. Không ảnh hưởng độ bền
+    private final long mmapSize;
+    // PRAGMA cache_size: số âm là KiB, mỗi connection một bộ đệm trang riêng
+    private final int cacheSize;
+    // Thời gian chờ khi database đang bị khóa trước khi báo SQLITE_BUSY (ms)
+    private final int busyTimeoutMs;
+
+    public StorageProfile(String name, String journalMode, String synchronous, long mmapSize, int cacheSize,
+                          int busyTimeoutMs) {
+        this.name = name;
+        this.journalMode = journalMode;
+        this.synchronous = synchronous;
+        this.mmapSize = mmapSize;
+        this.cacheSize = cacheSize;
+        this.busyTimeoutMs = busyTimeoutMs;
+    }
+
+    public static StorageProfile named(String name) {
+        switch (name.toLowerCase()) {
+            case "durable":
+                return new StorageProfile("durable", "DELETE", "FULL", 0, -2000, 5000);
+            case "fast":
+                return new StorageProfile("fast", "WAL", "OFF", 256L * 1024 * 1024, -65536, 5000);
+            case "balanced":
+                return new StorageProfile("balanced", "WAL", "NORMAL", 256L * 1024 * 1024, -16384, 5000);
+            default:
+                System.err.println("Profile lưu trữ không hợp lệ: " + name + ", dùng balanced");
+                return named("balanced");
+        }
+    }
+
+    // Ghi đè từng giá trị của profile (null = giữ nguyên)
+    public StorageProfile withOverrides(String journalMode, String synchronous, Long mmapSize, Integer cacheSize,
+                                        Integer busyTimeoutMs) {
+        return new StorageProfile(name,
+                keyword(journalMode, this.journalMode),
+                keyword(synchronous, this.synchronous),
+                mmapSize != null ? mmapSize : this.mmapSize,
+                cacheSize != null ? cacheSize : this.cacheSize,
+                busyTimeoutMs != null ? busyTimeoutMs : this.busyTimeoutMs);
+    }
+
+    // Giá trị được ghép thẳng vào câu PRAGMA nên chỉ nhận từ khóa chữ cái
+    private static String keyword(String value, String fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        if (!value.matches("[A-Za-z]+")) {
+            System.err.println("Giá trị PRAGMA không hợp lệ: " + value + ", dùng " + fallback);
+            return fallback;
+        }
+        return value.toUpperCase();
+    }
+
+    // Chỉ cần một lần cho cả file database; trả về chế độ journal thực tế
+    String applyJournalMode(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA journal_mode=" + journalMode)) {
+            return rs.next() ? rs.getString(1) : journalMode;
+        }
+    }
+
+    // Gọi trên mỗi connection vừa mở
+    void applyTo(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout=" + busyTimeoutMs);
+            stmt.execute("PRAGMA synchronous=" + synchronous);
+            stmt.execute("PRAGMA mmap_size=" + mmapSize);
+            stmt.execute("PRAGMA cache_size=" + cacheSize);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (journal_mode=" + journalMode + ", synchronous=" + synchronous +
+                ", mmap_size=" + mmapSize + ", cache_size=" + cacheSize + ", busy_timeout=" + busyTimeoutMs + "ms)";
+    }
+}
@@ -5,10 +5,29 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class UserDAO {
+    // Bloom filter + cache username, null = chưa nạp (mọi lần kiểm tra đều truy vấn database)
+    private static volatile UserDirectory directory;
+
+    // Nạp danh bạ username; expectedUsers là số người dùng dự kiến để tính kích thước Bloom filter
+    public static void loadDirectory(long expectedUsers, int cacheSize) {
+        try (Connection conn = DatabaseManager.getReadConnection()) {
+            directory = UserDirectory.load(conn, expectedUsers, cacheSize);
+            System.out.println(directory.report());
+        } catch (SQLException e) {
+            System.err.println("Lỗi khi nạp danh bạ người dùng: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    public static String directoryReport() {
+        UserDirectory current = directory;
+        return current != null ? current.report() : "Danh bạ người dùng: tắt";
+    }
+
     public static boolean validateLogin(String username, String password) {
         String sql = "SELECT password FROM users WHERE username= ?";
 
-        try (Connection conn = DatabaseManager.getConnection();
+        try (Connection conn = DatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, username);
@@ -28,15 +47,27 @@ public class UserDAO {
     }
 
     public static boolean usernameExists(String username) {
+        UserDirectory current = directory;
+        if (current != null) {
+            Boolean known = current.lookup(username);
+            if (known != null) {
+                return known;
+            }
+        }
+
         String sql = "SELECT 1 FROM users WHERE username = ?";
 
-        try (Connection conn = DatabaseManager.getConnection();
+        try (Connection conn = DatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, username);
 
             try (ResultSet rs = pstmt.executeQuery()) {
-                return rs.next();
+                boolean exists = rs.next();
+                if (current != null) {
+                    current.remember(username, exists);
+                }
+                return exists;
             }
 
         } catch (SQLException e) {
@@ -60,6 +91,10 @@ public class UserDAO {
             pstmt.setLong(5, System.currentTimeMillis());
 
             int rowsAffected = pstmt.executeUpdate();
+            UserDirectory current = directory;
+            if (rowsAffected > 0 && current != null) {
+                current.registered(username);
+            }
             return rowsAffected > 0;
 
         } catch (SQLException e) {
@@ -72,7 +107,7 @@ public class UserDAO {
     public static Object[] getUserInfo(String username) {
         String sql = "SELECT * FROM users WHERE username = ?";
 
-        try (Connection conn = DatabaseManager.getConnection();
+        try (Connection conn = DatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, username);
@@ -100,7 +135,7 @@ public class UserDAO {
         List<String> users = new ArrayList<>();
         String sql = "SELECT username FROM users";
 
-        try (Connection conn = DatabaseManager.getConnection();
+        try (Connection conn = DatabaseManager.getReadConnection();
              Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(sql)) {
 
@@ -0,0 +1,161 @@
+package db;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Trả lời "username có tồn tại không" mà hầu như không chạm tới database:
+//  - Bloom filter chứa mọi username (nạp khi khởi động, thêm khi đăng ký): trả lời "chắc chắn không có" cho người
+//    dùng không tồn tại mà không cần truy vấn. Tỉ lệ dương tính giả ~1% khi số người dùng chưa vượt kích thước đã tính.
+//  - Cache LRU có giới hạn các username đã xác nhận tồn tại. Người dùng không bao giờ bị xóa nên không cần làm mới.
+// Chỉ khi Bloom filter nói "có thể có" và cache không có mới phải hỏi database.
+class UserDirectory {
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    private final int cacheSize;
+    private final Map<String, Boolean> recent;
+
+    // Thống kê
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder filtered = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    private UserDirectory(long expectedUsers, int cacheSize) {
+        long n = Math.max(1, expectedUsers);
+        long m = (long) Math.ceil(-n * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2)));
+        this.bits = new AtomicLongArray((int) ((m + 63) / 64));
+        this.bitCount = this.bits.length() * 64L;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+        this.cacheSize = Math.max(1, cacheSize);
+        this.recent = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > UserDirectory.this.cacheSize;
+            }
+        };
+    }
+
+    // Bloom filter được tính cho ít nhất gấp đôi số người dùng hiện có để còn chỗ cho người đăng ký mới
+    static UserDirectory load(Connection conn, long expectedUsers, int cacheSize) throws SQLException {
+        List<String> usernames = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT username FROM users")) {
+            while (rs.next()) {
+                usernames.add(rs.getString(1));
+            }
+        }
+
+        UserDirectory directory = new UserDirectory(Math.max(expectedUsers, 2L * usernames.size()), cacheSize);
+        for (String username : usernames) {
+            directory.addToFilter(username);
+        }
+        return directory;
+    }
+
+    // null = không biết, phải hỏi database (sau đó gọi remember() nếu có)
+    Boolean lookup(String username) {
+        lookups.increment();
+        if (!mightContain(username)) {
+            filtered.increment();
+            return false;
+        }
+
+        synchronized (recent) {
+            if (recent.get(username) != null) {
+                cacheHits.increment();
+                return true;
+            }
+        }
+        queries.increment();
+        return null;
+    }
+
+    // Kết quả truy vấn database cho một username mà Bloom filter nói "có thể có"
+    void remember(String username, boolean exists) {
+        if (!exists) {
+            falsePositives.increment();
+            return;
+        }
+        synchronized (recent) {
+            recent.put(username, Boolean.TRUE);
+        }
+    }
+
+    void registered(String username) {
+        addToFilter(username);
+        synchronized (recent) {
+            recent.put(username, Boolean.TRUE);
+        }
+    }
+
+    private void addToFilter(String username) {
+        long hash = hash(username);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = index(h1 + i * h2);
+            long mask = 1L << bit;
+            int word = (int) (bit >>> 6);
+            bits.getAndAccumulate(word, mask, (current, m) -> current | m);
+        }
+    }
+
+    private boolean mightContain(String username) {
+        long hash = hash(username);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = index(h1 + i * h2);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long index(int combined) {
+        return (combined & 0x7fffffffL) % bitCount;
+    }
+
+    // FNV-1a 64 bit trên byte UTF-8; hai nửa 32 bit dùng làm hai hàm băm gốc (Kirsch-Mitzenmacher)
+    private static long hash(String username) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : username.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        // Trộn thêm để các bit cao cũng phụ thuộc vào mọi byte
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    String report() {
+        long total = lookups.sum();
+        long hits = cacheHits.sum();
+        long skipped = filtered.sum();
+        int cached;
+        synchronized (recent) {
+            cached = recent.size();
+        }
+        return String.format("Danh bạ người dùng: tra cứu %d, trúng cache %d (%.1f%%), Bloom loại %d (%.1f%%), " +
+                        "truy vấn database %d, dương tính giả %d, cache %d/%d, Bloom %d KiB x %d hàm băm",
+                total, hits, total == 0 ? 0 : 100.0 * hits / total, skipped, total == 0 ? 0 : 100.0 * skipped / total,
+                queries.sum(), falsePositives.sum(), cached, cacheSize, bitCount / 8 / 1024, hashCount);
+    }
+}
@@ -15,6 +15,8 @@ public class FileInfo implements Serializable {
     private long fileSize;
     private String storagePath;
     private Date timestamp;
+    // SHA-256 (hex) của nội dung, null với file lưu trước khi có kho theo nội dung
+    private String sha256;
 
     public FileInfo() {
         // Default constructor
@@ -86,6 +88,14 @@ public class FileInfo implements Serializable {
         this.timestamp = timestamp;
     }
 
+    public String getSha256() {
+        return sha256;
+    }
+
+    public void setSha256(String sha256) {
+        this.sha256 = sha256;
+    }
+
     @Override
     public String toString() {
         return "FileInfo{" +
@@ -96,6 +106,7 @@ public class FileInfo implements Serializable {
                 ", fileSize=" + fileSize +
                 ", storagePath='" + storagePath + '\'' +
                 ", timestamp=" + timestamp +
+                ", sha256='" + sha256 + '\'' +
                 '}';
     }
 }
\ No newline at end of file
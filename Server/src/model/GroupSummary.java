@@ -0,0 +1,29 @@
+package model;
+
+import java.util.Collections;
+import java.util.List;
+
+// Một nhóm trong danh sách nhóm của người dùng: tên, người tạo và thành viên theo thứ tự tham gia
+public final class GroupSummary {
+    private final String name;
+    private final String creator;
+    private final List<String> members;
+
+    public GroupSummary(String name, String creator, List<String> members) {
+        this.name = name;
+        this.creator = creator;
+        this.members = Collections.unmodifiableList(members);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCreator() {
+        return creator;
+    }
+
+    public List<String> getMembers() {
+        return members;
+    }
+}
@@ -0,0 +1,86 @@
+package model;
+
+// Một dòng lịch sử chat đọc từ bảng messages, không đổi sau khi tạo.
+// Tin nhắn văn bản có content; tin nhắn file có fileId/fileName/fileSize và tên file thực tế của người xem (có thể null).
+public final class MessageRecord {
+    private final long id;
+    private final String sender;
+    private final String receiver;
+    private final String content;
+    private final String messageType;
+    private final long timestamp;
+    private final String fileId;
+    private final String fileName;
+    private final long fileSize;
+    private final String actualFilenameSave;
+    private final String actualFilenameUpload;
+
+    public MessageRecord(long id, String sender, String receiver, String content, String messageType, long timestamp,
+                         String fileId, String fileName, long fileSize, String actualFilenameSave,
+                         String actualFilenameUpload) {
+        this.id = id;
+        this.sender = sender;
+        this.receiver = receiver;
+        this.content = content;
+        this.messageType = messageType;
+        this.timestamp = timestamp;
+        this.fileId = fileId;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.actualFilenameSave = actualFilenameSave;
+        this.actualFilenameUpload = actualFilenameUpload;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getReceiver() {
+        return receiver;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    // "text" hoặc "file"
+    public String getMessageType() {
+        return messageType;
+    }
+
+    public boolean isText() {
+        return "text".equals(messageType);
+    }
+
+    public boolean isFile() {
+        return "file".equals(messageType);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public String getActualFilenameSave() {
+        return actualFilenameSave;
+    }
+
+    public String getActualFilenameUpload() {
+        return actualFilenameUpload;
+    }
+}
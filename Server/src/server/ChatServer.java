@@ -1,7 +1,12 @@
 package server;
 
 import db.DatabaseManager;
+import db.GroupDAO;
+import db.MessageDAO;
+import db.StorageProfile;
+import db.UserDAO;
 import service.FileService;
+import util.Protocol;
 
 import java.io.IOException;
 import java.net.ServerSocket;
@@ -10,6 +15,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class ChatServer {
     private static final int PORT = 9999;
@@ -19,14 +27,60 @@ public class ChatServer {
 
     private ServerSocket fileServerSocket;
 
+    private NioServer nioServer;
+
+    private ScheduledExecutorService metricsReporter;
+    private long lastReportedCommandCount = 0;
+
+    private static PresenceAggregator presence;
+
     private static Map<String, ClientHandler> clientHandlers = new ConcurrentHashMap<>();
 
     private static Map<String, String> onlineUsers = new ConcurrentHashMap<>();
 
+    private static final PresenceLog presenceLog = new PresenceLog(ServerConfig.PRESENCE_LOG_SIZE);
+
     public void start() {
         try {
+            DatabaseManager.configureStorage(StorageProfile.named(ServerConfig.DB_PROFILE).withOverrides(
+                    ServerConfig.DB_JOURNAL_MODE, ServerConfig.DB_SYNCHRONOUS, ServerConfig.DB_MMAP_SIZE,
+                    ServerConfig.DB_CACHE_SIZE, ServerConfig.DB_BUSY_TIMEOUT_MS));
+            DatabaseManager.configurePool(ServerConfig.DB_READ_CONNECTIONS, ServerConfig.DB_BORROW_TIMEOUT_MS);
             DatabaseManager.initDatabase();
 
+            if (ServerConfig.GROUP_CACHE) {
+                GroupDAO.loadMembershipCache();
+            }
+
+            if (ServerConfig.USER_DIRECTORY) {
+                UserDAO.loadDirectory(ServerConfig.USER_BLOOM_EXPECTED, ServerConfig.USER_CACHE_SIZE);
+            }
+
+            if (ServerConfig.DB_WRITE_BEHIND) {
+                MessageDAO.startWriteBehind(ServerConfig.DB_WRITE_BATCH_SIZE, ServerConfig.DB_WRITE_FLUSH_MS,
+                        ServerConfig.DB_WRITE_QUEUE_CAPACITY);
+            }
+
+            if (ServerConfig.isVirtualThreadMode()) {
+                PinningMonitor.start();
+            }
+
+            startMetricsReporter();
+
+            if (ServerConfig.PRESENCE_WINDOW_MS > 0) {
+                presence = new PresenceAggregator(ServerConfig.PRESENCE_WINDOW_MS, presenceLog);
+            }
+
+            if (ServerConfig.isNioMode()) {
+                nioServer = new NioServer(PORT);
+                nioServer.start();
+
+                FileService.startFileServer(FILE_PORT);
+
+                nioServer.acceptConnections();
+                return;
+            }
+
             serverSocket = new ServerSocket(PORT);
 
             System.out.println("Chat server đã khởi động ở port " + PORT);
@@ -38,7 +92,7 @@ public class ChatServer {
 
                 ClientHandler clientHandler = new ClientHandler(socket);
                 clientHandlers.put(clientHandler.getId(), clientHandler);
-                new Thread(clientHandler).start();
+                startHandlerThread(clientHandler);
 
                 System.out.println("Client mới đã kết nối: " + socket.getInetAddress());
             }
@@ -48,6 +102,43 @@ public class ChatServer {
         }
     }
 
+    private void startHandlerThread(ClientHandler clientHandler) {
+        if (ServerConfig.isVirtualThreadMode()) {
+            // Virtual thread: giữ nguyên code blocking trong ClientHandler nhưng không tốn một platform thread cho mỗi client
+            Thread.ofVirtual().name("client-" + clientHandler.getId()).start(clientHandler);
+        } else {
+            new Thread(clientHandler).start();
+        }
+    }
+
+    private void startMetricsReporter() {
+        if (ServerConfig.METRICS_INTERVAL_SECONDS <= 0) {
+            return;
+        }
+
+        metricsReporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "command-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metricsReporter.scheduleAtFixedRate(this::reportCommandMetrics, ServerConfig.METRICS_INTERVAL_SECONDS,
+                ServerConfig.METRICS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void reportCommandMetrics() {
+        CommandRegistry registry = ClientHandler.getCommandRegistry();
+        long total = registry.getTotalCount();
+        // Không có lệnh mới kể từ lần in trước thì không in lại
+        if (total == lastReportedCommandCount) {
+            return;
+        }
+        lastReportedCommandCount = total;
+        System.out.println("Thống kê lệnh từ khi khởi động:\n" + registry.report());
+        System.out.println("Pool connection database:\n" + DatabaseManager.poolReport());
+        System.out.println(MessageDAO.writeBehindReport());
+        System.out.println(UserDAO.directoryReport());
+    }
+
     public void stop() {
         try {
             for (ClientHandler clientHandler : clientHandlers.values()) {
@@ -58,12 +149,31 @@ public class ChatServer {
                 serverSocket.close();
             }
 
+            if (nioServer != null) {
+                nioServer.stop();
+            }
+
             if (fileServerSocket != null && !fileServerSocket.isClosed()) {
                 fileServerSocket.close();
             }
 
             FileService.stopFileServer();
 
+            PinningMonitor.stop();
+
+            if (presence != null) {
+                presence.stop();
+            }
+
+            if (metricsReporter != null) {
+                metricsReporter.shutdownNow();
+                reportCommandMetrics();
+            }
+
+            // Ghi nốt các tin nhắn đang chờ trước khi đóng connection
+            MessageDAO.stopWriteBehind();
+            DatabaseManager.closePools();
+
             System.out.println("Chat server đã dừng.");
         }  catch (IOException e) {
             System.err.println("Lỗi khi đóng server: " + e.getMessage());
@@ -83,21 +193,42 @@ public class ChatServer {
         return null;
     }
 
-    public static void broadcastToAllClients(String message) {
+    public static void broadcastToAllClients(String command, Object... fields) {
         ChatServer instance = ChatServer.getInstance();
         if (instance != null) {
+            // Mã hóa một lần, dùng chung cho tất cả người nhận
+            OutboundFrame frame = OutboundFrame.of(command, fields);
             for (String username : onlineUsers.keySet()) {
                 ClientHandler handler = getClientHandler(username);
                 if (handler != null) {
-                    handler.sendMessage(message);
+                    handler.sendFrame(frame);
                 }
             }
         }
     }
 
-    public static void broadcastMessage(String message) {
+    public static void broadcastMessage(String command, Object... fields) {
+        OutboundFrame frame = OutboundFrame.of(command, fields);
         for (ClientHandler handler : clientHandlers.values()) {
-            handler.sendMessage(message);
+            handler.sendFrame(frame);
+        }
+    }
+
+    // Gửi cùng một tin nhắn tới những người dùng đang online trong danh sách (bỏ qua excludedUser nếu có)
+    public static void sendToUsers(List<String> usernames, String excludedUser, String command, Object... fields) {
+        OutboundFrame frame = null;
+        for (String username : usernames) {
+            if (username.equals(excludedUser)) {
+                continue;
+            }
+
+            ClientHandler handler = getClientHandler(username);
+            if (handler != null) {
+                if (frame == null) {
+                    frame = OutboundFrame.of(command, fields);
+                }
+                handler.sendFrame(frame);
+            }
         }
     }
 
@@ -115,16 +246,52 @@ public class ChatServer {
         return new ArrayList<>(onlineUsers.keySet());
     }
 
+    // Chép danh sách online vào users và trả về phiên bản tương ứng
+    public static long snapshotOnlineUsers(List<String> users) {
+        synchronized (presenceLog) {
+            users.addAll(onlineUsers.keySet());
+            return presenceLog.getVersion();
+        }
+    }
+
+    public static PresenceLog getPresenceLog() {
+        return presenceLog;
+    }
+
     public static void addOnlineUser(String username, String handlerId) {
-        onlineUsers.put(username, handlerId);
+        synchronized (presenceLog) {
+            onlineUsers.put(username, handlerId);
+            presenceLog.record(username, true);
+        }
         System.out.println("Người dùng đã đăng nhập: " + username);
     }
 
     public static void removeOnlineUser(String username) {
-        onlineUsers.remove(username);
+        synchronized (presenceLog) {
+            if (onlineUsers.remove(username) != null) {
+                presenceLog.record(username, false);
+            }
+        }
         System.out.println("Người dùng đã đăng xuất: " + username);
     }
 
+    // Thông báo người dùng vào/ra cho mọi người: gộp theo cửa sổ nếu bật, ngược lại gửi ngay
+    public static void announceUserJoined(String username) {
+        if (presence != null) {
+            presence.userJoined(username);
+        } else {
+            broadcastToAllClients(Protocol.SVR_USER_JOINED, username);
+        }
+    }
+
+    public static void announceUserLeft(String username) {
+        if (presence != null) {
+            presence.userLeft(username);
+        } else {
+            broadcastToAllClients(Protocol.SVR_USER_LEFT, username);
+        }
+    }
+
     public static boolean isUserOnline(String username) {
         return onlineUsers.containsKey(username);
     }
@@ -135,6 +302,10 @@ public class ChatServer {
         return instance;
     }
 
+    static void addClientHandler(ClientHandler clientHandler) {
+        clientHandlers.put(clientHandler.getId(), clientHandler);
+    }
+
     public void removeClientHandler(String handlerId) {
         clientHandlers.remove(handlerId);
         System.out.println("Client handler đã bị xóa: " + handlerId);
@@ -142,6 +313,8 @@ public class ChatServer {
 
     public static void main(String[] args) {
         instance = new ChatServer();
+        // Dừng có trật tự khi nhận SIGTERM/Ctrl+C: ghi nốt tin nhắn đang chờ, đóng connection database
+        Runtime.getRuntime().addShutdownHook(new Thread(instance::stop, "server-shutdown"));
         instance.start();
     }
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+package server;
+
+import java.io.IOException;
+
+// Kênh gửi dữ liệu tới một client, tách biệt ClientHandler khỏi kiểu I/O thực tế
+// (socket blocking mỗi kết nối một thread, hoặc NIO selector)
+public interface ClientConnection {
+    void send(OutboundFrame frame);
+
+    void close() throws IOException;
+
+    String getRemoteAddress();
+
+    // Giao thức nhị phân (util.BinaryProtocol) được bật khi đăng nhập, áp dụng cho cả hai chiều
+    void setBinary(boolean binary);
+
+    boolean isBinary();
+}
@@ -3,120 +3,179 @@ package server;
 import db.GroupDAO;
 import db.MessageDAO;
 import db.UserDAO;
+import model.GroupSummary;
+import model.MessageRecord;
 import service.FileService;
+import util.BinaryProtocol;
+import util.FieldReader;
 import util.Protocol;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ClientHandler implements Runnable {
-    private Socket clientSocket;
-    private BufferedReader in;
-    private PrintWriter out;
+    // Bảng lệnh: tiền tố, có cần đăng nhập hay không, handler
+    private static final CommandRegistry COMMANDS = new CommandRegistry();
+
+    static {
+        COMMANDS.register(Protocol.CMD_LOGIN, false, ClientHandler::handleLogin);
+        COMMANDS.register(Protocol.CMD_REGISTER, false, ClientHandler::handleRegister);
+        COMMANDS.register(Protocol.CMD_EXIT, true, (client, args) -> client.handleExit());
+        COMMANDS.register(Protocol.CMD_PRIVATE_MSG, true, ClientHandler::handlePrivateMessage);
+        COMMANDS.register(Protocol.CMD_GROUP_MSG, true, ClientHandler::handleGroupMessage);
+        COMMANDS.register(Protocol.CMD_ONLINE_USERS, true, ClientHandler::handleGetOnlineUsers);
+        COMMANDS.register(Protocol.CMD_GET_CHAT_HISTORY, true, ClientHandler::handleGetChatHistory);
+        COMMANDS.register(Protocol.CMD_LOAD_MORE_MESSAGES, true, ClientHandler::handleLoadMoreMessages);
+        COMMANDS.register(Protocol.CMD_CREATE_GROUP, true, ClientHandler::handleCreateGroup);
+        COMMANDS.register(Protocol.CMD_ADD_TO_GROUP, true, ClientHandler::handleAddToGroup);
+        COMMANDS.register(Protocol.CMD_GET_GROUPS, true, (client, args) -> client.handleGetGroups());
+        COMMANDS.register(Protocol.CMD_LEAVE_GROUP, true, ClientHandler::handleLeaveGroup);
+        COMMANDS.register(Protocol.CMD_REMOVE_FROM_GROUP, true, ClientHandler::handleRemoveFromGroup);
+        COMMANDS.register(Protocol.CMD_FILE_SEND, true, ClientHandler::handleFileSendRequest);
+        COMMANDS.register(Protocol.CMD_FILE_ACCEPT, true, ClientHandler::handleFileAccept);
+        COMMANDS.register(Protocol.CMD_FILE_REJECT, true, ClientHandler::handleFileReject);
+        COMMANDS.register(Protocol.CMD_GROUP_FILE_SEND, true, ClientHandler::handleGroupFileSend);
+        COMMANDS.register(Protocol.CMD_CHANGE_MESSAGE_ACTUAL_FILENAME_SAVE, true,
+                ClientHandler::handleChangeMessageActualFilenameSave);
+        COMMANDS.register(Protocol.CMD_CHANGE_MESSAGE_ACTUAL_FILENAME_UPLOAD, true,
+                ClientHandler::handleChangeMessageActualFilenameUpload);
+        COMMANDS.register(Protocol.CMD_GROUP_FILE_ACCEPT, true, ClientHandler::handleGroupFileAccept);
+        COMMANDS.register(Protocol.CMD_CHANGE_MESSAGE_GROUP_ACTUAL_FILENAME_SAVE, true,
+                ClientHandler::handleChangeMessageGroupActualFilenameSave);
+        COMMANDS.register(Protocol.CMD_CHANGE_MESSAGE_GROUP_ACTUAL_FILENAME_UPLOAD, true,
+                ClientHandler::handleChangeMessageGroupActualFilenameUpload);
+        COMMANDS.register(Protocol.CMD_FILE_DOWNLOAD, true, ClientHandler::handleFileDownloadRequest);
+        COMMANDS.register(Protocol.CMD_FILE_DOWNLOAD_ACCEPT, true, ClientHandler::handleFileDownloadAccept);
+    }
+
+    private ClientConnection connection;
     private String id;
     private String username;
     private boolean authenticated = false;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    // Bộ đọc tham số dùng lại cho mọi lệnh của kết nối (các lệnh được xử lý tuần tự)
+    private final Protocol.FieldCursor textFields = new Protocol.FieldCursor();
+    private final BinaryProtocol.FieldCursor binaryFields = new BinaryProtocol.FieldCursor();
 
     public ClientHandler(Socket clientSocket) {
-        this.clientSocket = clientSocket;
         this.id = UUID.randomUUID().toString();
 
         try {
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
+            connection = new SocketConnection(clientSocket);
         } catch (IOException e) {
             System.err.println("Lỗi khi tạo ClientHandler: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
+    // Dùng cho chế độ NIO: việc đọc dữ liệu do event loop đảm nhiệm, handler chỉ xử lý lệnh
+    public ClientHandler(ClientConnection connection) {
+        this.id = UUID.randomUUID().toString();
+        this.connection = connection;
+    }
+
     @Override
     public void run() {
+        if (!(connection instanceof SocketConnection socketConnection)) {
+            return;
+        }
+        socketConnection.start(this);
+
         try {
-            String message;
-            while ((message = in.readLine()) != null) {
-                System.out.println("Nhận tin nhắn từ client: " + message);
-                processMessage(message);
+            while (true) {
+                if (socketConnection.isBinary()) {
+                    BinaryProtocol.Frame frame = socketConnection.readFrame();
+                    if (frame == null) {
+                        break;
+                    }
+                    processFrame(frame);
+                } else {
+                    String message = socketConnection.readLine();
+                    if (message == null) {
+                        break;
+                    }
+                    processMessage(message);
+                }
             }
         } catch (IOException e) {
-            System.err.println("Lỗi khi đọc tin nhắn từ client: " + e.getMessage());
+            if (!closed.get()) {
+                System.err.println("Lỗi khi đọc tin nhắn từ client: " + e.getMessage());
+                e.printStackTrace();
+            }
+        } finally {
+            // Client ngắt kết nối mà không gửi /exit: vẫn phải xóa khỏi danh sách online
+            closeConnection();
+        }
+    }
+
+    // Lệnh dạng dòng văn bản: "/lệnh tham_số|tham_số|..."
+    void processMessage(String message) {
+        System.out.println("Nhận tin nhắn từ client: " + message);
+
+        CommandRegistry.Command command = COMMANDS.lookup(message);
+        if (command == null) {
+            return;
+        }
+
+        processCommand(command, textFields.reset(message, command.getPrefix().length()));
+    }
+
+    // Lệnh dạng khung nhị phân: các trường có độ dài riêng, nội dung có thể chứa '|'
+    void processFrame(BinaryProtocol.Frame frame) {
+        CommandRegistry.Command command = COMMANDS.lookup(frame.getOpcode());
+        System.out.println("Nhận khung nhị phân từ client: " +
+                (command != null ? command.getPrefix().trim() : "opcode " + frame.getOpcode()));
+
+        if (command == null) {
+            send(Protocol.SVR_ERROR, "Lệnh không hợp lệ.");
+            return;
+        }
+
+        processCommand(command, binaryFields.reset(frame));
+    }
+
+    private void processCommand(CommandRegistry.Command command, FieldReader args) {
+        if (command.requiresLogin() && !authenticated) {
+            send(Protocol.SVR_ERROR, "Bạn chưa đăng nhập.");
+            return;
+        }
+
+        try {
+            command.invoke(this, args);
+        } catch (RuntimeException e) {
+            // Tham số sai định dạng (ví dụ số không hợp lệ): báo lỗi cho client, giữ kết nối
+            System.err.println("Lỗi khi xử lý lệnh " + command.getPrefix().trim() + ": " + e.getMessage());
             e.printStackTrace();
+            send(Protocol.SVR_ERROR, "Không thể xử lý lệnh.");
         }
     }
 
-    private void processMessage(String message) {
-        if (message.startsWith(Protocol.CMD_LOGIN)) {
-            handleLogin(message);
-        } else if (message.startsWith(Protocol.CMD_REGISTER)) {
-            handleRegister(message);
-        } else if (!authenticated) {
-            out.println(Protocol.SVR_ERROR + "Bạn chưa đăng nhập.");
-            return;
-        } else if (message.startsWith(Protocol.CMD_EXIT)) {
-            handleExit();
-        } else if (message.startsWith(Protocol.CMD_PRIVATE_MSG)) {
-            handlePrivateMessage(message);
-        } else if (message.startsWith(Protocol.CMD_GROUP_MSG)) {
-            handleGroupMessage(message);
-        } else if (message.startsWith(Protocol.CMD_ONLINE_USERS)) {
-            handleGetOnlineUsers();
-        } else if (message.startsWith(Protocol.CMD_GET_CHAT_HISTORY)) {
-            handleGetChatHistory(message);
-        }
-        else if (message.startsWith(Protocol.CMD_LOAD_MORE_MESSAGES)) {
-            handleLoadMoreMessages(message);
-        } else if (message.startsWith(Protocol.CMD_CREATE_GROUP)) {
-            handleCreateGroup(message);
-        } else if (message.startsWith(Protocol.CMD_ADD_TO_GROUP)) {
-            handleAddToGroup(message);
-        } else if (message.startsWith(Protocol.CMD_GET_GROUPS)) {
-            handleGetGroups();
-        } else if (message.startsWith(Protocol.CMD_LEAVE_GROUP)) {
-            handleLeaveGroup(message);
-        } else if (message.startsWith(Protocol.CMD_REMOVE_FROM_GROUP)) {
-            handleRemoveFromGroup(message);
-        } else if (message.startsWith(Protocol.CMD_FILE_SEND)) {
-            handleFileSendRequest(message);
-        } else if (message.startsWith(Protocol.CMD_FILE_ACCEPT)) {
-            handleFileAccept(message);
-        } else if (message.startsWith(Protocol.CMD_FILE_REJECT)) {
-            handleFileReject(message);
-        } else if (message.startsWith(Protocol.CMD_GROUP_FILE_SEND)) {
-            handleGroupFileSend(message);
-        } else if (message.startsWith(Protocol.CMD_CHANGE_MESSAGE_ACTUAL_FILENAME_SAVE)) {
-            handleChangeMessageActualFilenameSave(message);
-        } else if (message.startsWith(Protocol.CMD_CHANGE_MESSAGE_ACTUAL_FILENAME_UPLOAD)) {
-            handleChangeMessageActualFilenameUpload(message);
-        } else if (message.startsWith(Protocol.CMD_GROUP_FILE_ACCEPT)) {
-            handleGroupFileAccept(message);
-        }  else if (message.startsWith(Protocol.CMD_CHANGE_MESSAGE_GROUP_ACTUAL_FILENAME_SAVE)) {
-            handleChangeMessageGroupActualFilenameSave(message);
-        } else if (message.startsWith(Protocol.CMD_CHANGE_MESSAGE_GROUP_ACTUAL_FILENAME_UPLOAD)) {
-            handleChangeMessageGroupActualFilenameUpload(message);
-        } else if (message.startsWith(Protocol.CMD_FILE_DOWNLOAD)) {
-            handleFileDownloadRequest(message);
-        } else if (message.startsWith(Protocol.CMD_FILE_DOWNLOAD_ACCEPT)) {
-            handleFileDownloadAccept(message);
-        }
-    }
-
-    private void handleLogin(String message) {
-        String[] parts = message.substring(Protocol.CMD_LOGIN.length()).split("\\|");
-        if (parts.length != 2) {
-            out.println(Protocol.SVR_LOGIN_FAIL + "Định dạng đăng nhập không hợp lệ.");
-            return;
-        }
-
-        String username = parts[0];
-        String password = parts[1];
+    public static CommandRegistry getCommandRegistry() {
+        return COMMANDS;
+    }
+
+    private void handleLogin(FieldReader args) {
+        int fieldCount = args.remaining();
+        String username = args.nextString();
+        String password = args.nextString();
+        // Tham số thứ ba (tùy chọn) "binary": chuyển kết nối sang giao thức nhị phân sau khi đăng nhập
+        boolean binary = fieldCount == 3 && BinaryProtocol.LOGIN_OPTION.equals(args.nextString());
+        if (fieldCount != 2 && !binary) {
+            send(Protocol.SVR_LOGIN_FAIL, "Định dạng đăng nhập không hợp lệ.");
+            return;
+        }
 
         if (UserDAO.validateLogin(username, password)) {
             if (ChatServer.isUserOnline(username)) {
-                out.println(Protocol.SVR_LOGIN_FAIL + "Tài khoản đang được sử dụng ở nơi khác.");
+                send(Protocol.SVR_LOGIN_FAIL, "Tài khoản đang được sử dụng ở nơi khác.");
                 return;
             }
 
@@ -124,54 +183,53 @@ public class ClientHandler implements Runnable {
             this.authenticated = true;
             ChatServer.addOnlineUser(username, id);
 
-            out.println(Protocol.SVR_LOGIN_SUCCESS);
+            send(Protocol.SVR_LOGIN_SUCCESS);
+            if (binary) {
+                // /loginsuccess đã được mã hóa dạng văn bản khi xếp hàng, mọi thứ sau đó là nhị phân
+                connection.setBinary(true);
+            }
 
-            String joinMessage = Protocol.SVR_USER_JOINED + username;
-            ChatServer.broadcastToAllClients(joinMessage);
+            ChatServer.announceUserJoined(username);
         } else if (!UserDAO.usernameExists(username)) {
-            out.println(Protocol.SVR_LOGIN_FAIL + "Tài khoản không tồn tại.");
+            send(Protocol.SVR_LOGIN_FAIL, "Tài khoản không tồn tại.");
         } else {
-            out.println(Protocol.SVR_LOGIN_FAIL + "Tên đăng nhập hoặc mật khẩu không đúng.");
+            send(Protocol.SVR_LOGIN_FAIL, "Tên đăng nhập hoặc mật khẩu không đúng.");
         }
     }
 
-    private void handleRegister(String message) {
-        String[] parts = message.substring(Protocol.CMD_REGISTER.length()).split("\\|");
-        if (parts.length < 2) {
-            out.println(Protocol.SVR_REGISTER_FAIL + "Định dạng đăng ký không hợp lệ.");
+    private void handleRegister(FieldReader args) {
+        if (args.remaining() < 2) {
+            send(Protocol.SVR_REGISTER_FAIL, "Định dạng đăng ký không hợp lệ.");
             return;
         }
 
-        String username = parts[0];
-        String password = parts[1];
-        String fullName = (parts.length > 2) ? parts[2] : "";
-        String email = (parts.length > 3) ? parts[3] : "";
+        String username = args.nextString();
+        String password = args.nextString();
+        String fullName = args.nextString();
+        String email = args.nextString();
 
         // Kiểm tra xem tên đăng nhập đã tồn tại chưa
         if (UserDAO.usernameExists(username)) {
-            out.println(Protocol.SVR_REGISTER_FAIL + "Tên đăng nhập đã tồn tại.");
+            send(Protocol.SVR_REGISTER_FAIL, "Tên đăng nhập đã tồn tại.");
             return;
         }
 
         // Thực hiện đăng ký
         if (UserDAO.registerUser(username, password, fullName, email)) {
-            out.println(Protocol.SVR_REGISTER_SUCCESS);
+            send(Protocol.SVR_REGISTER_SUCCESS);
         } else {
-            out.println(Protocol.SVR_REGISTER_FAIL + "Đăng ký thất bại. Vui lòng thử lại sau.");
+            send(Protocol.SVR_REGISTER_FAIL, "Đăng ký thất bại. Vui lòng thử lại sau.");
         }
     }
 
-    private void handlePrivateMessage(String message) {
-        String content = message.substring(Protocol.CMD_PRIVATE_MSG.length());
-        String[] parts = content.split("\\|", 2);
-
-        if (parts.length != 2) {
-            out.println(Protocol.SVR_ERROR + "Định dạng tin nhắn riêng không hợp lệ.");
+    private void handlePrivateMessage(FieldReader args) {
+        if (args.remaining() < 2) {
+            send(Protocol.SVR_ERROR, "Định dạng tin nhắn riêng không hợp lệ.");
             return;
         }
 
-        String receiver = parts[0];
-        String messageContent = parts[1];
+        String receiver = args.nextString();
+        String messageContent = args.rest();
         String sender = username;
 
         System.out.println("Người nhận: " + receiver);
@@ -179,84 +237,81 @@ public class ClientHandler implements Runnable {
         System.out.println("Nội dung tin nhắn: " + messageContent);
 
         if (!UserDAO.usernameExists(receiver)) {
-            out.println(Protocol.SVR_ERROR + "Người nhận không tồn tại.");
+            send(Protocol.SVR_ERROR, "Người nhận không tồn tại.");
             return;
         }
 
-        // Lưu tin nhắn vào database
+        // Lưu tin nhắn vào database (ghi theo lô, không chặn handler)
         long timestamp = System.currentTimeMillis();
-        MessageDAO.saveTextMessage(sender, receiver, messageContent, "private", false, timestamp);
-
-        String privateMessage = Protocol.SVR_PRIVATE_MSG + sender + Protocol.PARAM_DELIMITER + messageContent +
-                Protocol.PARAM_DELIMITER + timestamp;
+        CompletableFuture<Boolean> saved =
+                MessageDAO.saveTextMessageAsync(sender, receiver, messageContent, "private", false, timestamp);
 
         ClientHandler receiverHandler = ChatServer.getClientHandler(receiver);
         if (receiverHandler != null) {
-            receiverHandler.sendMessage(privateMessage);
+            receiverHandler.send(Protocol.SVR_PRIVATE_MSG, sender, messageContent, timestamp);
         }
 
-        // Gửi bản sao cho người gửi (để hiển thị trong chat)
-        out.println(Protocol.SVR_PRIVATE_MSG + receiver + Protocol.PARAM_DELIMITER + messageContent +
-                Protocol.PARAM_DELIMITER + timestamp +
-                Protocol.PARAM_DELIMITER + "SENT");
+        // Gửi bản sao cho người gửi (để hiển thị trong chat) khi tin nhắn đã được lưu
+        saved.thenAccept(ok -> {
+            if (ok) {
+                send(Protocol.SVR_PRIVATE_MSG, receiver, messageContent, timestamp, "SENT");
+            } else {
+                send(Protocol.SVR_ERROR, "Không thể lưu tin nhắn.");
+            }
+        });
     }
 
-    private void handleGroupMessage(String message) {
-        String content = message.substring(Protocol.CMD_GROUP_MSG.length());
-        String[] parts = content.split("\\|", 2);
-
-        if (parts.length != 2) {
-            out.println(Protocol.SVR_ERROR + "Định dạng tin nhắn nhóm không hợp lệ.");
+    private void handleGroupMessage(FieldReader args) {
+        if (args.remaining() < 2) {
+            send(Protocol.SVR_ERROR, "Định dạng tin nhắn nhóm không hợp lệ.");
             return;
         }
 
-        String groupName = parts[0].trim();
-        String messageContent = parts[1];
+        String groupName = args.nextString().trim();
+        String messageContent = args.rest();
         String sender = username;
 
         if (!GroupDAO.groupExists(groupName)) {
-            out.println(Protocol.SVR_ERROR + "Nhóm không tồn tại");
+            send(Protocol.SVR_ERROR, "Nhóm không tồn tại");
             return;
         }
 
         if (!GroupDAO.isGroupMember(groupName, username)) {
-            out.println(Protocol.SVR_ERROR + "Bạn không phải là thành viên của nhóm này");
+            send(Protocol.SVR_ERROR, "Bạn không phải là thành viên của nhóm này");
             return;
         }
 
         long timestamp = System.currentTimeMillis();
-        MessageDAO.saveTextMessage(sender, groupName, messageContent, "group", true, timestamp);
+        CompletableFuture<Boolean> saved =
+                MessageDAO.saveTextMessageAsync(sender, groupName, messageContent, "group", true, timestamp);
 
         List<String> members = GroupDAO.getGroupMembers(groupName);
 
-        for (String member : members) {
-            ClientHandler memberHandler = ChatServer.getClientHandler(member);
-            if (memberHandler != null) {
-                memberHandler.sendMessage(Protocol.SVR_GROUP_MSG +
-                        groupName + Protocol.PARAM_DELIMITER +
-                        sender + Protocol.PARAM_DELIMITER +
-                        messageContent + Protocol.PARAM_DELIMITER +
-                        timestamp);
+        ChatServer.sendToUsers(members, sender, Protocol.SVR_GROUP_MSG, groupName, sender, messageContent, timestamp);
+
+        // Người gửi nhận bản sao của mình khi tin nhắn đã được lưu
+        saved.thenAccept(ok -> {
+            if (ok) {
+                send(Protocol.SVR_GROUP_MSG, groupName, sender, messageContent, timestamp);
+            } else {
+                send(Protocol.SVR_ERROR, "Không thể lưu tin nhắn.");
             }
-        }
+        });
     }
 
-    private void handleGetChatHistory(String message) {
-        String content = message.substring(Protocol.CMD_GET_CHAT_HISTORY.length());
-        String[] parts = content.split("\\|", 3);
-
-        if (parts.length < 2) {
-            out.println(Protocol.SVR_ERROR + "Định dạng lệnh không hợp lệ");
+    private void handleGetChatHistory(FieldReader args) {
+        if (args.remaining() < 2) {
+            send(Protocol.SVR_ERROR, "Định dạng lệnh không hợp lệ");
             return;
         }
 
-        String chatPartner = parts[0].trim();
-        String chatType = parts[1].trim(); // "private", "group", "global"
-        int limit = parts.length > 2 ? Integer.parseInt(parts[2]) : 20; // Mặc định 20 tin nhắn
+        String chatPartner = args.nextString().trim();
+        String chatType = args.nextString().trim(); // "private", "group", "global"
+        int limit = pageSize(args.hasNext() ? args.nextInt() : 20); // Mặc định 20 tin nhắn
 
         boolean isGroup = chatType.equals("group");
 
-        List<Object[]> chatHistory = MessageDAO.getChatHistory(
+        List<MessageRecord> chatHistory = MessageDAO.getChatHistory(
                 isGroup ? chatPartner : username,
                 isGroup ? username : chatPartner,
                 isGroup,
@@ -272,38 +327,16 @@ public class ClientHandler implements Runnable {
 //        }
 
         // Gửi kết quả về client
-        out.println(Protocol.SVR_CHAT_HISTORY_START);
-
-        for (Object[] messageData : chatHistory) {
-            long id = (long) messageData[0];
-            String sender = (String) messageData[1];
-            String receiver = (String) messageData[2];
-            String messageType = (String) messageData[4];
-            long timestamp = (Long) messageData[5];
-
-            if ("text".equals(messageType)) {
-                String msgContent = (String) messageData[3];
-                out.println(Protocol.SVR_CHAT_HISTORY_ITEM +
-                        sender + Protocol.PARAM_DELIMITER +
-                        msgContent + Protocol.PARAM_DELIMITER +
-                        timestamp + Protocol.PARAM_DELIMITER +
-                        messageType);
-            } else if ("file".equals(messageType)) {
-                String fileId = (String) messageData[6];
-                String fileName = (String) messageData[7];
-                long fileSize = (Long) messageData[8];
-                String actualFileNameSave = (String) messageData[9];
-                String actualFileNameUpload = (String) messageData[10];
-
-                out.println(Protocol.SVR_CHAT_HISTORY_ITEM +
-                        sender + Protocol.PARAM_DELIMITER +
-                        fileId + Protocol.PARAM_DELIMITER +
-                        fileName + Protocol.PARAM_DELIMITER +
-                        fileSize + Protocol.PARAM_DELIMITER +
-                        timestamp + Protocol.PARAM_DELIMITER +
-                        actualFileNameSave + Protocol.PARAM_DELIMITER +
-                        actualFileNameUpload + Protocol.PARAM_DELIMITER +
-                        messageType);
+        send(Protocol.SVR_CHAT_HISTORY_START);
+
+        for (MessageRecord record : chatHistory) {
+            if (record.isText()) {
+                send(Protocol.SVR_CHAT_HISTORY_ITEM, record.getSender(), record.getContent(), record.getTimestamp(),
+                        record.getMessageType());
+            } else if (record.isFile()) {
+                send(Protocol.SVR_CHAT_HISTORY_ITEM, record.getSender(), record.getFileId(), record.getFileName(),
+                        record.getFileSize(), record.getTimestamp(), record.getActualFilenameSave(),
+                        record.getActualFilenameUpload(), record.getMessageType());
             }
         }
 
@@ -313,169 +346,210 @@ public class ClientHandler implements Runnable {
 //                String msgContent = (String) msg.get("content");
 //                long timestamp = (Long) msg.get("timestamp");
 //
-//                out.println(Protocol.SVR_CHAT_HISTORY_ITEM +
+//                sendMessage(Protocol.SVR_CHAT_HISTORY_ITEM +
 //                        sender + Protocol.PARAM_DELIMITER +
 //                        msgContent + Protocol.PARAM_DELIMITER +
 //                        timestamp);
 //            }
 //        }
 
-        out.println(Protocol.SVR_CHAT_HISTORY_END);
+        sendPageEnd(Protocol.SVR_CHAT_HISTORY_END, chatHistory, HistoryCursor.LATEST, limit);
+    }
+
+    private static int pageSize(int requested) {
+        return Math.max(1, Math.min(requested, ServerConfig.HISTORY_MAX_PAGE_SIZE));
     }
 
-    private void handleLoadMoreMessages(String message) {
-        String content = message.substring(Protocol.CMD_LOAD_MORE_MESSAGES.length());
-        String[] parts = content.split("\\|", 4);
+    // Kết thúc một trang lịch sử kèm hai con trỏ: trang cũ hơn (rỗng = đã tới tin đầu tiên) và trang mới hơn
+    private void sendPageEnd(String command, List<MessageRecord> page, HistoryCursor from, int limit) {
+        String before = "";
+        String after;
+        if (page.isEmpty()) {
+            after = from.isNewer() ? from.toString() : HistoryCursor.after(0);
+        } else {
+            if (from.isNewer() || page.size() >= limit) {
+                before = HistoryCursor.before(page.get(0).getId());
+            }
+            after = HistoryCursor.after(page.get(page.size() - 1).getId());
+        }
+        send(command, before, after);
+    }
 
-        if (parts.length < 3) {
-            out.println(Protocol.SVR_ERROR + "Định dạng lệnh tải thêm tin nhắn không hợp lệ");
+    private void handleLoadMoreMessages(FieldReader args) {
+        if (args.remaining() < 3) {
+            send(Protocol.SVR_ERROR, "Định dạng lệnh tải thêm tin nhắn không hợp lệ");
             return;
         }
 
-        String chatPartner = parts[0].trim();
-        String chatType = parts[1].trim();
-        long olderThan = Long.parseLong(parts[2].trim());
-        int limit = parts.length > 3 ? Integer.parseInt(parts[3].trim()) : 10; // Mặc định 10 tin nhắn
+        String chatPartner = args.nextString().trim();
+        String chatType = args.nextString().trim();
+        String position = args.nextString().trim();
+        int limit = pageSize(args.hasNext() ? args.nextInt() : 10); // Mặc định 10 tin nhắn
 
-        List<Map<String, Object>> messages = null;
+        HistoryCursor cursor = HistoryCursor.parse(position);
+        if (cursor != null) {
+            sendMessagePage(chatPartner, "group".equals(chatType), cursor, limit);
+            return;
+        }
+
+        // Client cũ gửi timestamp của tin cũ nhất thay vì con trỏ (không dùng regex: lệnh này chạy mỗi lần cuộn)
+        long olderThan;
+        try {
+            olderThan = Long.parseLong(position);
+        } catch (NumberFormatException e) {
+            olderThan = -1;
+        }
+        if (olderThan < 0) {
+            send(Protocol.SVR_ERROR, "Con trỏ tải thêm tin nhắn không hợp lệ");
+            return;
+        }
+        List<MessageRecord> messages = List.of();
 
         if ("private".equals(chatType)) {
-            messages = MessageDAO.getOlderPrivateMessages(username, chatPartner, olderThan, limit);
+            messages = MessageDAO.getOlderMessages(username, chatPartner, false, olderThan, limit);
         } else if ("group".equals(chatType)) {
-            messages = MessageDAO.getOlderGroupMessages(chatPartner, olderThan, limit);
+            messages = MessageDAO.getOlderMessages(chatPartner, username, true, olderThan, limit);
         }
 
         // Gửi kết quả về client
-        out.println(Protocol.SVR_LOAD_MORE_START);
-
-        if (messages != null && !messages.isEmpty()) {
-            for (Map<String, Object> msg : messages) {
-                String sender = (String) msg.get("sender");
-                String msgContent = (String) msg.get("content");
-                long timestamp = (Long) msg.get("timestamp");
-
-                out.println(Protocol.SVR_LOAD_MORE_ITEM +
-                        sender + Protocol.PARAM_DELIMITER +
-                        msgContent + Protocol.PARAM_DELIMITER +
-                        timestamp);
-            }
-        }
+        send(Protocol.SVR_LOAD_MORE_START);
+        sendLoadMoreItems(messages);
+        send(Protocol.SVR_LOAD_MORE_END, "", "");
+    }
 
-        out.println(Protocol.SVR_LOAD_MORE_END);
+    private void sendLoadMoreItems(List<MessageRecord> messages) {
+        for (MessageRecord record : messages) {
+            send(Protocol.SVR_LOAD_MORE_ITEM, record.getSender(), record.getContent(), record.getTimestamp());
+        }
     }
 
-    private void handleGetOnlineUsers() {
-        List<String> users = ChatServer.getOnlineUsers();
-        StringBuilder sb = new StringBuilder(Protocol.SVR_ONLINE_USERS);
+    private void sendMessagePage(String chatPartner, boolean isGroup, HistoryCursor cursor, int limit) {
+        List<MessageRecord> page = MessageDAO.getMessagePage(
+                isGroup ? chatPartner : username,
+                isGroup ? username : chatPartner,
+                isGroup,
+                cursor.getMessageId(),
+                cursor.isNewer(),
+                limit
+        );
+
+        send(Protocol.SVR_LOAD_MORE_START);
+        sendLoadMoreItems(page);
+        sendPageEnd(Protocol.SVR_LOAD_MORE_END, page, cursor, limit);
+    }
 
-        for (String user : users) {
-            sb.append(user).append(",");
+    private void handleGetOnlineUsers(FieldReader args) {
+        // /online <phiên bản>: chỉ gửi thay đổi kể từ phiên bản client đã có (client mới gửi 0 lần đầu).
+        // /online không tham số (client cũ): danh sách đầy đủ, không kèm phiên bản
+        String since = args.rest().trim();
+        if (since.isEmpty()) {
+            send(Protocol.SVR_ONLINE_USERS, String.join(",", ChatServer.getOnlineUsers()));
+            return;
         }
 
-        if (sb.length() > Protocol.SVR_ONLINE_USERS.length()) {
-            sb.deleteCharAt(sb.length() - 1);
+        long sinceVersion = Long.parseLong(since);
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        PresenceLog presenceLog = ChatServer.getPresenceLog();
+        long version;
+        boolean incremental;
+        synchronized (presenceLog) {
+            version = presenceLog.getVersion();
+            incremental = presenceLog.changesSince(sinceVersion, joined, left);
         }
 
-        out.println(sb.toString());
+        if (incremental) {
+            send(Protocol.SVR_ONLINE_DELTA, version, String.join(",", joined), String.join(",", left));
+        } else {
+            // Phiên bản quá cũ (vòng đệm đã ghi đè) hoặc từ lần chạy khác: gửi lại toàn bộ
+            List<String> users = new ArrayList<>();
+            version = ChatServer.snapshotOnlineUsers(users);
+            send(Protocol.SVR_ONLINE_USERS, String.join(",", users), version);
+        }
     }
 
-    private void handleCreateGroup(String message) {
-        String groupName = message.substring(Protocol.CMD_CREATE_GROUP.length()).trim();
+    private void handleCreateGroup(FieldReader args) {
+        String groupName = args.rest().trim();
 
         if (groupName.isEmpty()) {
-            out.println(Protocol.SVR_ERROR + "Tên nhóm không được để trống");
+            send(Protocol.SVR_ERROR, "Tên nhóm không được để trống");
             return;
         }
 
         if (GroupDAO.groupExists(groupName)) {
-            out.println(Protocol.SVR_ERROR + "Nhóm này đã tồn tại");
+            send(Protocol.SVR_ERROR, "Nhóm này đã tồn tại");
             return;
         }
 
         boolean success = GroupDAO.createGroup(groupName, username);
 
         if (success) {
-            out.println(Protocol.SVR_CREATE_GROUP_SUCCESS + groupName);
+            send(Protocol.SVR_CREATE_GROUP_SUCCESS, groupName);
 
-            ChatServer.broadcastMessage(Protocol.SVR_NEW_GROUP + groupName +
-                    Protocol.PARAM_DELIMITER + username);
+            ChatServer.broadcastMessage(Protocol.SVR_NEW_GROUP, groupName, username);
         } else {
-            out.println(Protocol.SVR_ERROR + "Không thể tạo nhóm");
+            send(Protocol.SVR_ERROR, "Không thể tạo nhóm");
         }
     }
 
-    private void handleAddToGroup(String message) {
-        String content = message.substring(Protocol.CMD_ADD_TO_GROUP.length());
-        String[] parts = content.split("\\|", 2);
-
-        if (parts.length != 2) {
-            out.println(Protocol.SVR_ERROR + "Định dạng lệnh không hợp lệ");
+    private void handleAddToGroup(FieldReader args) {
+        if (args.remaining() < 2) {
+            send(Protocol.SVR_ERROR, "Định dạng lệnh không hợp lệ");
             return;
         }
 
-        String groupName = parts[0].trim();
-        String targetUser = parts[1].trim();
+        String groupName = args.nextString().trim();
+        String targetUser = args.nextString().trim();
 
         if (!GroupDAO.groupExists(groupName)) {
-            out.println(Protocol.SVR_ERROR + "Nhóm không tồn tại");
+            send(Protocol.SVR_ERROR, "Nhóm không tồn tại");
             return;
         }
 
         if (!GroupDAO.isGroupMember(groupName, username)) {
-            out.println(Protocol.SVR_ERROR + "Bạn không phải là thành viên của nhóm này");
+            send(Protocol.SVR_ERROR, "Bạn không phải là thành viên của nhóm này");
             return;
         }
 
         if (!UserDAO.usernameExists(targetUser)) {
-            out.println(Protocol.SVR_ERROR + "Người dùng không tồn tại");
+            send(Protocol.SVR_ERROR, "Người dùng không tồn tại");
             return;
         }
 
         if (GroupDAO.isGroupMember(groupName, targetUser)) {
-            out.println(Protocol.SVR_ERROR + targetUser + " đã là thành viên của nhóm");
+            send(Protocol.SVR_ERROR, targetUser + " đã là thành viên của nhóm");
             return;
         }
 
         boolean success = GroupDAO.addMemberToGroup(groupName, targetUser);
 
         if (success) {
-            out.println(Protocol.SVR_ADD_TO_GROUP_SUCCESS + groupName +
-                    Protocol.PARAM_DELIMITER + targetUser);
+            send(Protocol.SVR_ADD_TO_GROUP_SUCCESS, groupName, targetUser);
 
             List<String> members = GroupDAO.getGroupMembers(groupName);
-            for (String member : members) {
-                ClientHandler memberHandler = ChatServer.getClientHandler(member);
-                if (memberHandler != null && !member.equals(username)) {
-                    memberHandler.sendMessage(Protocol.SVR_GROUP_USER_ADDED +
-                            groupName + Protocol.PARAM_DELIMITER +
-                            targetUser + Protocol.PARAM_DELIMITER +
-                            username);
-                }
-            }
+            ChatServer.sendToUsers(members, username, Protocol.SVR_GROUP_USER_ADDED, groupName, targetUser, username);
 
             ClientHandler targetHandler = ChatServer.getClientHandler(targetUser);
             if (targetHandler != null) {
-                targetHandler.sendMessage(Protocol.SVR_ADDED_TO_GROUP +
-                        groupName + Protocol.PARAM_DELIMITER +
-                        username);
+                targetHandler.send(Protocol.SVR_ADDED_TO_GROUP, groupName, username);
             }
         } else {
-            out.println(Protocol.SVR_ERROR + "Không thể thêm người dùng vào nhóm");
+            send(Protocol.SVR_ERROR, "Không thể thêm người dùng vào nhóm");
         }
     }
 
-    private void handleLeaveGroup(String message) {
-        String groupName = message.substring(Protocol.CMD_LEAVE_GROUP.length()).trim();
+    private void handleLeaveGroup(FieldReader args) {
+        String groupName = args.rest().trim();
 
         // Kiểm tra xem nhóm có tồn tại không
         if (!GroupDAO.groupExists(groupName)) {
-            out.println(Protocol.SVR_ERROR + "Nhóm không tồn tại");
+            send(Protocol.SVR_ERROR, "Nhóm không tồn tại");
             return;
         }
 
         // Kiểm tra xem người dùng có phải là thành viên của nhóm không
         if (!GroupDAO.isGroupMember(groupName, username)) {
-            out.println(Protocol.SVR_ERROR + "Bạn không phải là thành viên của nhóm này");
+            send(Protocol.SVR_ERROR, "Bạn không phải là thành viên của nhóm này");
             return;
         }
 
@@ -484,102 +558,67 @@ public class ClientHandler implements Runnable {
 
         if (success) {
             // Thông báo cho người rời nhóm
-            out.println(Protocol.SVR_LEFT_GROUP + groupName);
+            send(Protocol.SVR_LEFT_GROUP, groupName);
 
             // Thông báo cho tất cả thành viên còn lại trong nhóm
             List<String> members = GroupDAO.getGroupMembers(groupName);
-            for (String member : members) {
-                ClientHandler memberHandler = ChatServer.getClientHandler(member);
-                if (memberHandler != null) {
-                    memberHandler.sendMessage(Protocol.SVR_GROUP_USER_LEFT +
-                            groupName + Protocol.PARAM_DELIMITER +
-                            username);
-                }
-            }
+            ChatServer.sendToUsers(members, null, Protocol.SVR_GROUP_USER_LEFT, groupName, username);
 
             if (members.isEmpty()) {
                 GroupDAO.deleteGroup(groupName);
             }
         } else {
-            out.println(Protocol.SVR_ERROR + "Không thể rời khỏi nhóm");
+            send(Protocol.SVR_ERROR, "Không thể rời khỏi nhóm");
         }
     }
 
     private void handleGetGroups() {
-        // Lấy danh sách nhóm mà người dùng tham gia
-        List<Map<String, Object>> userGroups = GroupDAO.getUserGroups(username);
-
-        if (userGroups.isEmpty()) {
-            out.println(Protocol.SVR_GROUP_LIST);
-            return;
-        }
-
-        StringBuilder groupList = new StringBuilder();
-
-        for (Map<String, Object> group : userGroups) {
-            String groupName = (String) group.get("name");
-            String creator = (String) group.get("creator");
-
-            // Lấy danh sách thành viên
-            List<String> members = GroupDAO.getGroupMembers(groupName);
-
-            groupList.append(groupName).append(":")
-                    .append(creator).append(":");
-
-            // Thêm danh sách thành viên
-            for (int i = 0; i < members.size(); i++) {
-                groupList.append(members.get(i));
-                if (i < members.size() - 1) {
-                    groupList.append(",");
-                }
-            }
+        // Lấy danh sách nhóm mà người dùng tham gia, kèm thành viên, trong một truy vấn
+        List<GroupSummary> userGroups = GroupDAO.getUserGroups(username);
 
-            groupList.append("|");
-        }
+        // Mỗi nhóm là một tham số "tên:người tạo:tv1,tv2,..." để tên nhóm có '|' vẫn được escape đúng
+        Object[] groupList = new Object[userGroups.size()];
 
-        // Xóa dấu | cuối cùng nếu có
-        if (!groupList.isEmpty() && groupList.charAt(groupList.length() - 1) == '|') {
-            groupList.deleteCharAt(groupList.length() - 1);
+        for (int g = 0; g < userGroups.size(); g++) {
+            GroupSummary group = userGroups.get(g);
+            groupList[g] = group.getName() + ":" + group.getCreator() + ":" + String.join(",", group.getMembers());
         }
 
-        out.println(Protocol.SVR_GROUP_LIST + groupList.toString());
+        send(Protocol.SVR_GROUP_LIST, groupList);
     }
 
-    private void handleRemoveFromGroup(String message) {
-        String content = message.substring(Protocol.CMD_REMOVE_FROM_GROUP.length());
-        String[] parts = content.split("\\|", 2);
-
-        if (parts.length != 2) {
-            out.println(Protocol.SVR_ERROR + "Định dạng lệnh không hợp lệ");
+    private void handleRemoveFromGroup(FieldReader args) {
+        if (args.remaining() < 2) {
+            send(Protocol.SVR_ERROR, "Định dạng lệnh không hợp lệ");
             return;
         }
 
-        String groupName = parts[0].trim();
-        String targetUser = parts[1].trim();
+        String groupName = args.nextString().trim();
+        String targetUser = args.nextString().trim();
 
         // Kiểm tra xem nhóm có tồn tại không
         if (!GroupDAO.groupExists(groupName)) {
-            out.println(Protocol.SVR_ERROR + "Nhóm không tồn tại");
+            send(Protocol.SVR_ERROR, "Nhóm không tồn tại");
             return;
         }
 
         // Lấy thông tin nhóm
         Map<String, Object> groupInfo = GroupDAO.getGroupInfo(groupName);
         if (groupInfo == null) {
-            out.println(Protocol.SVR_ERROR + "Không thể lấy thông tin nhóm");
+            send(Protocol.SVR_ERROR, "Không thể lấy thông tin nhóm");
             return;
         }
 
         // Kiểm tra xem người dùng có phải là người tạo nhóm không
         String creator = (String) groupInfo.get("creator");
         if (!username.equals(creator)) {
-            out.println(Protocol.SVR_ERROR + "Bạn không có quyền xóa thành viên khỏi nhóm");
+            send(Protocol.SVR_ERROR, "Bạn không có quyền xóa thành viên khỏi nhóm");
             return;
         }
 
         // Kiểm tra xem người bị xóa có phải là thành viên của nhóm không
         if (!GroupDAO.isGroupMember(groupName, targetUser)) {
-            out.println(Protocol.SVR_ERROR + targetUser + " không phải là thành viên của nhóm");
+            send(Protocol.SVR_ERROR, targetUser + " không phải là thành viên của nhóm");
             return;
         }
 
@@ -588,180 +627,159 @@ public class ClientHandler implements Runnable {
 
         if (success) {
             // Thông báo cho người xóa
-            out.println(Protocol.SVR_REMOVE_FROM_GROUP_SUCCESS +
-                    groupName + Protocol.PARAM_DELIMITER + targetUser);
+            send(Protocol.SVR_REMOVE_FROM_GROUP_SUCCESS, groupName, targetUser);
 
             // Thông báo cho người bị xóa
             ClientHandler targetHandler = ChatServer.getClientHandler(targetUser);
             if (targetHandler != null) {
-                targetHandler.sendMessage(Protocol.SVR_REMOVED_FROM_GROUP +
-                        groupName + Protocol.PARAM_DELIMITER + username);
+                targetHandler.send(Protocol.SVR_REMOVED_FROM_GROUP, groupName, username);
             }
 
             // Thông báo cho tất cả thành viên còn lại trong nhóm
             List<String> members = GroupDAO.getGroupMembers(groupName);
-            for (String member : members) {
-                ClientHandler memberHandler = ChatServer.getClientHandler(member);
-                if (memberHandler != null && !member.equals(username)) {
-                    memberHandler.sendMessage(Protocol.SVR_GROUP_USER_LEFT +
-                            groupName + Protocol.PARAM_DELIMITER +
-                            targetUser + Protocol.PARAM_DELIMITER +
-                            "removed");
-                }
-            }
+            ChatServer.sendToUsers(members, username, Protocol.SVR_GROUP_USER_LEFT, groupName, targetUser, "removed");
         } else {
-            out.println(Protocol.SVR_ERROR + "Không thể xóa người dùng khỏi nhóm");
+            send(Protocol.SVR_ERROR, "Không thể xóa người dùng khỏi nhóm");
         }
     }
 
-    private void handleFileSendRequest(String message) {
-        String content = message.substring(Protocol.CMD_FILE_SEND.length());
-        String[] parts = content.split("\\|", 4);
-
-        if (parts.length != 4) {
-            out.println(Protocol.SVR_ERROR + "Định dạng yêu cầu file không hợp lệ.");
+    private void handleFileSendRequest(FieldReader args) {
+        if (args.remaining() < 4) {
+            send(Protocol.SVR_ERROR, "Định dạng yêu cầu file không hợp lệ.");
             return;
         }
 
-        String receiver = parts[0].trim();
-        String fileName = parts[1];
+        String receiver = args.nextString().trim();
+        String fileName = args.nextString();
         long fileSize;
 
         try {
-            fileSize = Long.parseLong(parts[2]);
+            fileSize = args.nextLong();
         } catch (NumberFormatException e) {
-            out.println(Protocol.SVR_ERROR + "Kích thước file không hợp lệ.");
+            send(Protocol.SVR_ERROR, "Kích thước file không hợp lệ.");
             return;
         }
 
-        String fileId = parts[3].trim();
+        String fileId = args.nextString().trim();
         String sender = username;
 
         if (!UserDAO.usernameExists(receiver)) {
-            out.println(Protocol.SVR_ERROR + "Người dùng không tồn tại.");
+            send(Protocol.SVR_ERROR, "Người dùng không tồn tại.");
             return;
         }
 
         long timestamp = System.currentTimeMillis();
-        MessageDAO.saveFileMessage(sender, receiver, fileId, fileName, fileSize, "private", false, timestamp);
+        CompletableFuture<Boolean> saved = MessageDAO.saveFileMessageAsync(sender, receiver, fileId, fileName,
+                fileSize, "private", false, timestamp);
+
+        // Chỉ tạo phiên chuyển file khi tin nhắn file đã được commit: client chỉ upload được sau đó, nên lệnh đổi
+        // tên file thực tế sau upload luôn tìm thấy dòng tin nhắn
+        saved.thenAccept(ok -> {
+            if (!ok) {
+                send(Protocol.SVR_ERROR, "Không thể lưu tin nhắn file.");
+                return;
+            }
 
-        String _fileId = FileService.createFileTransferRequest(sender, receiver, fileName, fileSize, fileId);
-        if (_fileId == null) {
-            out.println(Protocol.SVR_ERROR + "Không thể tạo yêu cầu chuyển file.");
-            return;
-        }
+            String _fileId = FileService.createFileTransferRequest(sender, receiver, fileName, fileSize, fileId);
+            if (_fileId == null) {
+                send(Protocol.SVR_ERROR, "Không thể tạo yêu cầu chuyển file.");
+                return;
+            }
 
-        ClientHandler receiverHandler = ChatServer.getClientHandler(receiver);
-        if (receiverHandler != null) {
-            // Thông báo cho người nhận file
-            receiverHandler.sendMessage(Protocol.SVR_FILE_REQUEST + fileId +
-                    Protocol.PARAM_DELIMITER + sender +
-                    Protocol.PARAM_DELIMITER + fileName +
-                    Protocol.PARAM_DELIMITER + fileSize +
-                    Protocol.PARAM_DELIMITER + timestamp);
+            ClientHandler receiverHandler = ChatServer.getClientHandler(receiver);
+            if (receiverHandler != null) {
+                // Thông báo cho người nhận file
+                receiverHandler.send(Protocol.SVR_FILE_REQUEST, fileId, sender, fileName, fileSize, timestamp);
 
-            // Thông báo cho người gửi biết đã gửi yêu cầu
-            out.println(Protocol.SVR_FILE_REQUEST + fileId +
-                    Protocol.PARAM_DELIMITER + receiver +
-                    Protocol.PARAM_DELIMITER + fileName +
-                    Protocol.PARAM_DELIMITER + fileSize +
-                    Protocol.PARAM_DELIMITER + timestamp);
-        } else {
-            out.println(Protocol.SVR_ERROR + "Người nhận không online.");
-        }
+                // Thông báo cho người gửi biết đã gửi yêu cầu
+                send(Protocol.SVR_FILE_REQUEST, fileId, receiver, fileName, fileSize, timestamp);
+            } else {
+                send(Protocol.SVR_ERROR, "Người nhận không online.");
+            }
+        });
     }
 
-    private void handleGroupFileSend(String message) {
-        String content = message.substring(Protocol.CMD_GROUP_FILE_SEND.length());
-        String[] parts = content.split("\\|", 4);
-
-        if (parts.length != 4) {
-            out.println(Protocol.SVR_ERROR + "Định dạng yêu cầu file không hợp lệ.");
+    private void handleGroupFileSend(FieldReader args) {
+        if (args.remaining() < 4) {
+            send(Protocol.SVR_ERROR, "Định dạng yêu cầu file không hợp lệ.");
             return;
         }
 
-        String groupName = parts[0].trim();
-        String fileName = parts[1];
+        String groupName = args.nextString().trim();
+        String fileName = args.nextString();
         long fileSize;
         try {
-            fileSize = Long.parseLong(parts[2]);
+            fileSize = args.nextLong();
         } catch (NumberFormatException e) {
-            out.println(Protocol.SVR_ERROR + "Kích thước file không hợp lệ.");
+            send(Protocol.SVR_ERROR, "Kích thước file không hợp lệ.");
             return;
         }
-        String fileId = parts[3].trim();
+        String fileId = args.nextString().trim();
         String sender = username;
 
         if (!GroupDAO.groupExists(groupName)) {
-            out.println(Protocol.SVR_ERROR + "Nhóm không tồn tại.");
+            send(Protocol.SVR_ERROR, "Nhóm không tồn tại.");
             return;
         }
 
         if (!GroupDAO.isGroupMember(groupName, sender)) {
-            out.println(Protocol.SVR_ERROR + "Bạn không phải là thành viên của nhóm này.");
+            send(Protocol.SVR_ERROR, "Bạn không phải là thành viên của nhóm này.");
             return;
         }
 
         long timestamp = System.currentTimeMillis();
-        MessageDAO.saveFileMessage(sender, groupName, fileId, fileName, fileSize, "group", true, timestamp);
+        CompletableFuture<Boolean> saved = MessageDAO.saveFileMessageAsync(sender, groupName, fileId, fileName,
+                fileSize, "group", true, timestamp);
 
-        for (String member : GroupDAO.getGroupMembers(groupName)) {
-            MessageDAO.saveMessageGroupActualFilename(fileId, member);
-        }
+        List<String> members = GroupDAO.getGroupMembers(groupName);
+        MessageDAO.saveMessageGroupActualFilenames(fileId, members);
 
-        String _fileId = FileService.createFileTransferRequest(sender, groupName, fileName, fileSize, fileId);
-        if (_fileId == null) {
-            out.println(Protocol.SVR_ERROR + "Không thể tạo yêu cầu chuyển file.");
-            return;
-        }
+        // Như file riêng: phiên chuyển file chỉ có sau khi tin nhắn file đã được commit
+        saved.thenAccept(ok -> {
+            if (!ok) {
+                send(Protocol.SVR_ERROR, "Không thể lưu tin nhắn file.");
+                return;
+            }
 
-        List<String> members = GroupDAO.getGroupMembers(groupName);
-        boolean hasMemberOnline = false;
-        for (String member : members) {
-            ClientHandler memberHandler = ChatServer.getClientHandler(member);
-            if (memberHandler != null && !member.equals(sender)) {
-                // Thông báo cho tất cả thành viên trong nhóm
-                hasMemberOnline = true;
-                memberHandler.sendMessage(Protocol.SVR_GROUP_FILE_REQUEST + groupName +
-                        Protocol.PARAM_DELIMITER + sender +
-                        Protocol.PARAM_DELIMITER + fileName +
-                        Protocol.PARAM_DELIMITER + fileSize +
-                        Protocol.PARAM_DELIMITER + fileId +
-                        Protocol.PARAM_DELIMITER + memberHandler.username +
-                        Protocol.PARAM_DELIMITER + timestamp);
+            String _fileId = FileService.createFileTransferRequest(sender, groupName, fileName, fileSize, fileId);
+            if (_fileId == null) {
+                send(Protocol.SVR_ERROR, "Không thể tạo yêu cầu chuyển file.");
+                return;
             }
-        }
 
-        // Thông báo cho người gửi biết đã gửi yêu cầu
-        out.println(Protocol.SVR_GROUP_FILE_REQUEST + groupName +
-                Protocol.PARAM_DELIMITER + sender +
-                Protocol.PARAM_DELIMITER + fileName +
-                Protocol.PARAM_DELIMITER + fileSize +
-                Protocol.PARAM_DELIMITER + fileId +
-                Protocol.PARAM_DELIMITER + sender +
-                Protocol.PARAM_DELIMITER + timestamp +
-                Protocol.PARAM_DELIMITER + hasMemberOnline);
-    }
+            boolean hasMemberOnline = false;
+            for (String member : members) {
+                ClientHandler memberHandler = ChatServer.getClientHandler(member);
+                if (memberHandler != null && !member.equals(sender)) {
+                    // Thông báo cho tất cả thành viên trong nhóm
+                    hasMemberOnline = true;
+                    memberHandler.send(Protocol.SVR_GROUP_FILE_REQUEST, groupName, sender, fileName, fileSize, fileId,
+                            memberHandler.username, timestamp);
+                }
+            }
 
-    private void handleGroupFileAccept(String message) {
-        String content = message.substring(Protocol.CMD_GROUP_FILE_ACCEPT.length());
-        String[] parts = content.split("\\|", 2);
+            // Thông báo cho người gửi biết đã gửi yêu cầu
+            send(Protocol.SVR_GROUP_FILE_REQUEST, groupName, sender, fileName, fileSize, fileId, sender, timestamp,
+                    hasMemberOnline);
+        });
+    }
 
-        if (parts.length != 2) {
-            out.println(Protocol.SVR_ERROR + "Định dạng lệnh không hợp lệ");
+    private void handleGroupFileAccept(FieldReader args) {
+        if (args.remaining() < 2) {
+            send(Protocol.SVR_ERROR, "Định dạng lệnh không hợp lệ");
             return;
         }
 
-        String groupName = parts[0].trim();
-        String fileId = parts[1].trim();
+        String groupName = args.nextString().trim();
+        String fileId = args.nextString().trim();
 
         if (!GroupDAO.groupExists(groupName)) {
-            out.println(Protocol.SVR_ERROR + "Nhóm không tồn tại");
+            send(Protocol.SVR_ERROR, "Nhóm không tồn tại");
             return;
         }
 
         if (!GroupDAO.isGroupMember(groupName, username)) {
-            out.println(Protocol.SVR_ERROR + "Bạn không phải là thành viên của nhóm này");
+            send(Protocol.SVR_ERROR, "Bạn không phải là thành viên của nhóm này");
             return;
         }
 
@@ -770,106 +788,91 @@ public class ClientHandler implements Runnable {
         FileService.acceptFileTransfer(fileId, username, groupName);
     }
 
-    private void handleFileAccept(String message) {
-        String fileId = message.substring(Protocol.CMD_FILE_ACCEPT.length()).trim();
+    private void handleFileAccept(FieldReader args) {
+        String fileId = args.rest().trim();
 
         System.out.println("Client accepts file: fileId=" + fileId + ", username=" + username);
 
         FileService.acceptFileTransfer(fileId, username, null);
     }
 
-    private void handleFileReject(String message) {
-        String fileId = message.substring(Protocol.CMD_FILE_REJECT.length()).trim();
+    private void handleFileReject(FieldReader args) {
+        String fileId = args.rest().trim();
 
         // Xử lý từ chối file
         FileService.rejectFileTransfer(fileId, username);
     }
 
-    private void handleChangeMessageActualFilenameSave(String message) {
-        String content = message.substring(Protocol.CMD_CHANGE_MESSAGE_ACTUAL_FILENAME_SAVE.length());
-        String[] parts = content.split("\\|", 2);
-
-        if (parts.length != 2) {
-            out.println(Protocol.SVR_ERROR + "Định dạng lệnh không hợp lệ");
+    private void handleChangeMessageActualFilenameSave(FieldReader args) {
+        if (args.remaining() < 2) {
+            send(Protocol.SVR_ERROR, "Định dạng lệnh không hợp lệ");
             return;
         }
 
-        String fileId = parts[0].trim();
-        String actualFileName = parts[1].trim();
+        String fileId = args.nextString().trim();
+        String actualFileName = args.nextString().trim();
 
         MessageDAO.updateActualFilenameSave(actualFileName, fileId);
     }
 
-    private void handleChangeMessageGroupActualFilenameSave(String message) {
-        String content = message.substring(Protocol.CMD_CHANGE_MESSAGE_GROUP_ACTUAL_FILENAME_SAVE.length());
-        String[] parts = content.split("\\|", 3);
-
-        if (parts.length != 3) {
-            out.println(Protocol.SVR_ERROR + "Định dạng lệnh không hợp lệ");
+    private void handleChangeMessageGroupActualFilenameSave(FieldReader args) {
+        if (args.remaining() < 3) {
+            send(Protocol.SVR_ERROR, "Định dạng lệnh không hợp lệ");
             return;
         }
 
-        String fileId = parts[0].trim();
-        String actualFileName = parts[1].trim();
-        String username = parts[2].trim();
+        String fileId = args.nextString().trim();
+        String actualFileName = args.nextString().trim();
+        String username = args.nextString().trim();
 
         MessageDAO.updateActualFilenameSaveInMessageGroupFileName(actualFileName, fileId, username);
     }
 
-    private void handleChangeMessageActualFilenameUpload(String message) {
-        String content = message.substring(Protocol.CMD_CHANGE_MESSAGE_ACTUAL_FILENAME_UPLOAD.length());
-        String[] parts = content.split("\\|", 2);
-
-        if (parts.length != 2) {
-            out.println(Protocol.SVR_ERROR + "Định dạng lệnh không hợp lệ");
+    private void handleChangeMessageActualFilenameUpload(FieldReader args) {
+        if (args.remaining() < 2) {
+            send(Protocol.SVR_ERROR, "Định dạng lệnh không hợp lệ");
             return;
         }
 
-        String fileId = parts[0].trim();
-        String actualFileName = parts[1].trim();
+        String fileId = args.nextString().trim();
+        String actualFileName = args.nextString().trim();
 
         MessageDAO.updateActualFilenameUpload(actualFileName, fileId);
     }
 
-    private void handleChangeMessageGroupActualFilenameUpload(String message) {
-        String content = message.substring(Protocol.CMD_CHANGE_MESSAGE_GROUP_ACTUAL_FILENAME_UPLOAD.length());
-        String[] parts = content.split("\\|", 3);
-
-        if (parts.length != 3) {
-            out.println(Protocol.SVR_ERROR + "Định dạng lệnh không hợp lệ");
+    private void handleChangeMessageGroupActualFilenameUpload(FieldReader args) {
+        if (args.remaining() < 3) {
+            send(Protocol.SVR_ERROR, "Định dạng lệnh không hợp lệ");
             return;
         }
 
-        String fileId = parts[0].trim();
-        String actualFileName = parts[1].trim();
-        String username = parts[2].trim();
+        String fileId = args.nextString().trim();
+        String actualFileName = args.nextString().trim();
+        String username = args.nextString().trim();
 
         MessageDAO.updateActualFilenameUploadInMessageGroupFileName(actualFileName, fileId, username);
     }
 
-    private void handleFileDownloadRequest(String message) {
-        String content = message.substring(Protocol.CMD_FILE_DOWNLOAD.length());
-        String[] parts = content.split("\\|", 5);
-
-        if (parts.length != 5) {
-            out.println(Protocol.SVR_ERROR + "Định dạng yêu cầu tải file không hợp lệ.");
+    private void handleFileDownloadRequest(FieldReader args) {
+        if (args.remaining() < 5) {
+            send(Protocol.SVR_ERROR, "Định dạng yêu cầu tải file không hợp lệ.");
             return;
         }
 
-        String fileId = parts[0].trim();
-        String sender = parts[1].trim();
-        String receiver = parts[2].trim();
-        String fileName = parts[3].trim();
+        String fileId = args.nextString().trim();
+        String sender = args.nextString().trim();
+        String receiver = args.nextString().trim();
+        String fileName = args.nextString().trim();
         long fileSize;
         try {
-            fileSize = Long.parseLong(parts[4].trim());
+            fileSize = args.nextLong();
         } catch (NumberFormatException e) {
-            out.println(Protocol.SVR_ERROR + "Kích thước file không hợp lệ.");
+            send(Protocol.SVR_ERROR, "Kích thước file không hợp lệ.");
             return;
         }
 
         if (!UserDAO.usernameExists(receiver)) {
-            out.println(Protocol.SVR_ERROR + "Người dùng không tồn tại.");
+            send(Protocol.SVR_ERROR, "Người dùng không tồn tại.");
             return;
         }
 
@@ -877,46 +880,38 @@ public class ClientHandler implements Runnable {
 
         String _fileId = FileService.createFileTransferRequest(sender, receiver, fileName, fileSize, fileId);
         if (_fileId == null) {
-            out.println(Protocol.SVR_ERROR + "Không thể tạo yêu cầu chuyển file.");
+            send(Protocol.SVR_ERROR, "Không thể tạo yêu cầu chuyển file.");
             return;
         }
 
         ClientHandler receiverHandler = ChatServer.getClientHandler(receiver);
         if (receiverHandler != null) {
             // Thông báo cho người nhận file
-            receiverHandler.sendMessage(Protocol.SVR_FILE_DOWNLOAD_REQUEST + fileId +
-                    Protocol.PARAM_DELIMITER + sender +
-                    Protocol.PARAM_DELIMITER + fileName +
-                    Protocol.PARAM_DELIMITER + fileSize);
+            receiverHandler.send(Protocol.SVR_FILE_DOWNLOAD_REQUEST, fileId, sender, fileName, fileSize);
         } else {
-            out.println(Protocol.SVR_ERROR + "Người nhận không online.");
+            send(Protocol.SVR_ERROR, "Người nhận không online.");
         }
     }
 
-    private void handleFileDownloadAccept(String message) {
-        String content = message.substring(Protocol.CMD_FILE_DOWNLOAD_ACCEPT.length());
-        String[] parts = content.split("\\|", 2);
-
-        if (parts.length != 2) {
-            out.println(Protocol.SVR_ERROR + "Định dạng lệnh không hợp lệ");
+    private void handleFileDownloadAccept(FieldReader args) {
+        if (args.remaining() < 2) {
+            send(Protocol.SVR_ERROR, "Định dạng lệnh không hợp lệ");
             return;
         }
 
-        String fileId = parts[0].trim();
-        String receiver = parts[1].trim();
+        String fileId = args.nextString().trim();
+        String receiver = args.nextString().trim();
 
         if (!UserDAO.usernameExists(receiver)) {
-            out.println(Protocol.SVR_ERROR + "Người dùng không tồn tại");
+            send(Protocol.SVR_ERROR, "Người dùng không tồn tại");
             return;
         }
 
         ClientHandler receiverHandler = ChatServer.getClientHandler(receiver);
         FileService.FileTransferInfo transferInfo = FileService.getFileTransferInfo(fileId);
         if (receiverHandler != null) {
-            receiverHandler.sendMessage(Protocol.SVR_FILE_DOWNLOAD_ACCEPT + transferInfo.getFileId() +
-                    Protocol.PARAM_DELIMITER + transferInfo.getSender() +
-                    Protocol.PARAM_DELIMITER + transferInfo.getFileName() +
-                    Protocol.PARAM_DELIMITER + transferInfo.getFileSize());
+            receiverHandler.send(Protocol.SVR_FILE_DOWNLOAD_ACCEPT, transferInfo.getFileId(), transferInfo.getSender(),
+                    transferInfo.getFileName(), transferInfo.getFileSize());
         }
     }
 
@@ -924,9 +919,13 @@ public class ClientHandler implements Runnable {
         closeConnection();
     }
 
-    public void sendMessage(String message) {
-        if (out != null) {
-            out.println(message);
+    public void send(String command, Object... fields) {
+        sendFrame(OutboundFrame.of(command, fields));
+    }
+
+    public void sendFrame(OutboundFrame frame) {
+        if (connection != null) {
+            connection.send(frame);
         }
     }
 
@@ -935,12 +934,16 @@ public class ClientHandler implements Runnable {
     }
 
     public void closeConnection() {
+        // Có thể được gọi nhiều lần (lệnh /exit, mất kết nối, dừng server)
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
         try {
             if (authenticated && username != null) {
                 ChatServer.removeOnlineUser(username);
 
-                String leaveMessage = Protocol.SVR_USER_LEFT + username;
-                ChatServer.broadcastToAllClients(leaveMessage);
+                ChatServer.announceUserLeft(username);
             }
 
             ChatServer instance = ChatServer.getInstance();
@@ -948,20 +951,14 @@ public class ClientHandler implements Runnable {
                 instance.removeClientHandler(this.id);
             }
 
-            if (in != null) {
-                in.close();
-            }
-            if (out != null) {
-                out.close();
-            }
-            if (clientSocket != null && !clientSocket.isClosed()) {
-                clientSocket.close();
+            if (connection != null) {
+                connection.close();
             }
 
-            System.out.println("Client đã ngắt kết nối: " + (username != null ? username : Objects.requireNonNull(clientSocket).getInetAddress()));
+            System.out.println("Client đã ngắt kết nối: " + (username != null ? username : Objects.requireNonNull(connection).getRemoteAddress()));
         }  catch (IOException e) {
             System.err.println("Lỗi khi đóng kết nối: " + e.getMessage());
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,122 @@
+package server;
+
+import util.BinaryProtocol;
+import util.FieldReader;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bảng lệnh của ClientHandler: tra handler theo tên lệnh (dòng văn bản) hoặc opcode (khung nhị phân)
+// trong thời gian hằng số, đồng thời thống kê số lần gọi, số lỗi và độ trễ của từng lệnh.
+public class CommandRegistry {
+    public interface Handler {
+        void handle(ClientHandler client, FieldReader args);
+    }
+
+    public static class Command {
+        private final String prefix;
+        private final boolean requiresLogin;
+        private final Handler handler;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private Command(String prefix, boolean requiresLogin, Handler handler) {
+            this.prefix = prefix;
+            this.requiresLogin = requiresLogin;
+            this.handler = handler;
+        }
+
+        void invoke(ClientHandler client, FieldReader args) {
+            long start = System.nanoTime();
+            try {
+                handler.handle(client, args);
+            } catch (RuntimeException e) {
+                errors.increment();
+                throw e;
+            } finally {
+                count.increment();
+                latency.record(System.nanoTime() - start);
+            }
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public boolean requiresLogin() {
+            return requiresLogin;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+    }
+
+    private final Map<String, Command> byName = new HashMap<>();
+    private final Command[] byOpcode = new Command[256];
+
+    public void register(String prefix, boolean requiresLogin, Handler handler) {
+        Command command = new Command(prefix, requiresLogin, handler);
+        byName.put(prefix.trim(), command);
+        byOpcode[BinaryProtocol.commandOpcode(prefix)] = command;
+    }
+
+    // Tên lệnh là phần trước dấu cách đầu tiên của dòng
+    public Command lookup(String message) {
+        int space = message.indexOf(' ');
+        return byName.get(space < 0 ? message : message.substring(0, space));
+    }
+
+    public Command lookup(int opcode) {
+        return opcode >= 0 && opcode < byOpcode.length ? byOpcode[opcode] : null;
+    }
+
+    public List<Command> getCommands() {
+        return new ArrayList<>(byName.values());
+    }
+
+    public long getTotalCount() {
+        long total = 0;
+        for (Command command : byName.values()) {
+            total += command.getCount();
+        }
+        return total;
+    }
+
+    // Bảng thống kê cho người vận hành, lệnh gọi nhiều nhất đứng đầu
+    public String report() {
+        List<Command> commands = getCommands();
+        commands.sort(Comparator.comparingLong(Command::getCount).reversed());
+
+        StringBuilder sb = new StringBuilder(String.format("%-34s %10s %8s %10s %10s %10s %10s%n",
+                "Lệnh", "Số lần", "Lỗi", "p50 (ms)", "p99 (ms)", "p999 (ms)", "max (ms)"));
+        for (Command command : commands) {
+            if (command.getCount() == 0) {
+                continue;
+            }
+            LatencyHistogram latency = command.getLatency();
+            sb.append(String.format("%-34s %10d %8d %10.3f %10.3f %10.3f %10.3f%n",
+                    command.getPrefix().trim(), command.getCount(), command.getErrors(),
+                    toMillis(latency.getValueAtPercentile(50)), toMillis(latency.getValueAtPercentile(99)),
+                    toMillis(latency.getValueAtPercentile(99.9)), toMillis(latency.getMax())));
+        }
+        return sb.toString();
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,58 @@
+package server;
+
+// Con trỏ phân trang lịch sử chat, client chỉ lưu lại và gửi trả nguyên văn.
+// Dạng "b<id>" (các tin cũ hơn tin có id đó) hoặc "a<id>" (các tin mới hơn), id viết theo cơ số 36.
+// Chuỗi rỗng nghĩa là bắt đầu từ tin mới nhất.
+public final class HistoryCursor {
+    private static final char BEFORE = 'b';
+    private static final char AFTER = 'a';
+
+    private final long messageId;
+    private final boolean newer;
+
+    private HistoryCursor(long messageId, boolean newer) {
+        this.messageId = messageId;
+        this.newer = newer;
+    }
+
+    public static final HistoryCursor LATEST = new HistoryCursor(Long.MAX_VALUE, false);
+
+    // Trả về null nếu chuỗi không phải con trỏ hợp lệ
+    public static HistoryCursor parse(String value) {
+        if (value.isEmpty()) {
+            return LATEST;
+        }
+
+        char direction = value.charAt(0);
+        if ((direction != BEFORE && direction != AFTER) || value.length() == 1) {
+            return null;
+        }
+        try {
+            long id = Long.parseLong(value.substring(1), 36);
+            return id < 0 ? null : new HistoryCursor(id, direction == AFTER);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static String before(long messageId) {
+        return BEFORE + Long.toString(messageId, 36);
+    }
+
+    public static String after(long messageId) {
+        return AFTER + Long.toString(messageId, 36);
+    }
+
+    public long getMessageId() {
+        return messageId;
+    }
+
+    public boolean isNewer() {
+        return newer;
+    }
+
+    @Override
+    public String toString() {
+        return newer ? after(messageId) : before(messageId);
+    }
+}
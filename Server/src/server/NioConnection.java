@@ -0,0 +1,373 @@
+package server;
+
+import util.BinaryProtocol;
+import util.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Kết nối non-blocking: event loop đọc và tách dòng (hoặc khung nhị phân), lệnh được xử lý tuần tự trên worker pool,
+// dữ liệu gửi đi được xếp hàng và ghi ra socket bởi event loop.
+public class NioConnection implements ClientConnection {
+    // Bộ đệm dòng lớn hơn mức này sẽ được giải phóng sau khi dùng xong
+    private static final int RETAINED_LINE_BUFFER = 8 * 1024;
+
+    private final SocketChannel channel;
+    private final NioEventLoop eventLoop;
+    private final Executor workers;
+    private final String remoteAddress;
+    private ClientHandler handler;
+    private SelectionKey key;
+
+    // Phần dòng (hoặc khung nhị phân) chưa hoàn chỉnh từ lần đọc trước (chỉ event loop truy cập)
+    private byte[] lineBuffer;
+    private int lineLength;
+    private volatile boolean binary = false;
+    // Chế độ tách dữ liệu đến (chỉ event loop truy cập). Sau một dòng /login, event loop chỉ giữ dữ liệu trong
+    // lineBuffer cho tới khi worker xử lý xong lệnh, rồi mới tách tiếp theo chế độ vừa chọn: khung nhị phân client
+    // gửi ngay sau /loginsuccess không bị đọc nhầm thành văn bản
+    private boolean decodeBinary = false;
+    private boolean awaitingLogin = false;
+
+    // Dữ liệu chờ ghi; chỉ event loop được ghi ra kênh
+    private final OutboundQueue outboundQueue = new OutboundQueue();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    // Lệnh chờ xử lý, chạy tuần tự để giữ đúng thứ tự lệnh của client
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean tasksScheduled = new AtomicBoolean(false);
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+    private volatile boolean readPaused = false;
+
+    private volatile boolean closed = false;
+
+    public NioConnection(SocketChannel channel, NioEventLoop eventLoop, Executor workers) throws IOException {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.workers = workers;
+        this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+    }
+
+    public void setHandler(ClientHandler handler) {
+        this.handler = handler;
+    }
+
+    void register(Selector selector) {
+        try {
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        } catch (ClosedChannelException e) {
+            dispatch(handler::closeConnection);
+        }
+    }
+
+    void onReadable(ByteBuffer readBuffer) {
+        readBuffer.clear();
+        int bytesRead;
+        try {
+            bytesRead = channel.read(readBuffer);
+        } catch (IOException e) {
+            bytesRead = -1;
+        }
+
+        if (bytesRead < 0) {
+            // Client đã đóng kết nối: ngừng theo dõi kênh và dọn dẹp trên worker
+            key.cancel();
+            dispatch(handler::closeConnection);
+            return;
+        }
+
+        byte[] data = readBuffer.array();
+        if (awaitingLogin) {
+            appendPartial(data, 0, bytesRead);
+            return;
+        }
+        if (decodeBinary) {
+            append(data, 0, bytesRead);
+            readFrames();
+            return;
+        }
+        decodeText(data, 0, bytesRead);
+    }
+
+    private void decodeText(byte[] data, int from, int to) {
+        int start = from;
+        for (int i = from; i < to; i++) {
+            if (data[i] == '\n') {
+                if (!appendLine(data, start, i)) {
+                    return;
+                }
+                start = i + 1;
+                if (awaitingLogin) {
+                    break;
+                }
+            }
+        }
+
+        if (start < to) {
+            appendPartial(data, start, to);
+        }
+    }
+
+    // Chạy trên event loop sau khi worker xử lý xong dòng /login: tách phần dữ liệu đã giữ lại theo chế độ mới
+    private void resumeAfterLogin() {
+        awaitingLogin = false;
+        decodeBinary = binary;
+        if (key == null || !key.isValid() || lineLength == 0) {
+            return;
+        }
+
+        if (decodeBinary) {
+            readFrames();
+            return;
+        }
+        byte[] pending = lineBuffer;
+        int pendingLength = lineLength;
+        lineBuffer = null;
+        lineLength = 0;
+        decodeText(pending, 0, pendingLength);
+    }
+
+    private boolean appendLine(byte[] data, int from, int to) {
+        String line;
+        if (lineLength == 0) {
+            line = decodeLine(data, from, to);
+        } else {
+            if (!appendPartial(data, from, to)) {
+                return false;
+            }
+            line = decodeLine(lineBuffer, 0, lineLength);
+            lineLength = 0;
+            if (lineBuffer.length > RETAINED_LINE_BUFFER) {
+                lineBuffer = null;
+            }
+        }
+
+        if (line.startsWith(Protocol.CMD_LOGIN)) {
+            awaitingLogin = true;
+            dispatch(() -> {
+                try {
+                    handler.processMessage(line);
+                } finally {
+                    eventLoop.execute(this::resumeAfterLogin);
+                }
+            });
+        } else {
+            dispatch(() -> handler.processMessage(line));
+        }
+        return true;
+    }
+
+    private boolean appendPartial(byte[] data, int from, int to) {
+        if (lineLength + to - from > ServerConfig.NIO_MAX_LINE_BYTES) {
+            System.err.println("Dòng lệnh quá dài từ " + remoteAddress + ", đóng kết nối.");
+            closeOnReadError();
+            return false;
+        }
+
+        append(data, from, to);
+        return true;
+    }
+
+    private void append(byte[] data, int from, int to) {
+        int length = to - from;
+        if (lineBuffer == null) {
+            lineBuffer = new byte[Math.max(256, length)];
+        } else if (lineLength + length > lineBuffer.length) {
+            lineBuffer = Arrays.copyOf(lineBuffer, Math.max(lineBuffer.length * 2, lineLength + length));
+        }
+        System.arraycopy(data, from, lineBuffer, lineLength, length);
+        lineLength += length;
+    }
+
+    // Tách các khung nhị phân đã nhận đủ, phần khung còn thiếu được giữ lại đầu bộ đệm
+    private void readFrames() {
+        int pos = 0;
+        while (lineLength - pos >= BinaryProtocol.HEADER_SIZE) {
+            int opcode = lineBuffer[pos] & 0xFF;
+            int length = BinaryProtocol.payloadLength(lineBuffer, pos);
+            if (length < 0 || length > ServerConfig.BINARY_MAX_FRAME_BYTES) {
+                System.err.println("Khung nhị phân quá lớn từ " + remoteAddress + ", đóng kết nối.");
+                closeOnReadError();
+                return;
+            }
+            if (lineLength - pos - BinaryProtocol.HEADER_SIZE < length) {
+                break;
+            }
+
+            int payloadStart = pos + BinaryProtocol.HEADER_SIZE;
+            BinaryProtocol.Frame frame;
+            try {
+                int fieldCount = BinaryProtocol.countFields(lineBuffer, payloadStart, length);
+                frame = new BinaryProtocol.Frame(opcode,
+                        Arrays.copyOfRange(lineBuffer, payloadStart, payloadStart + length), fieldCount);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Khung nhị phân không hợp lệ từ " + remoteAddress + ": " + e.getMessage());
+                closeOnReadError();
+                return;
+            }
+            dispatch(() -> handler.processFrame(frame));
+            pos += BinaryProtocol.HEADER_SIZE + length;
+        }
+
+        lineLength -= pos;
+        if (lineLength > 0) {
+            System.arraycopy(lineBuffer, pos, lineBuffer, 0, lineLength);
+        } else if (lineBuffer != null && lineBuffer.length > RETAINED_LINE_BUFFER) {
+            lineBuffer = null;
+        }
+    }
+
+    private void closeOnReadError() {
+        key.cancel();
+        lineBuffer = null;
+        lineLength = 0;
+        dispatch(handler::closeConnection);
+    }
+
+    private static String decodeLine(byte[] data, int from, int to) {
+        if (to > from && data[to - 1] == '\r') {
+            to--;
+        }
+        return new String(data, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    private void dispatch(Runnable task) {
+        tasks.add(task);
+
+        // Client gửi nhanh hơn tốc độ xử lý: tạm dừng đọc để giới hạn bộ nhớ
+        if (pendingTasks.incrementAndGet() >= ServerConfig.NIO_MAX_PENDING_COMMANDS && !readPaused && key != null && key.isValid()) {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        if (tasksScheduled.compareAndSet(false, true)) {
+            workers.execute(this::runTasks);
+        }
+    }
+
+    private void runTasks() {
+        do {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    System.err.println("Lỗi khi xử lý lệnh từ " + remoteAddress + ": " + e.getMessage());
+                    e.printStackTrace();
+                }
+
+                if (pendingTasks.decrementAndGet() <= ServerConfig.NIO_MAX_PENDING_COMMANDS / 2 && readPaused) {
+                    eventLoop.execute(this::resumeReading);
+                }
+            }
+            tasksScheduled.set(false);
+        } while (!tasks.isEmpty() && tasksScheduled.compareAndSet(false, true));
+    }
+
+    private void resumeReading() {
+        if (readPaused && key.isValid()) {
+            readPaused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    public void send(OutboundFrame frame) {
+        if (closed) {
+            return;
+        }
+
+        if (!outboundQueue.offer(frame.buffer(binary))) {
+            onSlowConsumer();
+            return;
+        }
+
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(this::flush);
+        }
+    }
+
+    private void onSlowConsumer() {
+        if (ServerConfig.dropsForSlowConsumers()) {
+            return;
+        }
+
+        System.err.println("Client " + remoteAddress + " nhận chậm (" + outboundQueue.getPendingMessages() +
+                " tin nhắn, " + outboundQueue.getPendingBytes() + " byte đang chờ), ngắt kết nối.");
+        closed = true;
+        eventLoop.execute(() -> {
+            if (key != null) {
+                key.cancel();
+            }
+            dispatch(handler::closeConnection);
+        });
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+
+        try {
+            ByteBuffer buffer;
+            while ((buffer = outboundQueue.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    // Socket đầy: chờ OP_WRITE rồi ghi tiếp
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outboundQueue.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            System.err.println("Lỗi khi gửi dữ liệu tới " + remoteAddress + ": " + e.getMessage());
+            key.cancel();
+            dispatch(handler::closeConnection);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        outboundQueue.clear();
+        channel.close();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    // Được gọi trên worker khi xử lý /login, sau khi /loginsuccess đã xếp hàng dạng văn bản. Chỉ đổi cách mã hóa dữ
+    // liệu gửi đi; event loop đổi cách tách dữ liệu đến trong resumeAfterLogin()
+    @Override
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+}
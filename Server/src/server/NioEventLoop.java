@@ -0,0 +1,92 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Một thread + một Selector phục vụ nhiều kết nối NIO.
+// Mọi thao tác trên SelectionKey/kênh đều chạy trên thread này; thread khác gửi việc qua execute().
+public class NioEventLoop implements Runnable {
+    private final String name;
+    private final Selector selector;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+    // Bộ đệm đọc dùng chung cho tất cả kết nối của loop, mỗi kết nối chỉ giữ phần dòng còn dở
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(ServerConfig.NIO_READ_BUFFER_SIZE);
+
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public NioEventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    public void start() {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    public void register(NioConnection connection) {
+        execute(() -> connection.register(selector));
+    }
+
+    public void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                runPendingTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Lỗi trong event loop " + name + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Lỗi khi đóng selector: " + e.getMessage());
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("Lỗi khi chạy tác vụ trong event loop " + name + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,81 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Cổng chat ở chế độ NIO: một số ít event loop cố định phục vụ toàn bộ kết nối,
+// lệnh của client được chuyển tới worker pool để chạy các hàm handle* của ClientHandler.
+public class NioServer {
+    private final int port;
+    private ServerSocketChannel serverChannel;
+    private NioEventLoop[] eventLoops;
+    private ExecutorService workerPool;
+    private int nextLoop = 0;
+
+    public NioServer(int port) {
+        this.port = port;
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+
+        workerPool = ServerConfig.isVirtualThreadMode()
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(ServerConfig.NIO_WORKER_THREADS);
+
+        eventLoops = new NioEventLoop[ServerConfig.NIO_EVENT_LOOPS];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new NioEventLoop("nio-loop-" + i);
+            eventLoops[i].start();
+        }
+
+        System.out.println("Chat server (NIO, " + eventLoops.length + " event loop) đã khởi động ở port " + port);
+    }
+
+    // Chạy trên thread gọi, trả về khi server socket bị đóng
+    public void acceptConnections() throws IOException {
+        try {
+            while (serverChannel.isOpen()) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                NioEventLoop eventLoop = eventLoops[nextLoop];
+                nextLoop = (nextLoop + 1) % eventLoops.length;
+
+                NioConnection connection = new NioConnection(channel, eventLoop, workerPool);
+                ClientHandler clientHandler = new ClientHandler(connection);
+                connection.setHandler(clientHandler);
+                ChatServer.addClientHandler(clientHandler);
+                eventLoop.register(connection);
+
+                System.out.println("Client mới đã kết nối: " + connection.getRemoteAddress());
+            }
+        } catch (ClosedChannelException e) {
+            // Server đang dừng
+        }
+    }
+
+    public void stop() throws IOException {
+        if (serverChannel != null && serverChannel.isOpen()) {
+            serverChannel.close();
+        }
+
+        if (eventLoops != null) {
+            for (NioEventLoop eventLoop : eventLoops) {
+                eventLoop.shutdown();
+            }
+        }
+
+        if (workerPool != null) {
+            workerPool.shutdown();
+        }
+    }
+}
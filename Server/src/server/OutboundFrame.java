@@ -0,0 +1,66 @@
+package server;
+
+import util.BinaryProtocol;
+import util.Protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Một phản hồi của server (tiền tố SVR_* + các tham số) được mã hóa sẵn thành byte.
+// Khi broadcast, frame được tạo một lần rồi dùng chung cho hàng đợi gửi của mọi người nhận:
+// bản văn bản (UTF-8, các tham số đã escape nối bằng '|', kèm xuống dòng) và bản nhị phân được mã hóa
+// khi có người nhận đầu tiên cần tới và cache lại; mảng byte không bao giờ bị sửa sau khi tạo.
+public final class OutboundFrame {
+    private final String command;
+    private final Object[] fields;
+    private volatile byte[] textBytes;
+    private volatile byte[] binaryBytes;
+
+    private OutboundFrame(String command, Object[] fields) {
+        this.command = command;
+        this.fields = fields;
+    }
+
+    public static OutboundFrame of(String command, Object... fields) {
+        return new OutboundFrame(command, fields);
+    }
+
+    // Mỗi người nhận có một ByteBuffer riêng (vị trí ghi độc lập) trên cùng mảng byte
+    public ByteBuffer buffer(boolean binary) {
+        return ByteBuffer.wrap(binary ? binaryBytes() : textBytes());
+    }
+
+    private byte[] textBytes() {
+        byte[] bytes = textBytes;
+        if (bytes == null) {
+            StringBuilder line = new StringBuilder(command);
+            for (int i = 0; i < fields.length; i++) {
+                if (i > 0) {
+                    line.append(Protocol.PARAM_DELIMITER);
+                }
+                Object field = fields[i];
+                if (field instanceof String value) {
+                    line.append(Protocol.escape(value));
+                } else {
+                    line.append(field);
+                }
+            }
+            bytes = line.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+            textBytes = bytes;
+        }
+        return bytes;
+    }
+
+    private byte[] binaryBytes() {
+        byte[] bytes = binaryBytes;
+        if (bytes == null) {
+            bytes = BinaryProtocol.encode(BinaryProtocol.responseOpcode(command), fields);
+            binaryBytes = bytes;
+        }
+        return bytes;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hàng đợi dữ liệu gửi đi của một kết nối, giới hạn theo số tin nhắn và số byte đang chờ.
+// Thread gửi chỉ xếp hàng rồi quay lại ngay; việc ghi ra socket do writer của kết nối đảm nhiệm.
+public class OutboundQueue {
+    private final LinkedBlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>();
+    private final AtomicInteger pendingMessages = new AtomicInteger();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong droppedMessages = new AtomicLong();
+
+    // Trả về false nếu vượt giới hạn (client không nhận kịp)
+    public boolean offer(ByteBuffer data) {
+        int size = data.limit();
+        // Giữ chỗ từng bộ đếm một và chỉ trả lại phần đã cộng: vượt giới hạn số tin thì chưa hề cộng số byte
+        if (pendingMessages.incrementAndGet() > ServerConfig.OUTBOUND_MAX_MESSAGES) {
+            pendingMessages.decrementAndGet();
+            droppedMessages.incrementAndGet();
+            return false;
+        }
+        if (pendingBytes.addAndGet(size) > ServerConfig.OUTBOUND_MAX_BYTES) {
+            pendingBytes.addAndGet(-size);
+            pendingMessages.decrementAndGet();
+            droppedMessages.incrementAndGet();
+            return false;
+        }
+
+        queue.add(data);
+        return true;
+    }
+
+    public ByteBuffer peek() {
+        return queue.peek();
+    }
+
+    public ByteBuffer poll() {
+        return released(queue.poll());
+    }
+
+    public ByteBuffer take() throws InterruptedException {
+        return released(queue.take());
+    }
+
+    private ByteBuffer released(ByteBuffer data) {
+        if (data != null) {
+            pendingMessages.decrementAndGet();
+            pendingBytes.addAndGet(-data.limit());
+        }
+        return data;
+    }
+
+    public void clear() {
+        queue.clear();
+        pendingMessages.set(0);
+        pendingBytes.set(0);
+    }
+
+    public int getPendingMessages() {
+        return pendingMessages.get();
+    }
+
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+}
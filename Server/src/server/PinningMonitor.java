@@ -0,0 +1,88 @@
+package server;
+
+import db.DatabaseManager;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Theo dõi sự kiện JFR jdk.VirtualThreadPinned khi chạy ở chế độ virtual thread.
+// Lệnh gọi SQLite JDBC đi qua JNI và các khối synchronized của driver nên giữ chặt carrier thread;
+// JFR chỉ báo khi thread cố park trong lúc bị ghim, còn thời gian giữ connection SQLite
+// được DatabaseManager đo riêng.
+public class PinningMonitor {
+    private static final AtomicLong pinnedEvents = new AtomicLong();
+    private static final AtomicLong pinnedInDatabase = new AtomicLong();
+    private static RecordingStream stream;
+
+    public static synchronized void start() {
+        if (stream != null) {
+            return;
+        }
+
+        try {
+            stream = new RecordingStream();
+            stream.enable("jdk.VirtualThreadPinned")
+                    .withThreshold(Duration.ofMillis(ServerConfig.PINNED_THRESHOLD_MS))
+                    .withStackTrace();
+            stream.onEvent("jdk.VirtualThreadPinned", PinningMonitor::onPinned);
+            stream.startAsync();
+
+            DatabaseManager.enableVirtualThreadDiagnostics(ServerConfig.PINNED_THRESHOLD_MS);
+
+            System.out.println("Đang theo dõi virtual thread bị ghim (ngưỡng " +
+                    ServerConfig.PINNED_THRESHOLD_MS + " ms)");
+        } catch (Exception e) {
+            stream = null;
+            System.err.println("Không thể bật theo dõi virtual thread bị ghim: " + e.getMessage());
+        }
+    }
+
+    private static void onPinned(RecordedEvent event) {
+        pinnedEvents.incrementAndGet();
+
+        String location = "không rõ";
+        RecordedStackTrace stackTrace = event.getStackTrace();
+        if (stackTrace != null) {
+            List<RecordedFrame> frames = stackTrace.getFrames();
+            RecordedFrame appFrame = null;
+            for (RecordedFrame frame : frames) {
+                String typeName = frame.getMethod().getType().getName();
+                if (typeName.startsWith("db.")) {
+                    appFrame = frame;
+                    pinnedInDatabase.incrementAndGet();
+                    break;
+                }
+            }
+            if (appFrame == null && !frames.isEmpty()) {
+                appFrame = frames.get(0);
+            }
+            if (appFrame != null) {
+                location = appFrame.getMethod().getType().getName() + "." + appFrame.getMethod().getName() +
+                        ":" + appFrame.getLineNumber();
+            }
+        }
+
+        System.err.println("Virtual thread bị ghim " + event.getDuration().toMillis() + " ms tại " + location +
+                " (tổng: " + pinnedEvents.get() + ", trong database: " + pinnedInDatabase.get() + ")");
+    }
+
+    public static long getPinnedEventCount() {
+        return pinnedEvents.get();
+    }
+
+    public static long getPinnedInDatabaseCount() {
+        return pinnedInDatabase.get();
+    }
+
+    public static synchronized void stop() {
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package server;
+
+import util.Protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Gộp các sự kiện đăng nhập/đăng xuất trong một cửa sổ ngắn thành một tin /presence gửi cho mọi người.
+// Khi hàng nghìn người kết nối lại cùng lúc, mỗi client chỉ nhận một tin mỗi cửa sổ thay vì một tin cho từng người.
+// Nội dung lấy từ PresenceLog nên trong cùng cửa sổ chỉ giữ sự kiện cuối cùng của mỗi người dùng (vào rồi ra = ra),
+// và mỗi tin mang khoảng phiên bản nó bao phủ để client phát hiện tin bị mất và xin lại phần thay đổi bằng /online.
+public class PresenceAggregator {
+    private final long windowMs;
+    private final PresenceLog presenceLog;
+    private final ScheduledExecutorService scheduler;
+
+    private boolean flushScheduled = false;
+    // Phiên bản cuối cùng đã gửi đi (truy cập trong khóa presenceLog)
+    private long flushedVersion;
+
+    public PresenceAggregator(long windowMs, PresenceLog presenceLog) {
+        this.windowMs = windowMs;
+        this.presenceLog = presenceLog;
+        this.flushedVersion = presenceLog.getVersion();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "presence-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void userJoined(String username) {
+        scheduleFlush();
+    }
+
+    public void userLeft(String username) {
+        scheduleFlush();
+    }
+
+    // Sự kiện đã được ghi vào PresenceLog; sự kiện đầu tiên của cửa sổ lên lịch gửi, các sự kiện sau chỉ gộp vào
+    private synchronized void scheduleFlush() {
+        if (!flushScheduled && !scheduler.isShutdown()) {
+            flushScheduled = true;
+            scheduler.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void flush() {
+        synchronized (this) {
+            flushScheduled = false;
+        }
+
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        long fromVersion;
+        long toVersion;
+        boolean incremental;
+        synchronized (presenceLog) {
+            fromVersion = flushedVersion;
+            toVersion = presenceLog.getVersion();
+            if (toVersion == fromVersion) {
+                return;
+            }
+            incremental = presenceLog.changesSince(fromVersion, joined, left);
+            flushedVersion = toVersion;
+        }
+
+        try {
+            if (incremental) {
+                ChatServer.broadcastToAllClients(Protocol.SVR_PRESENCE, String.join(",", joined),
+                        String.join(",", left), fromVersion, toVersion);
+            } else {
+                // Số sự kiện trong một cửa sổ vượt quá vòng đệm: gửi lại toàn bộ danh sách
+                List<String> users = new ArrayList<>();
+                long version = ChatServer.snapshotOnlineUsers(users);
+                ChatServer.broadcastToAllClients(Protocol.SVR_ONLINE_USERS, String.join(",", users), version);
+            }
+        } catch (Exception e) {
+            System.err.println("Lỗi khi gửi trạng thái online: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // Dừng lịch gửi và gửi nốt các sự kiện còn lại
+    public void stop() {
+        scheduler.shutdownNow();
+        flush();
+    }
+}
@@ -0,0 +1,63 @@
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Nhật ký thay đổi danh sách online có đánh số phiên bản, để /online chỉ trả về phần thay đổi
+// kể từ phiên bản client đã có thay vì gửi lại toàn bộ danh sách (PresenceAggregator cũng đọc từ đây).
+// Giữ một vòng đệm cố định các sự kiện gần nhất; client cũ hơn vòng đệm sẽ nhận lại toàn bộ danh sách.
+// Các phương thức ghi phải được gọi trong cùng khóa (synchronized trên đối tượng này) với thao tác sửa danh sách online.
+public class PresenceLog {
+    private final String[] usernames;
+    private final boolean[] joined;
+
+    // Phiên bản bắt đầu từ thời điểm khởi động (micro giây) nên vẫn tăng sau khi server khởi động lại
+    private long version = System.currentTimeMillis() * 1000;
+    // Số sự kiện đang giữ trong vòng đệm (tối đa bằng kích thước)
+    private int size = 0;
+
+    public PresenceLog(int capacity) {
+        this.usernames = new String[capacity];
+        this.joined = new boolean[capacity];
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    // Sự kiện thứ v nằm ở ô v % capacity
+    public synchronized void record(String username, boolean isJoin) {
+        version++;
+        int slot = (int) (version % usernames.length);
+        usernames[slot] = username;
+        joined[slot] = isJoin;
+        if (size < usernames.length) {
+            size++;
+        }
+    }
+
+    // Ghi các thay đổi sau phiên bản since vào joinedOut/leftOut (mỗi người chỉ lấy trạng thái cuối cùng).
+    // Trả về false nếu since không còn nằm trong vòng đệm hoặc không hợp lệ (cần gửi toàn bộ danh sách).
+    public synchronized boolean changesSince(long since, List<String> joinedOut, List<String> leftOut) {
+        if (since > version || since < version - size) {
+            return false;
+        }
+
+        Map<String, Boolean> latest = new LinkedHashMap<>();
+        for (long v = since + 1; v <= version; v++) {
+            int slot = (int) (v % usernames.length);
+            latest.remove(usernames[slot]);
+            latest.put(usernames[slot], joined[slot]);
+        }
+
+        for (Map.Entry<String, Boolean> change : latest.entrySet()) {
+            if (change.getValue()) {
+                joinedOut.add(change.getKey());
+            } else {
+                leftOut.add(change.getKey());
+            }
+        }
+        return true;
+    }
+}
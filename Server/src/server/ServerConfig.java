@@ -0,0 +1,115 @@
+package server;
+
+// Các tùy chọn khởi động server, đọc từ system property (ví dụ: java -Dchat.io=nio ...)
+public class ServerConfig {
+    // Chế độ I/O cho cổng chat: "blocking" (mỗi kết nối một thread) hoặc "nio" (selector event loop)
+    public static final String IO_MODE = System.getProperty("chat.io", "blocking");
+
+    // Số event loop (mỗi loop một thread + một Selector) trong chế độ NIO
+    public static final int NIO_EVENT_LOOPS = Integer.getInteger("chat.nio.loops",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    // Số thread xử lý lệnh (truy vấn database...) để không chặn event loop
+    public static final int NIO_WORKER_THREADS = Integer.getInteger("chat.nio.workers", 16);
+
+    // Bộ đệm đọc dùng chung cho mỗi event loop
+    public static final int NIO_READ_BUFFER_SIZE = Integer.getInteger("chat.nio.readBuffer", 64 * 1024);
+
+    // Độ dài tối đa của một dòng lệnh (cả NIO lẫn SocketConnection), vượt quá sẽ đóng kết nối
+    public static final int NIO_MAX_LINE_BYTES = Integer.getInteger("chat.nio.maxLine", 1024 * 1024);
+
+    // Số lệnh tối đa đang chờ xử lý của một kết nối trước khi tạm dừng đọc
+    public static final int NIO_MAX_PENDING_COMMANDS = Integer.getInteger("chat.nio.maxPending", 256);
+
+    // Cách chạy ClientHandler và các phiên chuyển file: "platform" (thread thường, pool file cố định)
+    // hoặc "virtual" (mỗi kết nối/phiên một virtual thread của JDK 21)
+    public static final String THREAD_MODE = System.getProperty("chat.threads", "platform");
+
+    // Số thread cố định cho chuyển file khi không dùng virtual thread
+    public static final int FILE_TRANSFER_THREADS = Integer.getInteger("chat.file.threads", 10);
+
+    // Ghi log khi một virtual thread bị ghim vào carrier thread lâu hơn ngưỡng này (ms)
+    public static final long PINNED_THRESHOLD_MS = Long.getLong("chat.vt.pinnedThresholdMs", 20);
+
+    // Giới hạn hàng đợi gửi của mỗi kết nối (số tin nhắn và số byte chờ ghi ra socket)
+    public static final int OUTBOUND_MAX_MESSAGES = Integer.getInteger("chat.outbound.maxMessages", 1000);
+    public static final long OUTBOUND_MAX_BYTES = Long.getLong("chat.outbound.maxBytes", 4L * 1024 * 1024);
+
+    // Xử lý client nhận chậm khi hàng đợi đầy: "disconnect" (ngắt kết nối) hoặc "drop" (bỏ tin nhắn mới)
+    public static final String SLOW_CONSUMER_POLICY = System.getProperty("chat.outbound.policy", "disconnect");
+
+    // Kích thước payload tối đa của một khung nhị phân (util.BinaryProtocol) từ client
+    public static final int BINARY_MAX_FRAME_BYTES = Integer.getInteger("chat.binary.maxFrame", 1024 * 1024);
+
+    // Chu kỳ (giây) in thống kê lệnh (số lần, lỗi, độ trễ p50/p99/p999) ra log, 0 = tắt
+    public static final int METRICS_INTERVAL_SECONDS = Integer.getInteger("chat.metrics.intervalSec", 60);
+
+    // Cửa sổ (ms) gộp các sự kiện đăng nhập/đăng xuất thành một tin /presence, 0 = gửi ngay từng /userjoined, /userleft
+    public static final long PRESENCE_WINDOW_MS = Long.getLong("chat.presence.windowMs", 200);
+
+    // Số thay đổi online gần nhất được giữ lại để trả lời /online <phiên bản> bằng phần chênh lệch
+    public static final int PRESENCE_LOG_SIZE = Integer.getInteger("chat.presence.logSize", 4096);
+
+    // Pool connection SQLite: số connection chỉ đọc (connection ghi luôn là một) và thời gian chờ tối đa khi mượn (ms)
+    public static final int DB_READ_CONNECTIONS = Integer.getInteger("chat.db.readers", 4);
+    public static final long DB_BORROW_TIMEOUT_MS = Long.getLong("chat.db.borrowTimeoutMs", 5000);
+
+    // Profile lưu trữ SQLite: "durable", "balanced" hoặc "fast" (xem db.StorageProfile về đánh đổi độ bền).
+    // Có thể ghi đè từng giá trị; không đặt thì dùng giá trị của profile
+    public static final String DB_PROFILE = System.getProperty("chat.db.profile", "balanced");
+    public static final String DB_JOURNAL_MODE = System.getProperty("chat.db.journalMode");
+    public static final String DB_SYNCHRONOUS = System.getProperty("chat.db.synchronous");
+    public static final Long DB_MMAP_SIZE = Long.getLong("chat.db.mmapSize");
+    public static final Integer DB_CACHE_SIZE = Integer.getInteger("chat.db.cacheSize");
+    public static final Integer DB_BUSY_TIMEOUT_MS = Integer.getInteger("chat.db.busyTimeoutMs");
+
+    // Ghi tin nhắn theo lô (write-behind): gom tối đa batchSize tin hoặc chờ flushMs kể từ tin đầu tiên rồi commit một lần.
+    // Tắt (chat.db.writeBehind=false) thì mỗi tin nhắn được commit ngay trên thread xử lý lệnh
+    public static final boolean DB_WRITE_BEHIND = Boolean.parseBoolean(System.getProperty("chat.db.writeBehind", "true"));
+    public static final int DB_WRITE_BATCH_SIZE = Integer.getInteger("chat.db.writeBatchSize", 256);
+    public static final long DB_WRITE_FLUSH_MS = Long.getLong("chat.db.writeFlushMs", 5);
+    public static final int DB_WRITE_QUEUE_CAPACITY = Integer.getInteger("chat.db.writeQueueCapacity", 10000);
+
+    // Giữ thành viên các nhóm trong bộ nhớ (nạp khi khởi động) để gửi tin nhắn nhóm không phải truy vấn database
+    public static final boolean GROUP_CACHE = Boolean.parseBoolean(System.getProperty("chat.group.cache", "true"));
+
+    // Kiểm tra username tồn tại qua Bloom filter (tính cho số người dùng dự kiến, tự tăng theo số đã có) và cache LRU
+    // các username đã gặp; tắt (chat.users.directory=false) thì mỗi lần kiểm tra là một truy vấn
+    public static final boolean USER_DIRECTORY = Boolean.parseBoolean(System.getProperty("chat.users.directory", "true"));
+    public static final long USER_BLOOM_EXPECTED = Long.getLong("chat.users.bloomExpected", 100000);
+    public static final int USER_CACHE_SIZE = Integer.getInteger("chat.users.cacheSize", 10000);
+
+    // Số tin nhắn tối đa trong một trang /history hoặc /loadmore, client xin nhiều hơn cũng chỉ nhận chừng này
+    public static final int HISTORY_MAX_PAGE_SIZE = Integer.getInteger("chat.history.maxPageSize", 100);
+
+    // Upload kiểu UPLOAD/UPLOAD_GROUP: khung tiến trình gửi về client cách nhau ít nhất chừng này ms,
+    // và buffer nhận lớn nhất (buffer thực tế tùy kích thước file, không nhỏ hơn 8 KB)
+    public static final long UPLOAD_PROGRESS_INTERVAL_MS = Long.getLong("chat.upload.progressIntervalMs", 250);
+    public static final int UPLOAD_MAX_BUFFER = Integer.getInteger("chat.upload.maxBuffer", 1024 * 1024);
+
+    // Upload chia chunk (UPLOAD_CHUNKS): kích thước chunk lớn nhất server nhận, và số kết nối song song server
+    // đề nghị client dùng cho một file
+    public static final int UPLOAD_MAX_CHUNK = Integer.getInteger("chat.upload.maxChunk", 64 * 1024 * 1024);
+    public static final int UPLOAD_MAX_STREAMS = Integer.getInteger("chat.upload.maxStreams", 4);
+
+    // Upload dở (file tạm .part, .chunks và bitmap chunk) không có kết nối nào trong chừng này ms thì bị xóa; client
+    // nối lại sau đó sẽ gửi lại từ đầu
+    public static final long UPLOAD_STALE_TIMEOUT_MS = Long.getLong("chat.upload.staleTimeoutMs", 60 * 60 * 1000);
+
+    // Cho phép client gửi SHA-256 trước (UPLOAD_BY_HASH) và bỏ qua upload khi chính người gửi đã từng upload nội dung
+    // đó (gửi lại, chuyển tiếp file của mình). Blob của người khác không bao giờ được dùng lại theo cách này, vì biết
+    // SHA-256 không chứng minh có nội dung; file đó vẫn được gộp vào blob sẵn có sau khi upload đủ
+    public static final boolean FILE_HASH_FAST_PATH = Boolean.parseBoolean(System.getProperty("chat.files.hashFastPath", "true"));
+
+    public static boolean isNioMode() {
+        return "nio".equalsIgnoreCase(IO_MODE);
+    }
+
+    public static boolean isVirtualThreadMode() {
+        return "virtual".equalsIgnoreCase(THREAD_MODE);
+    }
+
+    public static boolean dropsForSlowConsumers() {
+        return "drop".equalsIgnoreCase(SLOW_CONSUMER_POLICY);
+    }
+}
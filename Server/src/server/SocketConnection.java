@@ -0,0 +1,213 @@
+package server;
+
+import util.BinaryProtocol;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Kết nối blocking truyền thống: ClientHandler.run() đọc từng dòng (hoặc khung nhị phân) trên thread riêng,
+// dữ liệu gửi đi được xếp hàng và ghi ra socket bởi writer thread của kết nối.
+public class SocketConnection implements ClientConnection {
+    private final Socket socket;
+    private ClientHandler handler;
+    // Bộ đệm đọc riêng (không dùng BufferedReader) để dòng văn bản và khung nhị phân dùng chung một luồng dữ liệu:
+    // phần đã đọc trước của khung tiếp theo vẫn nằm trong readBuffer khi chuyển chế độ
+    private final InputStream in;
+    private final byte[] readBuffer = new byte[8192];
+    private int readPos = 0;
+    private int readLimit = 0;
+    private byte[] lineBuffer = new byte[256];
+    private final byte[] frameHeader = new byte[4];
+    private final OutputStream out;
+    private final OutboundQueue outboundQueue = new OutboundQueue();
+    private volatile Thread writerThread;
+    private volatile boolean closed = false;
+    private volatile boolean binary = false;
+
+    public SocketConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = socket.getInputStream();
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    // Gắn handler và khởi động writer thread. Gọi từ ClientHandler.run() chứ không từ constructor, để writer không
+    // chạy trên handler chưa khởi tạo xong; tin nhắn gửi trước đó nằm chờ trong hàng đợi
+    public void start(ClientHandler handler) {
+        this.handler = handler;
+        Thread.Builder builder = ServerConfig.isVirtualThreadMode() ? Thread.ofVirtual() : Thread.ofPlatform();
+        writerThread = builder.name("writer-" + handler.getId()).start(this::writeLoop);
+    }
+
+    // Trả về false khi hết dữ liệu (client đóng kết nối)
+    private boolean fill() throws IOException {
+        int n = in.read(readBuffer);
+        if (n <= 0) {
+            return false;
+        }
+        readPos = 0;
+        readLimit = n;
+        return true;
+    }
+
+    public String readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (readPos == readLimit && !fill()) {
+                if (length == 0) {
+                    return null;
+                }
+                break;
+            }
+
+            // Tìm '\n' trong phần đã đệm rồi chép cả đoạn một lần
+            int end = readPos;
+            while (end < readLimit && readBuffer[end] != '\n') {
+                end++;
+            }
+            int chunk = end - readPos;
+            if (length + chunk > ServerConfig.NIO_MAX_LINE_BYTES) {
+                throw new IOException("Dòng lệnh quá dài (hơn " + ServerConfig.NIO_MAX_LINE_BYTES + " byte)");
+            }
+            if (length + chunk > lineBuffer.length) {
+                lineBuffer = Arrays.copyOf(lineBuffer, Math.max(length + chunk, lineBuffer.length * 2));
+            }
+            System.arraycopy(readBuffer, readPos, lineBuffer, length, chunk);
+            length += chunk;
+
+            if (end < readLimit) {
+                readPos = end + 1;
+                break;
+            }
+            readPos = end;
+        }
+
+        if (length > 0 && lineBuffer[length - 1] == '\r') {
+            length--;
+        }
+        return new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    public BinaryProtocol.Frame readFrame() throws IOException {
+        if (readPos == readLimit && !fill()) {
+            return null;
+        }
+        int opcode = readBuffer[readPos++] & 0xFF;
+
+        readFully(frameHeader, 0, 4);
+        int length = ((frameHeader[0] & 0xFF) << 24) | ((frameHeader[1] & 0xFF) << 16)
+                | ((frameHeader[2] & 0xFF) << 8) | (frameHeader[3] & 0xFF);
+        if (length < 0 || length > ServerConfig.BINARY_MAX_FRAME_BYTES) {
+            throw new IOException("Khung nhị phân quá lớn: " + length + " byte");
+        }
+
+        byte[] payload = new byte[length];
+        readFully(payload, 0, length);
+        try {
+            return new BinaryProtocol.Frame(opcode, payload, BinaryProtocol.countFields(payload, 0, length));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Khung nhị phân không hợp lệ: " + e.getMessage());
+        }
+    }
+
+    private void readFully(byte[] dest, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (readPos == readLimit && !fill()) {
+                throw new EOFException("Kết nối đóng giữa khung nhị phân");
+            }
+            int n = Math.min(length, readLimit - readPos);
+            System.arraycopy(readBuffer, readPos, dest, offset, n);
+            readPos += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void send(OutboundFrame frame) {
+        if (closed) {
+            return;
+        }
+
+        if (!outboundQueue.offer(frame.buffer(binary))) {
+            onSlowConsumer();
+        }
+    }
+
+    private void onSlowConsumer() {
+        if (ServerConfig.dropsForSlowConsumers()) {
+            return;
+        }
+
+        System.err.println("Client " + getRemoteAddress() + " nhận chậm (" + outboundQueue.getPendingMessages() +
+                " tin nhắn, " + outboundQueue.getPendingBytes() + " byte đang chờ), ngắt kết nối.");
+        closed = true;
+        try {
+            // Đóng socket để writer thread đang bị chặn trong write() thoát ra và dọn dẹp kết nối
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Lỗi khi đóng socket: " + e.getMessage());
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (!closed) {
+                ByteBuffer data = outboundQueue.take();
+                do {
+                    out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                } while ((data = outboundQueue.poll()) != null);
+
+                // Chỉ flush khi hàng đợi đã rỗng: nhiều tin nhắn liên tiếp đi chung một lần ghi
+                out.flush();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Lỗi khi gửi dữ liệu tới " + getRemoteAddress() + ": " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            // Kết nối đang đóng
+        } finally {
+            handler.closeConnection();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        outboundQueue.clear();
+        Thread writer = writerThread;
+        if (writer != null && Thread.currentThread() != writer) {
+            writer.interrupt();
+        }
+        // Đóng socket trước để thread đọc đang chờ readLine() thoát ra
+        if (!socket.isClosed()) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return String.valueOf(socket.getInetAddress());
+    }
+
+    @Override
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+}
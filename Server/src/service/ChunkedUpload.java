@@ -0,0 +1,180 @@
+package service;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.zip.CRC32C;
+
+// Một upload chia chunk đang nhận. Các kết nối song song ghi chunk của mình vào cùng file tạm bằng
+// FileChannel.write theo vị trí (không cần khóa), tính CRC32C trên byte nhận được; chunk chỉ được đánh dấu đã nhận
+// khi checksum khớp với client, nên chunk hỏng hay bị ngắt giữa chừng sẽ được gửi lại và ghi đè đúng chỗ.
+// Bitmap chunk đã nhận sống trong bộ nhớ, nên client nối lại chỉ gửi các chunk còn thiếu; upload không có kết nối nào
+// quá lâu thì bị dọn cùng file tạm (evictIfIdle). File tạm chỉ mở khi có kết nối đang gửi.
+class ChunkedUpload {
+    static final int MIN_CHUNK_SIZE = 64 * 1024;
+    // Giới hạn số chunk để bitmap không phình theo fileSize do client khai báo
+    static final int MAX_CHUNKS = 1 << 24;
+    private static final int IO_BUFFER = 64 * 1024;
+
+    private final long fileSize;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final Path partPath;
+    private final BitSet received;
+
+    private FileChannel channel;
+    private int connections;
+    private boolean committed;
+    private boolean evicted;
+    private long idleSince = System.nanoTime();
+
+    ChunkedUpload(Path partPath, long fileSize, int chunkSize) {
+        this.partPath = partPath;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) Math.max(1, (fileSize + chunkSize - 1) / chunkSize);
+        // Không cấp sẵn theo chunkCount (fileSize do client khai báo): BitSet tự lớn dần theo chunk đã nhận
+        this.received = new BitSet();
+    }
+
+    static boolean isValidChunkSize(long fileSize, int chunkSize, int maxChunkSize) {
+        return chunkSize >= MIN_CHUNK_SIZE && chunkSize <= maxChunkSize &&
+                (fileSize + chunkSize - 1) / chunkSize <= MAX_CHUNKS;
+    }
+
+    // Bitmap báo mọi chunk đã nhận, cho file đã lưu xong
+    static byte[] completeBitmap(long fileSize, int chunkSize) {
+        BitSet all = new BitSet();
+        all.set(0, (int) Math.max(1, (fileSize + chunkSize - 1) / chunkSize));
+        return all.toByteArray();
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    Path getPartPath() {
+        return partPath;
+    }
+
+    long chunkLength(int index) {
+        return Math.min(chunkSize, fileSize - (long) index * chunkSize);
+    }
+
+    boolean isValidChunk(int index, int length) {
+        return index >= 0 && index < chunkCount && length == chunkLength(index);
+    }
+
+    // Một kết nối bắt đầu gửi chunk; false nếu upload đã được lưu xong. Upload vừa bị dọn thì báo lỗi, client nối
+    // lại sẽ được một upload mới.
+    synchronized boolean attach() throws IOException {
+        if (committed) {
+            return false;
+        }
+        if (evicted) {
+            throw new IOException("Upload đã bị hủy vì bỏ dở quá lâu");
+        }
+        if (channel == null) {
+            // Không cắt file: byte của chunk đã nhận từ lần trước vẫn còn nguyên
+            channel = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        connections++;
+        return true;
+    }
+
+    synchronized void detach() {
+        connections--;
+        if (connections == 0) {
+            closeChannel();
+            idleSince = System.nanoTime();
+        }
+    }
+
+    // Hủy upload không có kết nối nào trong idleNanos và xóa file tạm; true nếu đã hủy (người gọi bỏ nó khỏi danh
+    // sách upload đang nhận)
+    synchronized boolean evictIfIdle(long idleNanos) {
+        if (committed || evicted || connections > 0 || System.nanoTime() - idleSince < idleNanos) {
+            return false;
+        }
+        evicted = true;
+        try {
+            Files.deleteIfExists(partPath);
+        } catch (IOException e) {
+            System.err.println("Lỗi xóa file tạm " + partPath + ": " + e.getMessage());
+        }
+        return true;
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null) {
+            throw new IOException("Upload đã kết thúc");
+        }
+        return channel;
+    }
+
+    // Đọc length byte của chunk index từ client, ghi vào đúng vị trí trong file tạm; trả về CRC32C của byte đã nhận.
+    // Chunk đã nhận rồi (client gửi lại vì mất phản hồi) thì chỉ đọc bỏ, không ghi đè byte đã kiểm tra.
+    int writeChunk(DataInputStream in, int index, int length) throws IOException {
+        FileChannel target = isReceived(index) ? null : channel();
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[Math.min(IO_BUFFER, length)];
+        long position = (long) index * chunkSize;
+        int remaining = length;
+
+        while (remaining > 0) {
+            int bytesRead = in.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (bytesRead == -1) {
+                throw new EOFException("Client ngắt kết nối giữa chunk " + index);
+            }
+            crc.update(buffer, 0, bytesRead);
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+            while (target != null && data.hasRemaining()) {
+                position += target.write(data, position);
+            }
+            remaining -= bytesRead;
+        }
+        return (int) crc.getValue();
+    }
+
+    private synchronized boolean isReceived(int index) {
+        return received.get(index);
+    }
+
+    // true đúng một lần: khi chunk còn thiếu cuối cùng vừa được nhận. Lúc đó upload chuyển sang đã lưu và đóng
+    // file tạm; người gọi đổi tên file và ghi database.
+    synchronized boolean markReceived(int index) {
+        if (committed) {
+            return false;
+        }
+        received.set(index);
+        if (received.cardinality() < chunkCount) {
+            return false;
+        }
+        committed = true;
+        closeChannel();
+        return true;
+    }
+
+    // Bitmap chunk đã nhận (BitSet.toByteArray, bit i = chunk i)
+    synchronized byte[] receivedBitmap() {
+        return received.toByteArray();
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Lỗi đóng file tạm " + partPath + ": " + e.getMessage());
+        }
+        channel = null;
+    }
+}
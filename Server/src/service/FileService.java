@@ -5,31 +5,76 @@ import db.GroupDAO;
 import model.FileInfo;
 import server.ChatServer;
 import server.ClientHandler;
+import server.ServerConfig;
 import util.Protocol;
 
 import javax.xml.crypto.Data;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class FileService {
     private static final String FILE_STORAGE_DIR = "./file_storage/"; // Thư mục lưu file
+    // Kho theo nội dung: file_storage/blobs/<2 ký tự hex đầu>/<sha256>, mỗi nội dung một file dù gửi bao nhiêu lần
+    private static final String BLOB_DIR = FILE_STORAGE_DIR + "blobs/";
     private static ServerSocket fileServerSocket; // Socket cho file server
-    private static ExecutorService fileTransferPool = Executors.newFixedThreadPool(10);
+    // Chế độ virtual thread: mỗi phiên chuyển file một virtual thread, không giới hạn ở 10 phiên đồng thời
+    private static ExecutorService fileTransferPool = ServerConfig.isVirtualThreadMode()
+            ? Executors.newVirtualThreadPerTaskExecutor()
+            : Executors.newFixedThreadPool(ServerConfig.FILE_TRANSFER_THREADS);
 
     // Lưu trữ thông tin về các file transfer đang diễn ra
     private static Map<String, FileTransferInfo> activeTransfers = new ConcurrentHashMap<>();
 
+    // Kết nối đang nhận file theo fileId. Client nối lại sau khi mất mạng thường tới trước khi server nhận ra
+    // kết nối cũ đã chết, nên kết nối mới đóng kết nối cũ và chờ nó thoát hẳn rồi mới đọc kích thước file tạm:
+    // không bao giờ có hai luồng cùng ghi một file .part.
+    private static final Map<String, UploadSlot> activeUploads = new ConcurrentHashMap<>();
+    private static final long UPLOAD_TAKEOVER_TIMEOUT_SECONDS = 30;
+
+    // File .part của upload một luồng đã ngắt giữa chừng, theo fileId -> thời điểm (nanoTime) kết nối cuối cùng thoát
+    private static final Map<String, Long> idleParts = new ConcurrentHashMap<>();
+
+    // Định kỳ xóa upload bỏ dở quá UPLOAD_STALE_TIMEOUT_MS
+    private static final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "upload-cleaner");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class UploadSlot {
+        // null: slot do upload-cleaner giữ trong lúc xóa file tạm
+        final Socket socket;
+        final CountDownLatch released = new CountDownLatch(1);
+
+        UploadSlot(Socket socket) {
+            this.socket = socket;
+        }
+    }
+
     // Class để lưu thông tin về một phiên chuyển file
     public static class FileTransferInfo {
         String fileId;
@@ -75,10 +120,20 @@ public class FileService {
             System.err.println("Không thể tạo thư mục lưu trữ file: " + e.getMessage());
             return;
         }
+        deleteLeftoverTempFiles();
+        long sweepMs = Math.max(1000, Math.min(ServerConfig.UPLOAD_STALE_TIMEOUT_MS, 60_000));
+        cleaner.scheduleWithFixedDelay(FileService::evictStaleUploads, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
 
         new Thread(() -> {
+            // Gom file cũ vào kho trước khi nhận kết nối, để không tải xuống một file đúng lúc nó bị chuyển chỗ
+            migrateLegacyFiles();
             try {
-                fileServerSocket = new ServerSocket(port);
+                // Mở qua ServerSocketChannel để socket nhận được có SocketChannel thật: tải file xuống dùng
+                // FileChannel.transferTo (sendfile) thẳng vào socket. Kênh ở chế độ blocking nên
+                // DataInputStream/DataOutputStream trên socket vẫn dùng như cũ.
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(port));
+                fileServerSocket = serverChannel.socket();
                 System.out.println("File server đã khởi động ở port " + port);
 
                 while (true) {
@@ -97,6 +152,15 @@ public class FileService {
             // Đọc thông tin file
             String command = dis.readUTF();
             String fileId = dis.readUTF();
+            // UPLOAD/UPLOAD_GROUP kèm bước tiến trình (%) client muốn nhận, 0 = chỉ báo khi đã lưu xong;
+            // RECEIVE_FROM kèm số byte client đã tải được từ lần trước; UPLOAD_CHUNKS/UPLOAD_CHUNKS_GROUP kèm
+            // kích thước chunk; UPLOAD_BY_HASH/UPLOAD_BY_HASH_GROUP kèm SHA-256 (hex) của nội dung
+            boolean chunked = command.equals("UPLOAD_CHUNKS") || command.equals("UPLOAD_CHUNKS_GROUP");
+            boolean byHash = command.equals("UPLOAD_BY_HASH") || command.equals("UPLOAD_BY_HASH_GROUP");
+            int progressStep = command.equals("UPLOAD") || command.equals("UPLOAD_GROUP") ? dis.readInt() : 0;
+            long downloadOffset = command.equals("RECEIVE_FROM") ? dis.readLong() : 0;
+            int chunkSize = chunked ? dis.readInt() : 0;
+            String sha256 = byHash ? dis.readUTF() : null;
 
             System.out.println("Nhận yêu cầu chuyển file: " + command + ", fileId: " + fileId);
 
@@ -108,12 +172,28 @@ public class FileService {
 
             if (command.equals("SEND")) {
                 System.out.println("Processing file transfer for fileId: " + fileId);
-                receiveFileFromClient(dis, dos, transferInfo);
+                receiveFileFromClient(socket, dis, dos, transferInfo,
+                        UploadProgress.legacy(dos, transferInfo.fileSize), false);
             } else if (command.equals("SEND_GROUP")) {
                 System.out.println("Processing group file transfer for fileId: " + fileId);
-                receiveFileFromClientGroup(dis, dos, transferInfo);
+                receiveFileFromClientGroup(socket, dis, dos, transferInfo,
+                        UploadProgress.legacy(dos, transferInfo.fileSize), false);
+            } else if (command.equals("UPLOAD")) {
+                System.out.println("Processing file transfer for fileId: " + fileId);
+                receiveFileFromClient(socket, dis, dos, transferInfo,
+                        UploadProgress.throttled(dos, transferInfo.fileSize, progressStep), true);
+            } else if (command.equals("UPLOAD_GROUP")) {
+                System.out.println("Processing group file transfer for fileId: " + fileId);
+                receiveFileFromClientGroup(socket, dis, dos, transferInfo,
+                        UploadProgress.throttled(dos, transferInfo.fileSize, progressStep), true);
+            } else if (chunked) {
+                receiveChunks(dis, dos, transferInfo, chunkSize, command.equals("UPLOAD_CHUNKS_GROUP"));
+            } else if (byHash) {
+                receiveByHash(dos, transferInfo, sha256, command.equals("UPLOAD_BY_HASH_GROUP"));
             } else if (command.equals("RECEIVE")) {
-                sendFileToClient(dis, dos, transferInfo);
+                sendFileToClient(socket, dos, transferInfo, 0, false);
+            } else if (command.equals("RECEIVE_FROM")) {
+                sendFileToClient(socket, dos, transferInfo, downloadOffset, true);
             }
         }  catch (IOException e) {
             System.err.println("Lỗi trong quá trình xử lý chuyển file: " + e.getMessage());
@@ -126,104 +206,481 @@ public class FileService {
         }
     }
 
-    private static void receiveFileFromClient(DataInputStream dis, DataOutputStream dos, FileTransferInfo transferInfo) throws IOException {
-        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-        String uniqueFileName = timestamp + "_" + transferInfo.fileName;
-        String filePath = FILE_STORAGE_DIR + uniqueFileName;
+    private static void receiveFileFromClient(Socket socket, DataInputStream dis, DataOutputStream dos,
+                                              FileTransferInfo transferInfo, UploadProgress progress,
+                                              boolean resumable) throws IOException {
+        if (!receiveUpload(socket, dis, dos, transferInfo, progress, resumable)) {
+            return;
+        }
 
-        dos.writeBoolean(true);
+        progress.completed();
+        announceFile(transferInfo, false);
+    }
 
-        try (FileOutputStream fos = new FileOutputStream(filePath)) {
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            long totalBytesRead = 0;
+    private static void receiveFileFromClientGroup(Socket socket, DataInputStream dis, DataOutputStream dos,
+                                                   FileTransferInfo transferInfo, UploadProgress progress,
+                                                   boolean resumable) throws IOException {
+        System.out.println("Receiving file for group: " + transferInfo.receiver);
 
-            while (totalBytesRead < transferInfo.fileSize &&
-                    (bytesRead = dis.read(buffer, 0, (int)Math.min(buffer.length,
-                            transferInfo.fileSize - totalBytesRead))) != -1) {
-                fos.write(buffer, 0, bytesRead);
-                totalBytesRead += bytesRead;
+        if (!receiveUpload(socket, dis, dos, transferInfo, progress, resumable)) {
+            return;
+        }
 
-                int progressPercent = (int) ((totalBytesRead * 100) / transferInfo.fileSize);
-                dos.writeInt(progressPercent);
-                dos.flush();
-            }
+        progress.completed();
+        announceFile(transferInfo, true);
+    }
+
+    // Đưa file vừa nhận đủ vào kho theo nội dung và ghi database. Kho đã có nội dung này thì file vừa nhận bị bỏ,
+    // dòng files mới trỏ tới blob sẵn có.
+    private static void storeFile(FileTransferInfo transferInfo, Path received, String sha256) throws IOException {
+        if (!FileDAO.saveFileWithBlob(newFileInfo(transferInfo, sha256), received)) {
+            throw new IOException("Không lưu được file " + transferInfo.fileId + " vào kho");
         }
+    }
 
+    private static FileInfo newFileInfo(FileTransferInfo transferInfo, String sha256) {
         FileInfo fileInfo = new FileInfo();
         fileInfo.setId(transferInfo.fileId);
         fileInfo.setSender(transferInfo.sender);
         fileInfo.setReceiver(transferInfo.receiver);
         fileInfo.setFileName(transferInfo.fileName);
         fileInfo.setFileSize(transferInfo.fileSize);
-        fileInfo.setStoragePath(filePath);
+        fileInfo.setStoragePath(blobPath(sha256).toString());
         fileInfo.setTimestamp(new Date());
+        fileInfo.setSha256(sha256);
+        return fileInfo;
+    }
 
-        FileDAO.saveFileInfo(fileInfo);
+    private static Path blobPath(String sha256) {
+        return Paths.get(BLOB_DIR, sha256.substring(0, 2), sha256);
+    }
 
-        ClientHandler receiverHandler = ChatServer.getClientHandler(transferInfo.receiver);
-        if (receiverHandler != null) {
-            receiverHandler.sendMessage(Protocol.SVR_FILE_ACCEPT + transferInfo.fileId +
-                    Protocol.PARAM_DELIMITER + transferInfo.sender +
-                    Protocol.PARAM_DELIMITER + transferInfo.fileName +
-                    Protocol.PARAM_DELIMITER + transferInfo.fileSize);
+    // Upload không kèm nội dung: client gửi SHA-256 trước, server trả true nếu đã lưu file từ một blob người gửi
+    // từng upload (hoặc fileId đã được lưu từ trước). false thì client upload bình thường.
+    private static void receiveByHash(DataOutputStream dos, FileTransferInfo transferInfo, String sha256,
+                                      boolean group) throws IOException {
+        boolean stored = false;
+        if (FileDAO.getFileInfoById(transferInfo.fileId) != null) {
+            stored = true;
+        } else if (ServerConfig.FILE_HASH_FAST_PATH && sha256.matches("[0-9a-f]{64}") &&
+                FileDAO.saveFileWithExistingBlob(newFileInfo(transferInfo, sha256))) {
+            System.out.println("Nội dung file " + transferInfo.fileId + " đã có trong kho, bỏ qua upload");
+            announceFile(transferInfo, group);
+            stored = true;
         }
+        dos.writeBoolean(stored);
+        dos.flush();
     }
 
-    private static void receiveFileFromClientGroup(DataInputStream dis, DataOutputStream dos, FileTransferInfo transferInfo) throws IOException {
-        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-        String uniqueFileName = timestamp + "_" + transferInfo.fileName;
-        String filePath = FILE_STORAGE_DIR + uniqueFileName;
+    // Gom các file lưu trước khi có kho theo nội dung (file_storage/<thời gian>_<tên>) vào kho: tính SHA-256, chép
+    // vào blob (hoặc trỏ tới blob trùng nội dung) rồi xóa bản cũ. File không còn trên đĩa được giữ nguyên dòng cũ.
+    private static void migrateLegacyFiles() {
+        List<FileInfo> legacyFiles = FileDAO.getFilesWithoutHash();
+        if (legacyFiles.isEmpty()) {
+            return;
+        }
 
-        System.out.println("Receiving file for group: " + transferInfo.receiver);
+        int adopted = 0;
+        int missing = 0;
+        for (FileInfo fileInfo : legacyFiles) {
+            Path path = Paths.get(fileInfo.getStoragePath());
+            if (!Files.isRegularFile(path)) {
+                missing++;
+                continue;
+            }
+            try {
+                MessageDigest digest = newSha256();
+                digestFile(path, Files.size(path), digest);
+                String sha256 = HexFormat.of().formatHex(digest.digest());
+                if (FileDAO.adoptLegacyFile(fileInfo, sha256, blobPath(sha256))) {
+                    adopted++;
+                }
+            } catch (IOException e) {
+                System.err.println("Lỗi khi đọc file cũ " + path + ": " + e.getMessage());
+            }
+        }
+        System.out.println("Đã chuyển " + adopted + "/" + legacyFiles.size() + " file cũ vào kho theo nội dung" +
+                (missing > 0 ? ", " + missing + " file không còn trên đĩa" : ""));
+    }
 
-        dos.writeBoolean(true);
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("JVM không hỗ trợ SHA-256", e);
+        }
+    }
 
-        try (FileOutputStream fos = new FileOutputStream(filePath)) {
-            byte[] buffer = new byte[8192];
+    // Đưa length byte đầu của file vào digest
+    private static void digestFile(Path path, long length, MessageDigest digest) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(path)) {
+            long remaining = length;
             int bytesRead;
-            long totalBytesRead = 0;
+            while (remaining > 0 && (bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                digest.update(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+            if (remaining > 0) {
+                throw new EOFException("File " + path + " ngắn hơn " + length + " bytes");
+            }
+        }
+    }
 
-            while (totalBytesRead < transferInfo.fileSize &&
-                    (bytesRead = dis.read(buffer, 0, (int)Math.min(buffer.length,
-                            transferInfo.fileSize - totalBytesRead))) != -1) {
-                fos.write(buffer, 0, bytesRead);
-                totalBytesRead += bytesRead;
+    // Báo cho người nhận (hoặc các thành viên nhóm) rằng file đã lên server
+    private static void announceFile(FileTransferInfo transferInfo, boolean group) {
+        if (!group) {
+            ClientHandler receiverHandler = ChatServer.getClientHandler(transferInfo.receiver);
+            if (receiverHandler != null) {
+                receiverHandler.send(Protocol.SVR_FILE_ACCEPT, transferInfo.fileId, transferInfo.sender,
+                        transferInfo.fileName, transferInfo.fileSize);
+            }
+            return;
+        }
+
+        List<String> groupMembers = GroupDAO.getGroupMembers(transferInfo.receiver);
+        System.out.println("Group members for " + transferInfo.receiver + ": " + groupMembers);
+
+        ChatServer.sendToUsers(groupMembers, null, Protocol.SVR_GROUP_FILE_ACCEPT, transferInfo.fileId,
+                transferInfo.sender, transferInfo.fileName, transferInfo.fileSize);
+    }
+
+    // Upload chia chunk qua nhiều kết nối song song. Mỗi kết nối:
+    //   client: UPLOAD_CHUNKS|UPLOAD_CHUNKS_GROUP, fileId, int chunkSize
+    //   server: boolean chấp nhận; nếu có: int số kết nối nên dùng, int n + n byte bitmap chunk đã nhận
+    //           (đủ cả nếu file đã lưu xong từ trước)
+    //   lặp lại: client gửi int index (-1 = hết), int length, length byte, int CRC32C của chunk;
+    //           server trả một byte CHUNK_*
+    // Chunk cuối cùng làm file đủ thì server đổi tên file tạm sang tên thật, ghi database, báo người nhận rồi
+    // mới trả CHUNK_FILE_DONE cho kết nối đó.
+    private static final int CHUNK_OK = 0;
+    private static final int CHUNK_BAD_CHECKSUM = 1;
+    private static final int CHUNK_FILE_DONE = 2;
+    private static final int CHUNK_INVALID = 3;
+
+    private static final Map<String, ChunkedUpload> chunkedUploads = new ConcurrentHashMap<>();
+
+    private static void receiveChunks(DataInputStream dis, DataOutputStream dos, FileTransferInfo transferInfo,
+                                      int chunkSize, boolean group) throws IOException {
+        if (!ChunkedUpload.isValidChunkSize(transferInfo.fileSize, chunkSize, ServerConfig.UPLOAD_MAX_CHUNK)) {
+            System.out.println("Kích thước chunk không hợp lệ: " + chunkSize + ", fileId: " + transferInfo.fileId);
+            dos.writeBoolean(false);
+            dos.flush();
+            return;
+        }
+
+        if (FileDAO.getFileInfoById(transferInfo.fileId) != null) {
+            writeChunkHandshake(dos, ChunkedUpload.completeBitmap(transferInfo.fileSize, chunkSize));
+            return;
+        }
+
+        ChunkedUpload upload = chunkedUploads.computeIfAbsent(transferInfo.fileId,
+                id -> new ChunkedUpload(tempPath(id, ".chunks"), transferInfo.fileSize, chunkSize));
+        if (upload.getChunkSize() != chunkSize) {
+            // Đang có upload dở của file này với kích thước chunk khác
+            dos.writeBoolean(false);
+            dos.flush();
+            return;
+        }
+        if (!upload.attach()) {
+            // Chunk cuối vừa được nhận ở kết nối khác
+            writeChunkHandshake(dos, ChunkedUpload.completeBitmap(transferInfo.fileSize, chunkSize));
+            return;
+        }
 
-                int progressPercent = (int) ((totalBytesRead * 100) / transferInfo.fileSize);
-                dos.writeInt(progressPercent);
+        try {
+            writeChunkHandshake(dos, upload.receivedBitmap());
+
+            while (true) {
+                int index = dis.readInt();
+                if (index < 0) {
+                    return;
+                }
+                int length = dis.readInt();
+                if (!upload.isValidChunk(index, length)) {
+                    // Không biết phải bỏ qua bao nhiêu byte nên đóng kết nối
+                    dos.writeByte(CHUNK_INVALID);
+                    dos.flush();
+                    return;
+                }
+
+                int crc = upload.writeChunk(dis, index, length);
+                if (crc != dis.readInt()) {
+                    System.out.println("Chunk " + index + " của " + transferInfo.fileId + " sai checksum");
+                    dos.writeByte(CHUNK_BAD_CHECKSUM);
+                } else if (upload.markReceived(index)) {
+                    commitChunkedUpload(upload, transferInfo, group);
+                    dos.writeByte(CHUNK_FILE_DONE);
+                } else {
+                    dos.writeByte(CHUNK_OK);
+                }
                 dos.flush();
             }
+        } finally {
+            upload.detach();
         }
+    }
 
-        FileInfo fileInfo = new FileInfo();
-        fileInfo.setId(transferInfo.fileId);
-        fileInfo.setSender(transferInfo.sender);
-        fileInfo.setReceiver(transferInfo.receiver);
-        fileInfo.setFileName(transferInfo.fileName);
-        fileInfo.setFileSize(transferInfo.fileSize);
-        fileInfo.setStoragePath(filePath);
-        fileInfo.setTimestamp(new Date());
+    private static void writeChunkHandshake(DataOutputStream dos, byte[] receivedBitmap) throws IOException {
+        dos.writeBoolean(true);
+        dos.writeInt(ServerConfig.UPLOAD_MAX_STREAMS);
+        dos.writeInt(receivedBitmap.length);
+        dos.write(receivedBitmap);
+        dos.flush();
+    }
 
-        FileDAO.saveFileInfo(fileInfo);
+    // Đủ chunk: đưa file tạm vào kho (cùng ổ đĩa nên là một lần rename) rồi mới ghi database và báo người nhận,
+    // nên không ai thấy file khi còn thiếu chunk. Chunk tới không theo thứ tự nên không băm được trong lúc nhận
+    // như upload một luồng; SHA-256 được tính một lần trên file đã ghép.
+    private static void commitChunkedUpload(ChunkedUpload upload, FileTransferInfo transferInfo,
+                                            boolean group) throws IOException {
+        try {
+            MessageDigest digest = newSha256();
+            digestFile(upload.getPartPath(), transferInfo.fileSize, digest);
+            storeFile(transferInfo, upload.getPartPath(), HexFormat.of().formatHex(digest.digest()));
+        } finally {
+            // Lỗi lưu thì lần thử sau bắt đầu lại từ đầu thay vì bị coi là đã xong
+            chunkedUploads.remove(transferInfo.fileId, upload);
+        }
 
-        List<String> groupMembers = GroupDAO.getGroupMembers(transferInfo.receiver);
-        System.out.println("Group members for " + transferInfo.receiver + ": " + groupMembers);
+        System.out.println("Đã ghép đủ chunk cho fileId " + transferInfo.fileId);
+        announceFile(transferInfo, group);
+    }
 
-        for (String member : groupMembers) {
-            System.out.println("Sending file accept notification to group member: " + member);
-            ClientHandler memberHandler = ChatServer.getClientHandler(member);
-            if (memberHandler != null) {
-                memberHandler.sendMessage(Protocol.SVR_GROUP_FILE_ACCEPT + transferInfo.fileId +
-                        Protocol.PARAM_DELIMITER + transferInfo.sender +
-                        Protocol.PARAM_DELIMITER + transferInfo.fileName +
-                        Protocol.PARAM_DELIMITER + transferInfo.fileSize);
+    // Nhận nội dung file vào file tạm <fileId>.part (băm SHA-256 trong lúc nhận), đủ byte mới đưa vào kho và ghi
+    // database rồi trả về true. Kiểu resumable (UPLOAD/UPLOAD_GROUP): sau true server gửi thêm long offset = số byte
+    // đã có trong file tạm, client gửi tiếp từ đó. Nếu file đã được lưu xong từ lần trước (client mất kết nối trước
+    // khi nhận khung 100) thì trả offset = fileSize, báo hoàn tất và trả về false. SEND/SEND_GROUP cũ luôn nhận lại
+    // từ đầu.
+    private static boolean receiveUpload(Socket socket, DataInputStream dis, DataOutputStream dos,
+                                        FileTransferInfo transferInfo, UploadProgress progress,
+                                        boolean resumable) throws IOException {
+        UploadSlot slot = claimUpload(transferInfo.fileId, socket);
+        try {
+            if (resumable && FileDAO.getFileInfoById(transferInfo.fileId) != null) {
+                dos.writeBoolean(true);
+                dos.writeLong(transferInfo.fileSize);
+                progress.completed();
+                return false;
+            }
+
+            Path partPath = tempPath(transferInfo.fileId, ".part");
+            long offset = resumable && Files.exists(partPath) ? Files.size(partPath) : 0;
+            if (offset > transferInfo.fileSize) {
+                offset = 0; // File tạm không khớp với yêu cầu này, nhận lại từ đầu
+            }
+            if (offset > 0) {
+                System.out.println("Tiếp tục nhận file " + transferInfo.fileId + " từ byte " + offset + "/" +
+                        transferInfo.fileSize);
+            }
+
+            dos.writeBoolean(true);
+            if (resumable) {
+                dos.writeLong(offset);
+            }
+            dos.flush();
+
+            // Byte đã có trong file tạm phải vào digest trước phần client gửi tiếp
+            MessageDigest digest = newSha256();
+            digestFile(partPath, offset, digest);
+            receiveFileData(dis, partPath, offset, transferInfo.fileSize, progress, digest);
+
+            storeFile(transferInfo, partPath, HexFormat.of().formatHex(digest.digest()));
+            return true;
+        } finally {
+            if (Files.exists(tempPath(transferInfo.fileId, ".part"))) {
+                idleParts.put(transferInfo.fileId, System.nanoTime());
+            }
+            releaseUpload(transferInfo.fileId, slot);
+        }
+    }
+
+    private static UploadSlot claimUpload(String fileId, Socket socket) throws IOException {
+        UploadSlot slot = new UploadSlot(socket);
+        UploadSlot previous = activeUploads.put(fileId, slot);
+        idleParts.remove(fileId);
+        if (previous != null) {
+            System.out.println("Kết nối mới cho fileId " + fileId + ", đóng kết nối upload cũ");
+            if (previous.socket != null) {
+                previous.socket.close();
+            }
+            try {
+                if (!previous.released.await(UPLOAD_TAKEOVER_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    releaseUpload(fileId, slot);
+                    throw new IOException("Kết nối upload cũ của fileId " + fileId + " chưa dừng");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                releaseUpload(fileId, slot);
+                throw new InterruptedIOException("Bị ngắt khi chờ kết nối upload cũ");
+            }
+        }
+        return slot;
+    }
+
+    // Phiên chuyển file (activeTransfers) chỉ sống trong bộ nhớ nên sau khi khởi động lại không upload nào nối lại được:
+    // file tạm của lần chạy trước chỉ còn chiếm chỗ
+    private static void deleteLeftoverTempFiles() {
+        int deleted = 0;
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(Paths.get(FILE_STORAGE_DIR), "*.{part,chunks}")) {
+            for (Path path : leftovers) {
+                Files.deleteIfExists(path);
+                deleted++;
+            }
+        } catch (IOException e) {
+            System.err.println("Lỗi khi xóa file tạm cũ: " + e.getMessage());
+        }
+        if (deleted > 0) {
+            System.out.println("Đã xóa " + deleted + " file tạm của lần chạy trước");
+        }
+    }
+
+    // Xóa upload chia chunk không có kết nối nào, và file .part không ai nối lại, quá UPLOAD_STALE_TIMEOUT_MS.
+    // File .part được xóa trong lúc giữ slot upload của fileId, nên kết nối nối lại đúng lúc đó sẽ chờ rồi đọc
+    // kích thước 0 thay vì ghi tiếp vào file vừa bị xóa.
+    private static void evictStaleUploads() {
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.UPLOAD_STALE_TIMEOUT_MS);
+        long now = System.nanoTime();
+
+        for (Map.Entry<String, ChunkedUpload> entry : chunkedUploads.entrySet()) {
+            if (entry.getValue().evictIfIdle(timeoutNanos)) {
+                chunkedUploads.remove(entry.getKey(), entry.getValue());
+                System.out.println("Đã hủy upload chia chunk bỏ dở của fileId " + entry.getKey());
+            }
+        }
+
+        for (Map.Entry<String, Long> entry : idleParts.entrySet()) {
+            String fileId = entry.getKey();
+            if (now - entry.getValue() < timeoutNanos) {
+                continue;
+            }
+            UploadSlot slot = new UploadSlot(null);
+            if (activeUploads.putIfAbsent(fileId, slot) != null) {
+                continue; // Đang có kết nối nhận file này
+            }
+            try {
+                if (idleParts.remove(fileId, entry.getValue())) {
+                    Files.deleteIfExists(tempPath(fileId, ".part"));
+                    System.out.println("Đã xóa file tạm của upload bỏ dở, fileId " + fileId);
+                }
+            } catch (IOException e) {
+                System.err.println("Lỗi khi xóa file tạm của fileId " + fileId + ": " + e.getMessage());
+            } finally {
+                releaseUpload(fileId, slot);
+            }
+        }
+    }
+
+    private static void releaseUpload(String fileId, UploadSlot slot) {
+        activeUploads.remove(fileId, slot);
+        slot.released.countDown();
+    }
+
+    // fileId do client đặt nên chỉ giữ ký tự an toàn cho tên file
+    private static Path tempPath(String fileId, String suffix) {
+        return Paths.get(FILE_STORAGE_DIR, fileId.replaceAll("[^A-Za-z0-9_-]", "_") + suffix);
+    }
+
+    // Đọc từ client cho tới khi file tạm đủ fileSize byte, ghi nối tiếp sau offset byte đã có. Kiểu SEND cũ phải
+    // giữ buffer 8 KB: client cũ chờ một khung tiến trình sau mỗi 8 KB nó ghi, gộp nhiều lần đọc thành một khung
+    // sẽ làm client đó treo.
+    private static void receiveFileData(DataInputStream dis, Path partPath, long offset, long fileSize,
+                                        UploadProgress progress, MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[progress.bufferSize()];
+        long totalBytesRead = offset;
+        try (FileOutputStream fos = new FileOutputStream(partPath.toFile(), offset > 0)) {
+            int bytesRead;
+            while (totalBytesRead < fileSize &&
+                    (bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalBytesRead))) != -1) {
+                fos.write(buffer, 0, bytesRead);
+                digest.update(buffer, 0, bytesRead);
+                totalBytesRead += bytesRead;
+                progress.received(totalBytesRead);
             }
         }
+        if (totalBytesRead < fileSize) {
+            throw new EOFException("Client ngắt kết nối khi mới gửi " + totalBytesRead + "/" + fileSize + " bytes");
+        }
     }
 
-    private static void sendFileToClient(DataInputStream dis, DataOutputStream dos,
-                                         FileTransferInfo transferInfo) throws IOException {
+    // Khung tiến trình (int %) server gửi ngược về client trong lúc nhận file.
+    //  - legacy (SEND/SEND_GROUP): một khung sau mỗi lần đọc 8 KB, như client cũ mong đợi.
+    //  - throttled (UPLOAD/UPLOAD_GROUP): chỉ gửi khi tăng ít nhất step % và đã qua UPLOAD_PROGRESS_INTERVAL_MS
+    //    từ khung trước (step 0 = không gửi), rồi luôn gửi khung 100 sau khi file đã được lưu để client biết
+    //    upload hoàn tất. Tối đa ~100 khung cho cả file, nên client không đọc ngay cũng không làm nghẽn socket.
+    private static final class UploadProgress {
+        private static final int LEGACY_BUFFER = 8192;
+
+        private final DataOutputStream dos;
+        private final long fileSize;
+        private final boolean legacy;
+        private final int step;
+        private final long intervalNanos;
+        private int lastPercent;
+        private long lastNanos;
+
+        private UploadProgress(DataOutputStream dos, long fileSize, boolean legacy, int step) {
+            this.dos = dos;
+            this.fileSize = fileSize;
+            this.legacy = legacy;
+            this.step = step;
+            this.intervalNanos = ServerConfig.UPLOAD_PROGRESS_INTERVAL_MS * 1_000_000L;
+            this.lastNanos = System.nanoTime();
+        }
+
+        static UploadProgress legacy(DataOutputStream dos, long fileSize) {
+            return new UploadProgress(dos, fileSize, true, 1);
+        }
+
+        static UploadProgress throttled(DataOutputStream dos, long fileSize, int step) {
+            return new UploadProgress(dos, fileSize, false, Math.max(0, step));
+        }
+
+        // Buffer nhận: file càng lớn buffer càng lớn (khoảng 1/16 file), trong khoảng 8 KB..UPLOAD_MAX_BUFFER
+        int bufferSize() {
+            if (legacy) {
+                return LEGACY_BUFFER;
+            }
+            long adaptive = Math.min(ServerConfig.UPLOAD_MAX_BUFFER, fileSize / 16);
+            return (int) Math.max(LEGACY_BUFFER, adaptive);
+        }
+
+        void received(long totalBytes) throws IOException {
+            int percent = fileSize == 0 ? 100 : (int) ((totalBytes * 100) / fileSize);
+            if (legacy) {
+                dos.writeInt(percent);
+                dos.flush();
+                return;
+            }
+            // Khung 100 dành cho completed(), khi file đã nằm trong database
+            if (step == 0 || percent >= 100 || percent - lastPercent < step) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (now - lastNanos < intervalNanos) {
+                return;
+            }
+            lastPercent = percent;
+            lastNanos = now;
+            dos.writeInt(percent);
+            dos.flush();
+        }
+
+        void completed() throws IOException {
+            if (!legacy) {
+                dos.writeInt(100);
+                dos.flush();
+            }
+        }
+    }
+
+    // RECEIVE gửi cả file; RECEIVE_FROM (resumable) gửi thêm long offset sau kích thước file - vị trí thực sự bắt
+    // đầu gửi, 0 nếu offset client xin không hợp lệ - để client cắt file tạm của nó về đúng chỗ đó.
+    private static void sendFileToClient(Socket socket, DataOutputStream dos, FileTransferInfo transferInfo,
+                                         long requestedOffset, boolean resumable) throws IOException {
         System.out.println("Processing download request for fileId: " + transferInfo.fileId);
 
         // Lấy thông tin file từ database
@@ -256,59 +713,46 @@ public class FileService {
         long fileSize = file.length();
         System.out.println("Sending file: " + fileInfo.getFileName() + ", size: " + fileSize + " bytes");
 
+        long offset = requestedOffset >= 0 && requestedOffset <= fileSize ? requestedOffset : 0;
+        if (offset > 0) {
+            System.out.println("Tiếp tục gửi file từ byte " + offset + "/" + fileSize);
+        }
+
         // Gửi thông tin thành công
         dos.writeBoolean(true); // File có thể được download
         dos.writeLong(fileSize); // Gửi kích thước file thực tế
+        if (resumable) {
+            dos.writeLong(offset);
+        }
         dos.flush();
 
-        // Gửi dữ liệu file
-        FileInputStream fis = null;
-        try {
-            fis = new FileInputStream(file);
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            long totalBytesSent = 0;
-            int lastProgress = 0;
-
-            System.out.println("Starting file data transmission...");
-
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                dos.write(buffer, 0, bytesRead);
-                totalBytesSent += bytesRead;
-
-                // Tính toán và hiển thị tiến trình
-                int progressPercent = (int) ((totalBytesSent * 100) / fileSize);
-                if (progressPercent > lastProgress) {
-                    System.out.println("Upload progress: " + progressPercent + "% (" + totalBytesSent + "/" + fileSize + " bytes)");
-                    lastProgress = progressPercent;
-                }
-
-                // Flush để đảm bảo dữ liệu được gửi ngay
-                if (totalBytesSent % (buffer.length * 4) == 0) { // Flush mỗi 32KB
-                    dos.flush();
+        // Gửi dữ liệu file: kernel chép thẳng từ page cache sang socket, không qua buffer trong heap.
+        // DataOutputStream không có buffer riêng nên header ở trên đã nằm trong socket trước dữ liệu file.
+        WritableByteChannel target = socket.getChannel() != null
+                ? socket.getChannel()
+                : Channels.newChannel(dos);
+        long startNanos = System.nanoTime();
+        long totalBytesSent = offset;
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (totalBytesSent < fileSize) {
+                long sent = fileChannel.transferTo(totalBytesSent, fileSize - totalBytesSent, target);
+                if (sent <= 0 && totalBytesSent >= fileChannel.size()) {
+                    // File bị cắt ngắn sau khi đã gửi kích thước cho client
+                    throw new EOFException("File ngắn hơn kích thước đã báo: " + totalBytesSent + "/" + fileSize);
                 }
+                totalBytesSent += sent;
             }
-
-            // Flush cuối cùng để đảm bảo tất cả dữ liệu được gửi
-            dos.flush();
-
-            System.out.println("File transmission completed successfully. Total bytes sent: " + totalBytesSent);
-
-            // Cập nhật trạng thái file đã được tải
-            updateFileDownloadStatus(transferInfo.fileId, transferInfo.receiver);
-
         } catch (IOException e) {
             System.err.println("Error sending file data: " + e.getMessage());
             throw e; // Re-throw để handleFileTransfer xử lý
-        } finally {
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException e) {
-                    System.err.println("Error closing file input stream: " + e.getMessage());
-                }
-            }
         }
+
+        long elapsedMillis = Math.max(1, (System.nanoTime() - startNanos) / 1_000_000);
+        System.out.println("File transmission completed successfully. Total bytes sent: " + (totalBytesSent - offset) +
+                " (" + elapsedMillis + " ms, " + ((totalBytesSent - offset) / 1024 * 1000 / elapsedMillis / 1024) + " MB/s)");
+
+        // Cập nhật trạng thái file đã được tải
+        updateFileDownloadStatus(transferInfo.fileId, transferInfo.receiver);
     }
 
     // Helper method để cập nhật trạng thái download
@@ -317,7 +761,7 @@ public class FileService {
             // Thông báo cho người nhận rằng file đã được tải thành công
             ClientHandler receiverHandler = ChatServer.getClientHandler(receiver);
             if (receiverHandler != null) {
-                receiverHandler.sendMessage(Protocol.SVR_FILE_DOWNLOAD + fileId);
+                receiverHandler.send(Protocol.SVR_FILE_DOWNLOAD, fileId);
             }
 
             // Log thông tin
@@ -361,9 +805,9 @@ public class FileService {
             ClientHandler senderHandler = ChatServer.getClientHandler(transferInfo.sender);
             if (senderHandler != null) {
                 if (groupName != null && !groupName.isEmpty()) {
-                    senderHandler.sendMessage(Protocol.SVR_GROUP_FILE_ACCEPT + fileId);
+                    senderHandler.send(Protocol.SVR_GROUP_FILE_ACCEPT, fileId);
                 } else {
-                    senderHandler.sendMessage(Protocol.SVR_FILE_ACCEPT + fileId);
+                    senderHandler.send(Protocol.SVR_FILE_ACCEPT, fileId);
                 }
             } else {
                 System.out.println("Sender handler not found for: " + transferInfo.sender);
@@ -379,7 +823,7 @@ public class FileService {
             // Thông báo cho người gửi rằng file đã bị từ chối
             ClientHandler senderHandler = ChatServer.getClientHandler(transferInfo.sender);
             if (senderHandler != null) {
-                senderHandler.sendMessage(Protocol.SVR_FILE_REJECT + fileId);
+                senderHandler.send(Protocol.SVR_FILE_REJECT, fileId);
             }
         }
     }
@@ -394,6 +838,7 @@ public class FileService {
         if (fileTransferPool != null) {
             fileTransferPool.shutdown();
         }
+        cleaner.shutdown();
 
         if (fileServerSocket != null && !fileServerSocket.isClosed()) {
             try {
@@ -0,0 +1,367 @@
+package util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+// Giao thức nhị phân song song với giao thức dòng văn bản, client bật khi đăng nhập:
+//   /login username|password|binary
+// Server trả /loginsuccess bằng văn bản, sau đó mọi dữ liệu hai chiều chuyển sang dạng khung nhị phân.
+// Client không được gửi khung nhị phân trước khi nhận được /loginsuccess.
+//
+// Khung: [opcode: 1 byte][độ dài payload: 4 byte big-endian][payload]
+// Payload là dãy trường có kiểu, mỗi trường bắt đầu bằng 1 byte kiểu:
+//   'S' [độ dài: 4 byte][UTF-8]   chuỗi (nội dung có thể chứa '|' và xuống dòng)
+//   'L' [8 byte]                  long (timestamp, kích thước file)
+//   'I' [4 byte]                  int
+//   'Z' [1 byte]                  boolean
+//   'N'                           null
+// Thứ tự và ý nghĩa các trường giống hệt các tham số phân cách bằng '|' của lệnh văn bản tương ứng.
+public class BinaryProtocol {
+    public static final String LOGIN_OPTION = "binary";
+
+    public static final int HEADER_SIZE = 5;
+
+    public static final byte TYPE_STRING = 'S';
+    public static final byte TYPE_LONG = 'L';
+    public static final byte TYPE_INT = 'I';
+    public static final byte TYPE_BOOLEAN = 'Z';
+    public static final byte TYPE_NULL = 'N';
+
+    // Opcode = vị trí trong mảng + 1 (0 không hợp lệ). Chỉ được thêm vào cuối để không đổi opcode cũ.
+    private static final String[] COMMANDS = {
+            Protocol.CMD_LOGIN,
+            Protocol.CMD_REGISTER,
+            Protocol.CMD_EXIT,
+            Protocol.CMD_PRIVATE_MSG,
+            Protocol.CMD_GROUP_MSG,
+            Protocol.CMD_ONLINE_USERS,
+            Protocol.CMD_GET_CHAT_HISTORY,
+            Protocol.CMD_LOAD_MORE_MESSAGES,
+            Protocol.CMD_CREATE_GROUP,
+            Protocol.CMD_ADD_TO_GROUP,
+            Protocol.CMD_GET_GROUPS,
+            Protocol.CMD_LEAVE_GROUP,
+            Protocol.CMD_REMOVE_FROM_GROUP,
+            Protocol.CMD_FILE_SEND,
+            Protocol.CMD_FILE_ACCEPT,
+            Protocol.CMD_FILE_REJECT,
+            Protocol.CMD_GROUP_FILE_SEND,
+            Protocol.CMD_CHANGE_MESSAGE_ACTUAL_FILENAME_SAVE,
+            Protocol.CMD_CHANGE_MESSAGE_ACTUAL_FILENAME_UPLOAD,
+            Protocol.CMD_GROUP_FILE_ACCEPT,
+            Protocol.CMD_CHANGE_MESSAGE_GROUP_ACTUAL_FILENAME_SAVE,
+            Protocol.CMD_CHANGE_MESSAGE_GROUP_ACTUAL_FILENAME_UPLOAD,
+            Protocol.CMD_FILE_DOWNLOAD,
+            Protocol.CMD_FILE_DOWNLOAD_ACCEPT,
+            Protocol.CMD_DELETE_HISTORY
+    };
+
+    // Các hằng SVR_* trùng chuỗi (SVR_HISTORY_* / SVR_CHAT_HISTORY_*, SVR_GROUP_FILE_ACCEPT(ED)) dùng chung opcode
+    private static final String[] RESPONSES = {
+            Protocol.SVR_LOGIN_SUCCESS,
+            Protocol.SVR_LOGIN_FAIL,
+            Protocol.SVR_REGISTER_SUCCESS,
+            Protocol.SVR_REGISTER_FAIL,
+            Protocol.SVR_ONLINE_USERS,
+            Protocol.SVR_USER_JOINED,
+            Protocol.SVR_USER_LEFT,
+            Protocol.SVR_PRIVATE_MSG,
+            Protocol.SVR_GLOBAL_MSG,
+            Protocol.SVR_FILE_REQUEST,
+            Protocol.SVR_FILE_ACCEPT,
+            Protocol.SVR_FILE_REJECT,
+            Protocol.SVR_HISTORY_START,
+            Protocol.SVR_HISTORY_ITEM,
+            Protocol.SVR_HISTORY_END,
+            Protocol.SVR_HISTORY_DELETED,
+            Protocol.SVR_ERROR,
+            Protocol.SVR_CREATE_GROUP_SUCCESS,
+            Protocol.SVR_NEW_GROUP,
+            Protocol.SVR_GROUP_USER_ADDED,
+            Protocol.SVR_ADDED_TO_GROUP,
+            Protocol.SVR_ADD_TO_GROUP_SUCCESS,
+            Protocol.SVR_GROUP_USER_LEFT,
+            Protocol.SVR_LEFT_GROUP,
+            Protocol.SVR_GROUP_LIST,
+            Protocol.SVR_GROUP_MSG,
+            Protocol.SVR_REMOVED_FROM_GROUP,
+            Protocol.SVR_REMOVE_FROM_GROUP_SUCCESS,
+            Protocol.SVR_LOAD_MORE_START,
+            Protocol.SVR_LOAD_MORE_ITEM,
+            Protocol.SVR_LOAD_MORE_END,
+            Protocol.SVR_FILE_MESSAGE,
+            Protocol.SVR_FILE_DOWNLOAD,
+            Protocol.SVR_GROUP_FILE_REQUEST,
+            Protocol.SVR_GROUP_FILE_ACCEPTED,
+            Protocol.SVR_FILE_DOWNLOAD_REQUEST,
+            Protocol.SVR_FILE_DOWNLOAD_ACCEPT,
+            Protocol.SVR_PRESENCE,
+            Protocol.SVR_ONLINE_DELTA
+    };
+
+    // Một khung đã nhận đủ: payload giữ nguyên dạng byte, được đọc trực tiếp bằng FieldCursor
+    public static class Frame {
+        private final int opcode;
+        private final byte[] payload;
+        private final int fieldCount;
+
+        public Frame(int opcode, byte[] payload, int fieldCount) {
+            this.opcode = opcode;
+            this.payload = payload;
+            this.fieldCount = fieldCount;
+        }
+
+        public int getOpcode() {
+            return opcode;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public int getFieldCount() {
+            return fieldCount;
+        }
+    }
+
+    private static final Map<String, Integer> COMMAND_OPCODES = indexOf(COMMANDS);
+    private static final Map<String, Integer> RESPONSE_OPCODES = indexOf(RESPONSES);
+
+    private static Map<String, Integer> indexOf(String[] prefixes) {
+        Map<String, Integer> opcodes = new HashMap<>();
+        for (int i = 0; i < prefixes.length; i++) {
+            opcodes.putIfAbsent(prefixes[i], i + 1);
+        }
+        return opcodes;
+    }
+
+    // Trả về tiền tố lệnh văn bản tương ứng, hoặc null nếu opcode không tồn tại
+    public static String commandForOpcode(int opcode) {
+        return opcode >= 1 && opcode <= COMMANDS.length ? COMMANDS[opcode - 1] : null;
+    }
+
+    public static String responseForOpcode(int opcode) {
+        return opcode >= 1 && opcode <= RESPONSES.length ? RESPONSES[opcode - 1] : null;
+    }
+
+    public static int commandOpcode(String command) {
+        Integer opcode = COMMAND_OPCODES.get(command);
+        if (opcode == null) {
+            throw new IllegalArgumentException("Lệnh không có opcode: " + command);
+        }
+        return opcode;
+    }
+
+    public static int responseOpcode(String response) {
+        Integer opcode = RESPONSE_OPCODES.get(response);
+        if (opcode == null) {
+            throw new IllegalArgumentException("Phản hồi không có opcode: " + response);
+        }
+        return opcode;
+    }
+
+    // Mã hóa một khung hoàn chỉnh (header + payload)
+    public static byte[] encode(int opcode, Object... fields) {
+        int payloadSize = 0;
+        byte[][] strings = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            Object field = fields[i];
+            if (field == null) {
+                payloadSize += 1;
+            } else if (field instanceof Long) {
+                payloadSize += 1 + 8;
+            } else if (field instanceof Integer) {
+                payloadSize += 1 + 4;
+            } else if (field instanceof Boolean) {
+                payloadSize += 1 + 1;
+            } else {
+                strings[i] = field.toString().getBytes(StandardCharsets.UTF_8);
+                payloadSize += 1 + 4 + strings[i].length;
+            }
+        }
+
+        byte[] frame = new byte[HEADER_SIZE + payloadSize];
+        frame[0] = (byte) opcode;
+        putInt(frame, 1, payloadSize);
+
+        int pos = HEADER_SIZE;
+        for (int i = 0; i < fields.length; i++) {
+            Object field = fields[i];
+            if (field == null) {
+                frame[pos++] = TYPE_NULL;
+            } else if (field instanceof Long value) {
+                frame[pos++] = TYPE_LONG;
+                putLong(frame, pos, value);
+                pos += 8;
+            } else if (field instanceof Integer value) {
+                frame[pos++] = TYPE_INT;
+                putInt(frame, pos, value);
+                pos += 4;
+            } else if (field instanceof Boolean value) {
+                frame[pos++] = TYPE_BOOLEAN;
+                frame[pos++] = (byte) (value ? 1 : 0);
+            } else {
+                frame[pos++] = TYPE_STRING;
+                putInt(frame, pos, strings[i].length);
+                pos += 4;
+                System.arraycopy(strings[i], 0, frame, pos, strings[i].length);
+                pos += strings[i].length;
+            }
+        }
+        return frame;
+    }
+
+    // Độ dài payload trong header bắt đầu tại offset
+    public static int payloadLength(byte[] data, int offset) {
+        return getInt(data, offset + 1);
+    }
+
+    // Kiểm tra cấu trúc payload và đếm số trường; ném IllegalArgumentException nếu khung hỏng
+    public static int countFields(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int count = 0;
+        for (int pos = offset; pos < end; count++) {
+            pos = skipField(data, pos, end);
+        }
+        return count;
+    }
+
+    // Đọc các trường của khung trực tiếp từ mảng byte: số được đọc thẳng, chỉ chuỗi mới được tạo đối tượng.
+    // Dùng lại được qua reset(); không dùng chung giữa nhiều thread.
+    public static final class FieldCursor implements FieldReader {
+        private byte[] data;
+        private int pos;
+        private int remaining;
+
+        public FieldCursor reset(Frame frame) {
+            this.data = frame.getPayload();
+            this.pos = 0;
+            this.remaining = frame.getFieldCount();
+            return this;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public int remaining() {
+            return remaining;
+        }
+
+        @Override
+        public String nextString() {
+            if (remaining == 0) {
+                return "";
+            }
+            remaining--;
+            byte type = data[pos++];
+            switch (type) {
+                case TYPE_STRING -> {
+                    int size = getInt(data, pos);
+                    String value = new String(data, pos + 4, size, StandardCharsets.UTF_8);
+                    pos += 4 + size;
+                    return value;
+                }
+                case TYPE_LONG -> {
+                    long value = getLong(data, pos);
+                    pos += 8;
+                    return String.valueOf(value);
+                }
+                case TYPE_INT -> {
+                    int value = getInt(data, pos);
+                    pos += 4;
+                    return String.valueOf(value);
+                }
+                case TYPE_BOOLEAN -> {
+                    return String.valueOf(data[pos++] != 0);
+                }
+                default -> {
+                    return "";
+                }
+            }
+        }
+
+        @Override
+        public long nextLong() {
+            if (remaining == 0) {
+                throw new NumberFormatException("Thiếu tham số kiểu số");
+            }
+            switch (data[pos]) {
+                case TYPE_LONG -> {
+                    remaining--;
+                    long value = getLong(data, pos + 1);
+                    pos += 9;
+                    return value;
+                }
+                case TYPE_INT -> {
+                    remaining--;
+                    int value = getInt(data, pos + 1);
+                    pos += 5;
+                    return value;
+                }
+                default -> {
+                    // Client gửi số dưới dạng chuỗi
+                    return Long.parseLong(nextString().trim());
+                }
+            }
+        }
+
+        @Override
+        public int nextInt() {
+            long value = nextLong();
+            if ((int) value != value) {
+                throw new NumberFormatException("Tham số vượt quá kiểu int: " + value);
+            }
+            return (int) value;
+        }
+
+        // Trường trong khung nhị phân đã có độ dài riêng nên tham số cuối chỉ là trường kế tiếp
+        @Override
+        public String rest() {
+            return nextString();
+        }
+    }
+
+    private static int skipField(byte[] data, int pos, int end) {
+        byte type = data[pos++];
+        int next = switch (type) {
+            case TYPE_STRING -> {
+                int size = pos + 4 <= end ? getInt(data, pos) : -1;
+                yield size >= 0 ? pos + 4 + size : -1;
+            }
+            case TYPE_LONG -> pos + 8;
+            case TYPE_INT -> pos + 4;
+            case TYPE_BOOLEAN -> pos + 1;
+            case TYPE_NULL -> pos;
+            default -> throw new IllegalArgumentException("Kiểu trường không hợp lệ: " + type);
+        };
+        if (next > end || next < pos) {
+            throw new IllegalArgumentException("Trường vượt quá độ dài khung");
+        }
+        return next;
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] data, int offset, long value) {
+        putInt(data, offset, (int) (value >>> 32));
+        putInt(data, offset + 4, (int) value);
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return ((long) getInt(data, offset) << 32) | (getInt(data, offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,20 @@
+package util;
+
+// Đọc tuần tự các tham số của một lệnh, dùng chung cho dòng văn bản (Protocol.FieldCursor)
+// và khung nhị phân (BinaryProtocol.FieldCursor) để handler không phụ thuộc vào kiểu giao thức
+public interface FieldReader {
+    boolean hasNext();
+
+    // Số tham số chưa đọc
+    int remaining();
+
+    // Tham số thiếu được trả về chuỗi rỗng
+    String nextString();
+
+    long nextLong();
+
+    int nextInt();
+
+    // Tham số cuối cùng: với dòng văn bản là toàn bộ phần còn lại của dòng
+    String rest();
+}
@@ -25,8 +25,12 @@ public class Protocol {
     public static final String SVR_REGISTER_SUCCESS = "/registersuccess";
     public static final String SVR_REGISTER_FAIL = "/registerfail ";
     public static final String SVR_ONLINE_USERS = "/onlineusers ";
+    // Trả lời /online <phiên bản>: phiên bản mới|người vào|người ra (danh sách phân tách bằng dấu phẩy)
+    public static final String SVR_ONLINE_DELTA = "/onlinedelta ";
     public static final String SVR_USER_JOINED = "/userjoined ";
     public static final String SVR_USER_LEFT = "/userleft ";
+    // Thay đổi trạng thái online gộp theo cửa sổ thời gian: joined1,joined2|left1,left2|phiên bản trước|phiên bản mới
+    public static final String SVR_PRESENCE = "/presence ";
     public static final String SVR_PRIVATE_MSG = "/privatemsg ";
     public static final String SVR_GLOBAL_MSG = "/globalmsg ";
     public static final String SVR_FILE_REQUEST = "/filerequest ";
@@ -34,7 +38,7 @@ public class Protocol {
     public static final String SVR_FILE_REJECT = "/filerejected ";
     public static final String SVR_HISTORY_START = "/historystart";
     public static final String SVR_HISTORY_ITEM = "/historyitem ";
-    public static final String SVR_HISTORY_END = "/historyend";
+    public static final String SVR_HISTORY_END = "/historyend ";
     public static final String SVR_HISTORY_DELETED = "/historydeleted ";
     public static final String SVR_ERROR = "/error ";
     public static final String SVR_CREATE_GROUP_SUCCESS = "/creategroupsuccess ";
@@ -53,13 +57,13 @@ public class Protocol {
     public static final String CMD_GET_CHAT_HISTORY = "/history ";
     public static final String SVR_CHAT_HISTORY_START = "/historystart";
 //    public static final String SVR_CHAT_HISTORY_ITEM = "/historyitem ";
-    public static final String SVR_CHAT_HISTORY_END = "/historyend";
+    public static final String SVR_CHAT_HISTORY_END = "/historyend ";
 
     // Lệnh tải thêm tin nhắn cũ hơn
     public static final String CMD_LOAD_MORE_MESSAGES = "/loadmore ";
     public static final String SVR_LOAD_MORE_START = "/loadmorestart";
 //    public static final String SVR_LOAD_MORE_ITEM = "/loadmoreitem ";
-    public static final String SVR_LOAD_MORE_END = "/loadmoreend";
+    public static final String SVR_LOAD_MORE_END = "/loadmoreend ";
 
     public static final String SVR_FILE_MESSAGE = "/filemsg ";
     public static final String CMD_FILE_DOWNLOAD = "/filedownload ";
@@ -93,4 +97,177 @@ public class Protocol {
 
     // Delimiter cho các tham số trong message
     public static final String PARAM_DELIMITER = "|";
+
+    // Escape ký tự đặc biệt trong một tham số: '\' thành "\\", '|' thành "\|", xuống dòng thành "\n" và "\r"
+    public static String escape(String field) {
+        int i = 0;
+        int length = field.length();
+        while (i < length && !needsEscape(field.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return field;
+        }
+
+        StringBuilder sb = new StringBuilder(length + 8).append(field, 0, i);
+        for (; i < length; i++) {
+            char c = field.charAt(i);
+            switch (c) {
+                case '\\' -> sb.append("\\\\");
+                case '|' -> sb.append("\\|");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                default -> sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean needsEscape(char c) {
+        return c == '\\' || c == '|' || c == '\n' || c == '\r';
+    }
+
+    // Đọc lần lượt các tham số của một dòng lệnh ngay trên chuỗi gốc, không tạo mảng hay chuỗi con trung gian
+    // (chỉ tạo chuỗi cho tham số được đọc, số được đọc trực tiếp từ ký tự).
+    // Dùng lại được qua reset(); không dùng chung giữa nhiều thread.
+    public static final class FieldCursor implements FieldReader {
+        private String line;
+        private int pos;
+        private int end;
+
+        public FieldCursor reset(String line, int offset) {
+            this.line = line;
+            this.end = line.length();
+            this.pos = Math.min(offset, end);
+            return this;
+        }
+
+        // Giống split: phần rỗng sau tên lệnh vẫn là một tham số rỗng
+        @Override
+        public boolean hasNext() {
+            return pos <= end;
+        }
+
+        @Override
+        public int remaining() {
+            if (pos > end) {
+                return 0;
+            }
+            int count = 1;
+            for (int i = pos; i < end; i++) {
+                char c = line.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '|') {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public String nextString() {
+            if (pos > end) {
+                return "";
+            }
+            int fieldEnd = fieldEnd();
+            String value = unescape(line, pos, fieldEnd);
+            pos = fieldEnd + 1;
+            return value;
+        }
+
+        @Override
+        public long nextLong() {
+            if (pos > end) {
+                throw new NumberFormatException("Thiếu tham số kiểu số");
+            }
+            int fieldEnd = fieldEnd();
+            long value = parseLong(line, pos, fieldEnd);
+            pos = fieldEnd + 1;
+            return value;
+        }
+
+        @Override
+        public int nextInt() {
+            long value = nextLong();
+            if ((int) value != value) {
+                throw new NumberFormatException("Tham số vượt quá kiểu int: " + value);
+            }
+            return (int) value;
+        }
+
+        // Phần còn lại của dòng là một tham số: nội dung tin nhắn từ client cũ có thể chứa '|' chưa escape
+        @Override
+        public String rest() {
+            if (pos > end) {
+                return "";
+            }
+            String value = unescape(line, pos, end);
+            pos = end + 1;
+            return value;
+        }
+
+        private int fieldEnd() {
+            for (int i = pos; i < end; i++) {
+                char c = line.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '|') {
+                    return i;
+                }
+            }
+            return end;
+        }
+    }
+
+    private static String unescape(String line, int from, int to) {
+        int i = line.indexOf('\\', from);
+        if (i < 0 || i >= to) {
+            return line.substring(from, to);
+        }
+
+        StringBuilder sb = new StringBuilder(to - from).append(line, from, i);
+        for (; i < to; i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < to) {
+                char next = line.charAt(++i);
+                switch (next) {
+                    case 'n' -> sb.append('\n');
+                    case 'r' -> sb.append('\r');
+                    case '\\', '|' -> sb.append(next);
+                    // Không phải chuỗi escape (ví dụ đường dẫn Windows từ client cũ): giữ nguyên
+                    default -> sb.append('\\').append(next);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Như Long.parseLong(s.substring(from, to).trim()) nhưng không tạo chuỗi con
+    private static long parseLong(String s, int from, int to) {
+        while (from < to && s.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && s.charAt(to - 1) <= ' ') {
+            to--;
+        }
+
+        boolean negative = from < to && s.charAt(from) == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to) {
+            throw new NumberFormatException("Tham số kiểu số không hợp lệ: \"" + s.substring(from, to) + "\"");
+        }
+
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                throw new NumberFormatException("Tham số kiểu số không hợp lệ: \"" + s.substring(from, to) + "\"");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
 }